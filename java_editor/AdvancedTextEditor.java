@@ -2,11 +2,17 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.*;
-import javax.swing.undo.UndoManager;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Rectangle2D;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
@@ -14,13 +20,15 @@ import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class AdvancedTextEditor extends JFrame {
     // Constants
     private static final String APP_TITLE = "Advanced Java Text Editor";
     private static final int DEFAULT_FONT_SIZE = 14;
     private static final int MAX_RECENT_FILES = 10;
-    private static final int MAX_UNDO_STACK = 100;
+    static final int MAX_UNDO_STACK = 100;
     
     // Main components
     private JTabbedPane tabbedPane;
@@ -34,13 +42,16 @@ public class AdvancedTextEditor extends JFrame {
     private StyleConfigDialog styleConfigDialog;
     private FileExplorerDialog fileExplorerDialog;
     private TerminalDialog terminalDialog;
+    private DiagnosticsDialog diagnosticsDialog;
     
     // Settings
     private boolean showLineNumbers = true;
     private boolean wordWrap = false;
+    private boolean showMinimap = true;
     private boolean autoIndent = true;
-    private boolean autoSave = false;
+    private boolean autoSave = true;
     private int tabSize = 4;
+    private long largeFileThreshold = 64L * 1024 * 1024;
     private int fontSize = DEFAULT_FONT_SIZE;
     private String currentTheme = "Dark";
     
@@ -54,11 +65,15 @@ public class AdvancedTextEditor extends JFrame {
     private Color selectionColor = new Color(70, 130, 180);
     private Color lineNumberColor = new Color(128, 128, 128);
     
-    // Split view
-    private boolean splitView = false;
-    private JSplitPane splitPane;
+    private javax.swing.Timer statusTimer;
+    
+    // Folders watched for changes to open files
+    private FileWatcher fileWatcher;
+    private Set<Path> watchedTabDirectories = new HashSet<>();
+    private boolean restoringSession;
     
     public AdvancedTextEditor() {
+        EditorDiagnostics.install();
         initializeComponents();
         setupMenuBar();
         setupToolBar();
@@ -67,22 +82,38 @@ public class AdvancedTextEditor extends JFrame {
         
         recentFiles = new ArrayList<>();
         
-        // Create initial tab
-        newFile();
+        // Reopen the last session, or start with an empty tab
+        if (!restoreSession()) {
+            newFile();
+        }
         
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                saveSession();
+            }
+        });
         setSize(1200, 800);
         setLocationRelativeTo(null);
         applyTheme(currentTheme);
+        recoverUnsavedTabs();
     }
     
     private void initializeComponents() {
         tabbedPane = new JTabbedPane();
         tabbedPane.setTabLayoutPolicy(JTabbedPane.SCROLL_TAB_LAYOUT);
+        tabbedPane.addChangeListener(e -> materializeSelectedTab());
         
         statusLabel = new JLabel("Ready");
         statusLabel.setBorder(new EmptyBorder(5, 10, 5, 10));
         
+        // Caret moves and edits in the same frame share one status refresh
+        statusTimer = new javax.swing.Timer(16, e -> updateStatus());
+        statusTimer.setRepeats(false);
+        
+        fileWatcher = new FileWatcher(this::filesChanged);
+        
         // Setup tab close functionality
         tabbedPane.addMouseListener(new MouseAdapter() {
             @Override
@@ -126,6 +157,7 @@ public class AdvancedTextEditor extends JFrame {
         editMenu.addSeparator();
         editMenu.add(createMenuItem("Find & Replace", "ctrl F", e -> showFindReplace()));
         editMenu.add(createMenuItem("Go to Line", "ctrl G", e -> showGoToLine()));
+        editMenu.add(createMenuItem("Find in Files", "ctrl shift F", e -> showFindInFiles()));
         editMenu.addSeparator();
         editMenu.add(createMenuItem("Duplicate Line", "ctrl D", e -> duplicateLine()));
         editMenu.add(createMenuItem("Comment/Uncomment", "ctrl L", e -> commentUncommentLines()));
@@ -153,9 +185,25 @@ public class AdvancedTextEditor extends JFrame {
         });
         viewMenu.add(wordWrapItem);
         
+        JCheckBoxMenuItem minimapItem = new JCheckBoxMenuItem("Show Minimap", showMinimap);
+        minimapItem.addActionListener(e -> {
+            showMinimap = minimapItem.isSelected();
+            for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+                Component component = tabbedPane.getComponentAt(i);
+                if (component instanceof EditorTab) {
+                    ((EditorTab) component).setMinimapVisible(showMinimap);
+                }
+            }
+        });
+        viewMenu.add(minimapItem);
+        
         viewMenu.addSeparator();
         viewMenu.add(createMenuItem("Split View Horizontal", "", e -> toggleSplitView(true)));
         viewMenu.add(createMenuItem("Split View Vertical", "", e -> toggleSplitView(false)));
+        viewMenu.addSeparator();
+        viewMenu.add(createMenuItem("Fold Block", "ctrl shift OPEN_BRACKET", e -> foldBlock()));
+        viewMenu.add(createMenuItem("Unfold Block", "ctrl shift CLOSE_BRACKET", e -> unfoldBlock()));
+        viewMenu.add(createMenuItem("Unfold All", "", e -> unfoldAll()));
         
         // Settings menu
         JMenu settingsMenu = new JMenu("Settings");
@@ -165,9 +213,17 @@ public class AdvancedTextEditor extends JFrame {
         settingsMenu.add(autoIndentItem);
         
         JCheckBoxMenuItem autoSaveItem = new JCheckBoxMenuItem("Auto Save", autoSave);
-        autoSaveItem.addActionListener(e -> autoSave = autoSaveItem.isSelected());
+        autoSaveItem.setToolTipText("Keep a journal of unsaved edits to recover them after a crash");
+        autoSaveItem.addActionListener(e -> {
+            autoSave = autoSaveItem.isSelected();
+            if (!autoSave) {
+                discardJournals();
+            }
+        });
         settingsMenu.add(autoSaveItem);
         
+        settingsMenu.add(createMenuItem("Large File Threshold...", "", e -> configureLargeFileThreshold()));
+        
         settingsMenu.addSeparator();
         
         JMenu themeMenu = new JMenu("Themes");
@@ -183,6 +239,7 @@ public class AdvancedTextEditor extends JFrame {
         
         // Help menu
         JMenu helpMenu = new JMenu("Help");
+        helpMenu.add(createMenuItem("Diagnostics...", "", e -> showDiagnostics()));
         helpMenu.add(createMenuItem("About", "", e -> showAbout()));
         
         menuBar.add(fileMenu);
@@ -265,48 +322,246 @@ public class AdvancedTextEditor extends JFrame {
         }
     }
     
+    // Per-user folder for indexes and other state kept between runs
+    static Path dataDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".advanced-text-editor");
+    }
+    
     // Public method for external access (e.g., from FileExplorerDialog)
     public void openFileExternal(File file) {
         openFileInBackground(file);
     }
     
+    // Switches to the file's tab, opening it first if needed, and moves to a 1-based line
+    public void openFileExternal(File file, long line) {
+        EditorTab tab = findTab(file);
+        if (tab == null) {
+            openFileInBackground(file);
+            tab = findTab(file);
+        } else {
+            tabbedPane.setSelectedComponent(tab);
+        }
+        if (tab != null) {
+            tab.goToLine(line);
+        }
+    }
+    
+    private EditorTab findTab(File file) {
+        File target = file.getAbsoluteFile();
+        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+            Component component = tabbedPane.getComponentAt(i);
+            if (component instanceof EditorTab) {
+                EditorTab tab = (EditorTab) component;
+                if (tab.getFile() != null && tab.getFile().getAbsoluteFile().equals(target)) {
+                    return tab;
+                }
+            }
+        }
+        return null;
+    }
+    
+    private void configureLargeFileThreshold() {
+        String input = JOptionPane.showInputDialog(this,
+            "Open files at or above this size (MB) read-only through a memory mapping:",
+            largeFileThreshold / (1024 * 1024));
+        if (input != null) {
+            try {
+                largeFileThreshold = Math.max(1, Long.parseLong(input.trim())) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                showErrorDialog("Please enter a whole number of megabytes");
+            }
+        }
+    }
+    
     private void openFileInBackground(File file) {
-        SwingWorker<String, Void> worker = new SwingWorker<String, Void>() {
+        if (file.length() >= largeFileThreshold) {
+            openLargeFile(file);
+            return;
+        }
+        
+        // The tab shows up right away and fills in as decoded chunks arrive
+        EditorTab tab = new EditorTab(AdvancedTextEditor.this);
+        tab.setFile(file);
+        
+        String tabTitle = file.getName();
+        tabbedPane.addTab(tabTitle, tab);
+        tabbedPane.setSelectedComponent(tab);
+        
+        int tabIndex = tabbedPane.indexOfComponent(tab);
+        tabbedPane.setTabComponentAt(tabIndex, new TabComponent(tabTitle, () -> closeTab(tabIndex)));
+        updateWatchedTabs();
+        loadFile(tab, file, null);
+    }
+    
+    // Streams a file into a tab; a restored session tab also gets its caret, scroll position and cached highlighting back
+    private void loadFile(EditorTab tab, File file, SessionStore.Entry entry) {
+        tab.beginLoading();
+        updateStatus();
+        
+        SwingWorker<String, String> worker = new SwingWorker<String, String>() {
+            private SessionStore.Tokens tokens;
+            
             @Override
             protected String doInBackground() throws Exception {
-                return new String(Files.readAllBytes(file.toPath()));
+                tokens = SessionStore.loadTokens(file);
+                try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    java.nio.ByteBuffer head = java.nio.ByteBuffer.allocate(TextEncoding.SNIFF_BYTES);
+                    while (head.hasRemaining() && channel.read(head) > 0) {
+                        // Fill the sample
+                    }
+                    TextEncoding encoding = TextEncoding.detect(head.array(), head.position());
+                    SwingUtilities.invokeLater(() -> tab.setEncoding(encoding));
+                    channel.position(encoding.bomLength);
+                    
+                    java.nio.charset.CharsetDecoder decoder = encoding.charset.newDecoder()
+                        .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE);
+                    Reader reader = java.nio.channels.Channels.newReader(channel, decoder, -1);
+                    
+                    // Line breaks are normalized to \n as the editor kit would, remembering the first style seen
+                    char[] buffer = new char[64 * 1024];
+                    String lineSeparator = null;
+                    boolean pendingReturn = false;
+                    int read;
+                    while ((read = reader.read(buffer)) != -1 && !isCancelled()) {
+                        StringBuilder chunk = new StringBuilder(read);
+                        for (int i = 0; i < read; i++) {
+                            char c = buffer[i];
+                            if (pendingReturn) {
+                                pendingReturn = false;
+                                if (c == '\n') {
+                                    if (lineSeparator == null) lineSeparator = "\r\n";
+                                    continue;
+                                }
+                                if (lineSeparator == null) lineSeparator = "\r";
+                            }
+                            if (c == '\r') {
+                                pendingReturn = true;
+                                chunk.append('\n');
+                            } else {
+                                if (c == '\n' && lineSeparator == null) lineSeparator = "\n";
+                                chunk.append(c);
+                            }
+                        }
+                        publish(chunk.toString());
+                        setProgress(size == 0 ? 100 : (int) Math.min(100, channel.position() * 100 / size));
+                    }
+                    if (pendingReturn && lineSeparator == null) {
+                        lineSeparator = "\r";
+                    }
+                    return lineSeparator;
+                }
+            }
+            
+            @Override
+            protected void process(List<String> chunks) {
+                tab.appendLoadedText(chunks.size() == 1 ? chunks.get(0) : String.join("", chunks));
             }
             
             @Override
             protected void done() {
                 try {
-                    String content = get();
-                    EditorTab tab = new EditorTab(AdvancedTextEditor.this);
-                    tab.setFile(file);
-                    tab.setText(content);
-                    tab.setModified(false);
-                    
-                    String tabTitle = file.getName();
-                    tabbedPane.addTab(tabTitle, tab);
-                    tabbedPane.setSelectedComponent(tab);
-                    
-                    int tabIndex = tabbedPane.indexOfComponent(tab);
-                    tabbedPane.setTabComponentAt(tabIndex, new TabComponent(tabTitle, () -> closeTab(tabIndex)));
-                    
+                    tab.finishLoading(get());
+                    if (tokens != null) {
+                        tab.applyCachedTokens(tokens);
+                    }
+                    if (entry != null) {
+                        tab.restoreSessionView(entry);
+                    }
                     addToRecentFiles(file.getAbsolutePath());
                     currentDirectory = file.getParentFile();
                     updateStatus();
                 } catch (InterruptedException | ExecutionException e) {
+                    int index = tabbedPane.indexOfComponent(tab);
+                    if (index >= 0) {
+                        tabbedPane.removeTabAt(index);
+                    }
+                    updateWatchedTabs();
                     showErrorDialog("Error opening file: " + e.getCause().getMessage());
                 }
             }
         };
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                tab.setLoadProgress((Integer) e.getNewValue());
+                updateStatus();
+            }
+        });
         worker.execute();
     }
     
+    // Maps the file instead of reading it; lines are indexed in the background while the first screen shows
+    private void openLargeFile(File file) {
+        MappedTextFile mappedFile = mapLargeFile(file);
+        if (mappedFile == null) {
+            return;
+        }
+        
+        EditorTab tab = new EditorTab(AdvancedTextEditor.this);
+        tab.setFile(file);
+        
+        String tabTitle = file.getName();
+        tabbedPane.addTab(tabTitle, tab);
+        tabbedPane.setSelectedComponent(tab);
+        
+        int tabIndex = tabbedPane.indexOfComponent(tab);
+        tabbedPane.setTabComponentAt(tabIndex, new TabComponent(tabTitle, () -> closeTab(tabIndex)));
+        showLargeFile(tab, mappedFile);
+    }
+    
+    private MappedTextFile mapLargeFile(File file) {
+        try {
+            TextEncoding encoding = TextEncoding.detect(file);
+            if (!encoding.isAsciiCompatible()) {
+                showErrorDialog(file.getName() + " is encoded as " + encoding + ", which the large file view cannot show.\n"
+                    + "Files in this encoding open only below the large file threshold of "
+                    + largeFileThreshold / (1024 * 1024) + " MB.");
+                return null;
+            }
+            return MappedTextFile.open(file, encoding);
+        } catch (IOException e) {
+            showErrorDialog("Error opening file: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private void showLargeFile(EditorTab tab, MappedTextFile mappedFile) {
+        File file = mappedFile.getFile();
+        tab.showLargeFile(mappedFile, tabSize);
+        addToRecentFiles(file.getAbsolutePath());
+        currentDirectory = file.getParentFile();
+        updateWatchedTabs();
+        updateStatus();
+        
+        SwingWorker<Void, Long> indexer = new SwingWorker<Void, Long>() {
+            @Override
+            protected Void doInBackground() {
+                mappedFile.buildIndex(lines -> publish(lines));
+                return null;
+            }
+            
+            @Override
+            protected void process(List<Long> chunks) {
+                tab.getLargeFileView().updateScrollBars();
+                updateStatus();
+            }
+            
+            @Override
+            protected void done() {
+                tab.getLargeFileView().updateScrollBars();
+                tab.applyPendingLine();
+                updateStatus();
+            }
+        };
+        indexer.execute();
+    }
+    
     private void saveFile() {
         EditorTab currentTab = getCurrentTab();
-        if (currentTab != null) {
+        if (currentTab != null && currentTab.isLargeFile()) {
+            showErrorDialog("Large files are opened read-only");
+        } else if (currentTab != null) {
             if (currentTab.getFile() != null) {
                 saveToFileInBackground(currentTab, currentTab.getFile());
             } else {
@@ -323,6 +578,7 @@ public class AdvancedTextEditor extends JFrame {
                 File file = fileChooser.getSelectedFile();
                 saveToFileInBackground(currentTab, file);
                 currentTab.setFile(file);
+                updateWatchedTabs();
                 
                 // Update tab title
                 int tabIndex = tabbedPane.getSelectedIndex();
@@ -336,29 +592,66 @@ public class AdvancedTextEditor extends JFrame {
     }
     
     private void saveToFileInBackground(EditorTab tab, File file) {
-        String content = tab.getText();
+        TextSnapshot content = tab.getTextSnapshot();
+        TextEncoding encoding = tab.getEncoding();
+        String lineSeparator = tab.getLineSeparator();
+        tab.setSaving(true);
         SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                Files.write(file.toPath(), content.getBytes());
+                // Encodes straight from the snapshot in the charset the file was read with
+                AtomicFileWriter.write(file.toPath(), out -> {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, encoding.charset.newEncoder()));
+                    if (encoding.bom) {
+                        writer.write('\uFEFF');
+                    }
+                    content.writeTo(writer, lineSeparator);
+                    writer.flush();
+                });
                 return null;
             }
             
             @Override
             protected void done() {
+                tab.setSaving(false);
                 try {
                     get();
                     tab.setModified(false);
+                    tab.recordDiskState();
                     addToRecentFiles(file.getAbsolutePath());
+                    if (fileExplorerDialog != null) {
+                        fileExplorerDialog.fileSaved(file);
+                    }
                     updateStatus();
                 } catch (InterruptedException | ExecutionException e) {
-                    showErrorDialog("Error saving file: " + e.getCause().getMessage());
+                    if (e.getCause() instanceof java.nio.charset.CharacterCodingException) {
+                        encodingFailed(tab, file, encoding);
+                    } else {
+                        showErrorDialog("Error saving file: " + e.getCause().getMessage());
+                    }
                 }
             }
         };
         worker.execute();
     }
     
+    // The text holds characters the file's charset has no bytes for; the file on disk was left as it was
+    private void encodingFailed(EditorTab tab, File file, TextEncoding encoding) {
+        if (encoding.charset.equals(java.nio.charset.StandardCharsets.UTF_8)) {
+            showErrorDialog("Error saving file: the text contains characters that cannot be written as UTF-8, "
+                + "such as an unpaired surrogate.");
+            return;
+        }
+        int option = JOptionPane.showConfirmDialog(this,
+            file.getName() + " is saved as " + encoding + ", which cannot hold some of the characters in it.\n"
+                + "Save it as UTF-8 instead?",
+            "Save as UTF-8", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+        if (option == JOptionPane.YES_OPTION) {
+            tab.setEncoding(new TextEncoding(java.nio.charset.StandardCharsets.UTF_8, false, 0));
+            saveToFileInBackground(tab, file);
+        }
+    }
+    
     private void closeTab(int index) {
         if (index >= 0 && index < tabbedPane.getTabCount()) {
             EditorTab tab = (EditorTab) tabbedPane.getComponentAt(index);
@@ -371,10 +664,14 @@ public class AdvancedTextEditor extends JFrame {
                     saveFile();
                 } else if (option == JOptionPane.CANCEL_OPTION) {
                     return;
+                } else {
+                    tab.discardJournal();
                 }
             }
             
             tabbedPane.removeTabAt(index);
+            tab.discardHistory();
+            updateWatchedTabs();
             
             if (tabbedPane.getTabCount() == 0) {
                 newFile();
@@ -382,6 +679,255 @@ public class AdvancedTextEditor extends JFrame {
         }
     }
     
+    // Keeps one watch on each folder that holds an open file
+    private void updateWatchedTabs() {
+        Set<Path> directories = new HashSet<>();
+        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+            Component component = tabbedPane.getComponentAt(i);
+            if (component instanceof EditorTab && ((EditorTab) component).getFile() != null) {
+                File directory = ((EditorTab) component).getFile().getAbsoluteFile().getParentFile();
+                if (directory != null) {
+                    directories.add(directory.toPath().normalize());
+                }
+            }
+        }
+        for (Path directory : watchedTabDirectories) {
+            if (!directories.contains(directory)) {
+                fileWatcher.unwatch(directory);
+            }
+        }
+        for (Path directory : directories) {
+            if (!watchedTabDirectories.contains(directory)) {
+                fileWatcher.watch(directory);
+            }
+        }
+        watchedTabDirectories = directories;
+    }
+    
+    // One call per burst of disk events: clean tabs reload, edited or read-only ones are marked as changed on disk
+    private void filesChanged(Set<Path> paths) {
+        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+            Component component = tabbedPane.getComponentAt(i);
+            if (!(component instanceof EditorTab) || ((EditorTab) component).getFile() == null) {
+                continue;
+            }
+            EditorTab tab = (EditorTab) component;
+            if (tab.isDeferred()) {
+                continue;
+            }
+            Path path = tab.getFile().toPath().toAbsolutePath().normalize();
+            if ((paths.contains(path) || paths.contains(path.getParent())) && !tab.isSaving() && !tab.isDiskStateCurrent()) {
+                if (tab.isModified() || tab.isLargeFile() || tab.getLoadProgress() >= 0 || !tab.getFile().isFile()) {
+                    tab.setChangedOnDisk(true);
+                } else {
+                    reloadTab(tab);
+                }
+            }
+        }
+        if (fileExplorerDialog != null) {
+            fileExplorerDialog.filesChanged(paths);
+        }
+        updateStatus();
+    }
+    
+    private void reloadTab(EditorTab tab) {
+        File file = tab.getFile();
+        SwingWorker<String, Void> worker = new SwingWorker<String, Void>() {
+            private TextEncoding encoding;
+            
+            @Override
+            protected String doInBackground() throws IOException {
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                encoding = TextEncoding.detect(bytes, Math.min(bytes.length, TextEncoding.SNIFF_BYTES));
+                return encoding.decode(bytes);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    String text = get();
+                    // An edit made while the file was read wins over the disk copy
+                    if (tab.isModified() || tab.getFile() != file) {
+                        tab.setChangedOnDisk(true);
+                    } else {
+                        tab.reloadText(text, encoding);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    tab.setChangedOnDisk(true);
+                }
+                updateStatus();
+            }
+        };
+        worker.execute();
+    }
+    
+    // Only tabs in the tab strip keep a journal
+    public boolean isJournaled(EditorTab tab) {
+        return autoSave && tabbedPane.indexOfComponent(tab) >= 0;
+    }
+    
+    private void discardJournals() {
+        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+            Component component = tabbedPane.getComponentAt(i);
+            if (component instanceof EditorTab) {
+                ((EditorTab) component).discardJournal();
+            }
+        }
+    }
+    
+    // Reopens tabs whose unsaved edits a previous run left in journals when it did not exit cleanly
+    private void recoverUnsavedTabs() {
+        SwingWorker<List<EditJournal.Recovery>, Void> worker = new SwingWorker<List<EditJournal.Recovery>, Void>() {
+            @Override
+            protected List<EditJournal.Recovery> doInBackground() {
+                return EditJournal.recover();
+            }
+            
+            @Override
+            protected void done() {
+                List<EditJournal.Recovery> recovered;
+                try {
+                    recovered = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    return;
+                }
+                List<String> lost = new ArrayList<>();
+                for (EditJournal.Recovery recovery : recovered) {
+                    if (recovery.text == null) {
+                        lost.add(recovery.file != null ? recovery.file.getPath() : recovery.journal.getFileName().toString());
+                        EditJournal.discard(recovery);
+                    } else {
+                        openRecoveredTab(recovery);
+                    }
+                }
+                if (!lost.isEmpty()) {
+                    showErrorDialog("Unsaved changes could not be recovered because the file changed on disk:\n"
+                        + String.join("\n", lost));
+                }
+            }
+        };
+        worker.execute();
+    }
+    
+    private void openRecoveredTab(EditJournal.Recovery recovery) {
+        // The blank tab every start opens with gives way to the recovered work
+        if (tabbedPane.getTabCount() == 1 && tabbedPane.getComponentAt(0) instanceof EditorTab) {
+            EditorTab blank = (EditorTab) tabbedPane.getComponentAt(0);
+            if (blank.getFile() == null && !blank.isModified() && blank.getTextPane().getDocument().getLength() == 0) {
+                tabbedPane.removeTabAt(0);
+            }
+        }
+        // A session tab for the same file has not been read yet and is replaced outright
+        EditorTab restored = recovery.file != null ? findTab(recovery.file) : null;
+        if (restored != null && restored.isDeferred()) {
+            tabbedPane.remove(restored);
+        }
+        EditorTab tab = new EditorTab(this);
+        if (recovery.file != null) {
+            tab.setFile(recovery.file);
+        }
+        String tabTitle = recovery.file != null ? recovery.file.getName() : "Untitled " + (tabbedPane.getTabCount() + 1);
+        tabbedPane.addTab(tabTitle, tab);
+        tab.restoreText(recovery);
+        tabbedPane.setSelectedComponent(tab);
+        
+        int tabIndex = tabbedPane.indexOfComponent(tab);
+        tabbedPane.setTabComponentAt(tabIndex, new TabComponent(tabTitle, () -> closeTab(tabIndex)));
+        updateWatchedTabs();
+        updateStatus();
+    }
+    
+    // Session tabs come back as empty placeholders; only the selected one is read from disk right away
+    private boolean restoreSession() {
+        List<SessionStore.Entry> entries = new ArrayList<>();
+        int selected = SessionStore.load(entries);
+        EditorTab selectedTab = null;
+        restoringSession = true;
+        for (int i = 0; i < entries.size(); i++) {
+            SessionStore.Entry entry = entries.get(i);
+            if (!entry.file.isFile() || findTab(entry.file) != null) {
+                continue;
+            }
+            EditorTab tab = new EditorTab(this);
+            tab.setFile(entry.file);
+            tab.setDeferred(entry);
+            
+            String tabTitle = entry.file.getName();
+            tabbedPane.addTab(tabTitle, tab);
+            int tabIndex = tabbedPane.indexOfComponent(tab);
+            tabbedPane.setTabComponentAt(tabIndex, new TabComponent(tabTitle, () -> closeTab(tabIndex)));
+            if (i == selected || selectedTab == null) {
+                selectedTab = tab;
+            }
+        }
+        restoringSession = false;
+        if (selectedTab == null) {
+            return false;
+        }
+        tabbedPane.setSelectedComponent(selectedTab);
+        materializeSelectedTab();
+        updateWatchedTabs();
+        return true;
+    }
+    
+    // Reads a session tab the first time it is shown
+    private void materializeSelectedTab() {
+        EditorTab tab = getCurrentTab();
+        if (restoringSession || tab == null || !tab.isDeferred()) {
+            return;
+        }
+        SessionStore.Entry entry = tab.takeDeferred();
+        if (entry.file.length() < largeFileThreshold) {
+            loadFile(tab, entry.file, entry);
+            return;
+        }
+        MappedTextFile mappedFile = mapLargeFile(entry.file);
+        if (mappedFile == null) {
+            tabbedPane.remove(tab);
+            updateWatchedTabs();
+            return;
+        }
+        showLargeFile(tab, mappedFile);
+        if (entry.large) {
+            tab.goToLine(entry.caret + 1);
+        }
+    }
+    
+    // Token caches are written only for files whose highlighting is complete and not cached already
+    private void saveSession() {
+        List<SessionStore.Entry> entries = new ArrayList<>();
+        int selected = -1;
+        for (int i = 0; i < tabbedPane.getTabCount(); i++) {
+            Component component = tabbedPane.getComponentAt(i);
+            SessionStore.Entry entry = component instanceof EditorTab ? ((EditorTab) component).getSessionEntry() : null;
+            if (entry == null) {
+                continue;
+            }
+            if (i == tabbedPane.getSelectedIndex()) {
+                selected = entries.size();
+            }
+            entries.add(entry);
+            
+            SessionStore.Tokens tokens = ((EditorTab) component).captureTokens();
+            if (tokens != null && !SessionStore.hasTokens(entry.file)) {
+                try {
+                    SessionStore.saveTokens(entry.file, tokens);
+                } catch (IOException e) {
+                    // That tab is lexed again next time
+                }
+            }
+        }
+        try {
+            SessionStore.save(entries, selected);
+        } catch (IOException e) {
+            // The next start opens an empty tab instead
+        }
+    }
+    
+    public FileWatcher getFileWatcher() {
+        return fileWatcher;
+    }
+    
     private EditorTab getCurrentTab() {
         Component selected = tabbedPane.getSelectedComponent();
         return selected instanceof EditorTab ? (EditorTab) selected : null;
@@ -471,6 +1017,11 @@ public class AdvancedTextEditor extends JFrame {
         fileExplorerDialog.setVisible(true);
     }
     
+    private void showFindInFiles() {
+        showFileExplorer();
+        fileExplorerDialog.focusSearch();
+    }
+    
     private void showTerminal() {
         if (terminalDialog == null) {
             terminalDialog = new TerminalDialog(this);
@@ -478,6 +1029,13 @@ public class AdvancedTextEditor extends JFrame {
         terminalDialog.setVisible(true);
     }
     
+    private void showDiagnostics() {
+        if (diagnosticsDialog == null) {
+            diagnosticsDialog = new DiagnosticsDialog(this);
+        }
+        diagnosticsDialog.setVisible(true);
+    }
+    
     private void showAbout() {
         String message = "Advanced Java Text Editor\n\n" +
                         "A feature-rich text editor built with Java Swing\n" +
@@ -516,39 +1074,38 @@ public class AdvancedTextEditor extends JFrame {
                 break;
             }
         }
+        saveSession();
+        discardJournals();
+        EditJournal.awaitIdle();
         System.exit(0);
     }
     
+    private void foldBlock() {
+        EditorTab currentTab = getCurrentTab();
+        if (currentTab != null) {
+            currentTab.foldBlock();
+        }
+    }
+    
+    private void unfoldBlock() {
+        EditorTab currentTab = getCurrentTab();
+        if (currentTab != null) {
+            currentTab.unfoldBlock();
+        }
+    }
+    
+    private void unfoldAll() {
+        EditorTab currentTab = getCurrentTab();
+        if (currentTab != null) {
+            currentTab.unfoldAll();
+        }
+    }
+    
+    // Splits the current tab into two views of its one document
     private void toggleSplitView(boolean horizontal) {
-        splitView = !splitView;
-        
-        if (splitView && tabbedPane.getTabCount() > 1) {
-            EditorTab currentTab = getCurrentTab();
-            if (currentTab != null) {
-                splitPane = new JSplitPane(
-                    horizontal ? JSplitPane.HORIZONTAL_SPLIT : JSplitPane.VERTICAL_SPLIT);
-                
-                // Create a copy of the current tab for the split view
-                EditorTab splitTab = new EditorTab(this);
-                splitTab.setText(currentTab.getText());
-                
-                splitPane.setLeftComponent(new JScrollPane(currentTab.getTextPane()));
-                splitPane.setRightComponent(new JScrollPane(splitTab.getTextPane()));
-                splitPane.setDividerLocation(0.5);
-                splitPane.setResizeWeight(0.5);
-                
-                remove(tabbedPane);
-                add(splitPane, BorderLayout.CENTER);
-                revalidate();
-                repaint();
-            }
-        } else {
-            if (splitPane != null) {
-                remove(splitPane);
-                add(tabbedPane, BorderLayout.CENTER);
-                revalidate();
-                repaint();
-            }
+        EditorTab currentTab = getCurrentTab();
+        if (currentTab != null) {
+            currentTab.toggleSplit(horizontal);
         }
     }
     
@@ -614,16 +1171,39 @@ public class AdvancedTextEditor extends JFrame {
         }
     }
     
+    public void scheduleStatusUpdate() {
+        if (!statusTimer.isRunning()) {
+            statusTimer.start();
+        }
+    }
+    
     public void updateStatus() {
+        long start = System.nanoTime();
         EditorTab currentTab = getCurrentTab();
-        if (currentTab != null) {
-            String text = currentTab.getText();
-            int characters = text.length();
-            int lines = text.isEmpty() ? 1 : text.split("\n", -1).length;
-            int caretPos = currentTab.getTextPane().getCaretPosition();
+        if (currentTab != null && currentTab.isLargeFile()) {
+            LargeFileView view = currentTab.getLargeFileView();
+            MappedTextFile mappedFile = view.getMappedFile();
+            statusLabel.setText(String.format("Bytes: %d | Lines: %d%s | Line: %d | Read-only large file | File: %s",
+                mappedFile.size(), mappedFile.getLineCount(), mappedFile.isIndexed() ? "" : " (indexing...)",
+                view.getCaretLine() + 1, mappedFile.getFile().getName())
+                + (currentTab.isChangedOnDisk() ? " | Changed on disk" : ""));
+        } else if (currentTab != null) {
+            DocumentMetrics metrics = currentTab.getMetrics();
+            JTextPane textPane = currentTab.getTextPane();
+            int caretPos = textPane.getCaretPosition();
+            int selection = Math.abs(textPane.getCaret().getDot() - textPane.getCaret().getMark());
+            
+            String status = String.format("Ln %d, Col %d | Characters: %d | Lines: %d | Words: %d",
+                metrics.lineOf(caretPos) + 1, metrics.columnOf(caretPos) + 1,
+                metrics.getCharacters(), metrics.getLines(), metrics.getWords());
+            if (selection > 0) {
+                status += " | Selected: " + selection;
+            }
+            status += String.format(" | Language: %s | %s", currentTab.getLanguage(), currentTab.getEncoding());
             
-            String status = String.format("Characters: %d | Lines: %d | Cursor: %d | Language: %s",
-                characters, lines, caretPos, currentTab.getLanguage());
+            if (currentTab.getLoadProgress() >= 0) {
+                status = "Loading " + currentTab.getLoadProgress() + "% | " + status;
+            }
             
             if (currentTab.getFile() != null) {
                 status += " | File: " + currentTab.getFile().getName();
@@ -633,8 +1213,13 @@ public class AdvancedTextEditor extends JFrame {
                 status += " | Modified";
             }
             
+            if (currentTab.isChangedOnDisk()) {
+                status += " | Changed on disk";
+            }
+            
             statusLabel.setText(status);
         }
+        EditorDiagnostics.record(EditorDiagnostics.STATUS, start);
     }
     
     private void showErrorDialog(String message) {
@@ -653,6 +1238,7 @@ public class AdvancedTextEditor extends JFrame {
     public int getFontSize() { return fontSize; }
     public boolean getShowLineNumbers() { return showLineNumbers; }
     public boolean getWordWrap() { return wordWrap; }
+    public boolean getShowMinimap() { return showMinimap; }
     
     public void setBackgroundColor(Color color) { backgroundColor = color; applyTheme("Custom"); }
     public void setTextColor(Color color) { textColor = color; applyTheme("Custom"); }
@@ -676,11 +1262,427 @@ public class AdvancedTextEditor extends JFrame {
     }
 }
 
+// Latencies bucketed HDR-style: values below 64 microseconds are counted exactly, above that each power of two is
+// split into 32 sub-buckets, so any value is reported within about 3% while the counts stay a fixed few KB.
+// Safe to record from any thread.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+    private static final long MAX_MICROS = (1L << 40) - 1;
+    
+    private final String name;
+    private final java.util.concurrent.atomic.AtomicLongArray counts =
+        new java.util.concurrent.atomic.AtomicLongArray(indexOf(MAX_MICROS) + 1);
+    private final java.util.concurrent.atomic.AtomicLong total = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong sum = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong max = new java.util.concurrent.atomic.AtomicLong();
+    
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void record(long nanos) {
+        long micros = Math.max(0, Math.min(nanos / 1000, MAX_MICROS));
+        counts.incrementAndGet(indexOf(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+    
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+    
+    public long getCount() {
+        return total.get();
+    }
+    
+    public long getMeanMicros() {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / count;
+    }
+    
+    public long getMaxMicros() {
+        return max.get();
+    }
+    
+    // Highest value in the bucket holding the given percentile, never above the largest value recorded
+    public long percentileMicros(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return shift * HALF_BUCKETS + (int) (micros >> shift);
+    }
+    
+    private static long highestInBucket(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_BUCKETS - 1;
+        long subBucket = index % HALF_BUCKETS + HALF_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+// Where the editor's time goes: histograms for the work done on every keystroke, and a watchdog that takes the EDT's
+// stack whenever the event queue goes unanswered for longer than STALL_MILLIS. Every sample is also committed as a JFR
+// event, which costs next to nothing unless a recording is running.
+final class EditorDiagnostics {
+    static final long STALL_MILLIS = 100;
+    private static final long WATCHDOG_PERIOD_MILLIS = 50;
+    private static final long KEY_TIMEOUT_NANOS = 1_000_000_000L;
+    private static final int MAX_STALLS = 32;
+    private static final int MAX_EVENT_FRAMES = 64;
+    
+    static final LatencyHistogram KEYSTROKE = new LatencyHistogram("Keystroke to paint");
+    static final LatencyHistogram HIGHLIGHT = new LatencyHistogram("Highlight slice (EDT)");
+    static final LatencyHistogram LEX = new LatencyHistogram("Lex pass (background)");
+    static final LatencyHistogram STATUS = new LatencyHistogram("updateStatus");
+    static final LatencyHistogram LINE_NUMBERS = new LatencyHistogram("Line number paint");
+    static final LatencyHistogram EVENT_QUEUE = new LatencyHistogram("Event queue delay");
+    static final LatencyHistogram[] HISTOGRAMS = { KEYSTROKE, HIGHLIGHT, LEX, STATUS, LINE_NUMBERS, EVENT_QUEUE };
+    
+    // Most recent stalls first
+    private static final Deque<Stall> stalls = new ArrayDeque<>();
+    private static boolean installed;
+    private static volatile Thread eventThread;
+    
+    // The key press still waiting for its paint, and whether it has changed anything to paint yet (EDT only)
+    private static long keyPressed;
+    private static boolean keyHandled;
+    
+    private EditorDiagnostics() {
+    }
+    
+    static void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        Thread thread = new Thread(EditorDiagnostics::watch, "edt-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    static void record(LatencyHistogram histogram, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        histogram.record(nanos);
+        LatencyEvent event = new LatencyEvent();
+        if (event.isEnabled()) {
+            event.operation = histogram.getName();
+            event.latency = nanos;
+            event.commit();
+        }
+    }
+    
+    static void keyPressed(KeyEvent e) {
+        switch (e.getKeyCode()) {
+            case KeyEvent.VK_SHIFT: case KeyEvent.VK_CONTROL: case KeyEvent.VK_ALT: case KeyEvent.VK_META:
+            case KeyEvent.VK_ALT_GRAPH: case KeyEvent.VK_CAPS_LOCK:
+                return;
+        }
+        // A key that changed nothing is forgotten; one still waiting for its paint keeps the earliest time
+        if (!keyHandled) {
+            keyPressed = System.nanoTime();
+        }
+    }
+    
+    // The text or caret of an editor changed, so the next paint shows the pending key press
+    static void viewChanged() {
+        if (keyPressed != 0 && System.nanoTime() - keyPressed < KEY_TIMEOUT_NANOS) {
+            keyHandled = true;
+        }
+    }
+    
+    static void painted() {
+        if (keyHandled) {
+            record(KEYSTROKE, keyPressed);
+            keyPressed = 0;
+            keyHandled = false;
+        }
+    }
+    
+    // Posts a heartbeat and waits for it; one that takes too long means the EDT is busy with something else, so that
+    // something is caught in the act. Nothing is posted while no window is showing, which lets AWT shut down.
+    private static void watch() {
+        while (true) {
+            if (!isShowingWindow()) {
+                try {
+                    Thread.sleep(WATCHDOG_PERIOD_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            long posted = System.nanoTime();
+            java.util.concurrent.CountDownLatch answered = new java.util.concurrent.CountDownLatch(1);
+            EventQueue.invokeLater(() -> {
+                eventThread = Thread.currentThread();
+                record(EVENT_QUEUE, posted);
+                answered.countDown();
+            });
+            try {
+                if (!answered.await(STALL_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                    Thread thread = eventThread;
+                    StackTraceElement[] stack = thread != null ? thread.getStackTrace() : new StackTraceElement[0];
+                    answered.await();
+                    long nanos = System.nanoTime() - posted;
+                    addStall(new Stall(System.currentTimeMillis() - nanos / 1_000_000, nanos, stack));
+                }
+                Thread.sleep(WATCHDOG_PERIOD_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private static boolean isShowingWindow() {
+        for (Window window : Window.getWindows()) {
+            if (window.isShowing()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static void addStall(Stall stall) {
+        synchronized (stalls) {
+            stalls.addFirst(stall);
+            if (stalls.size() > MAX_STALLS) {
+                stalls.removeLast();
+            }
+        }
+        StallEvent event = new StallEvent();
+        if (event.isEnabled()) {
+            stall.fill(event);
+            event.commit();
+        }
+    }
+    
+    static List<Stall> getStalls() {
+        synchronized (stalls) {
+            return new ArrayList<>(stalls);
+        }
+    }
+    
+    static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        synchronized (stalls) {
+            stalls.clear();
+        }
+    }
+    
+    // Percentiles in milliseconds, then the stalls with the stacks they were caught in
+    static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-24s %8s %9s %9s %9s %9s %9s %9s%n",
+            "Operation (ms)", "Count", "Mean", "p50", "p90", "p99", "p99.9", "Max"));
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            report.append(String.format("%-24s %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                histogram.getName(), histogram.getCount(), histogram.getMeanMicros() / 1000.0,
+                histogram.percentileMicros(50) / 1000.0, histogram.percentileMicros(90) / 1000.0,
+                histogram.percentileMicros(99) / 1000.0, histogram.percentileMicros(99.9) / 1000.0,
+                histogram.getMaxMicros() / 1000.0));
+        }
+        
+        List<Stall> recent = getStalls();
+        report.append(String.format("%nEDT stalls over %d ms: %d%n", STALL_MILLIS, recent.size()));
+        java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("HH:mm:ss.SSS");
+        for (Stall stall : recent) {
+            report.append(String.format("%n%s  stalled %d ms%n", format.format(new Date(stall.time)),
+                stall.nanos / 1_000_000));
+            for (StackTraceElement frame : stall.stack) {
+                report.append("    at ").append(frame).append('\n');
+            }
+        }
+        return report.toString();
+    }
+    
+    // Writes the current histograms and stalls to a JFR file that JDK Mission Control or `jfr print` can read
+    static void exportJfr(Path file) throws IOException {
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.enable(HistogramEvent.class);
+            recording.enable(StallEvent.class);
+            recording.setToDisk(true);
+            recording.start();
+            for (LatencyHistogram histogram : HISTOGRAMS) {
+                HistogramEvent event = new HistogramEvent();
+                event.operation = histogram.getName();
+                event.count = histogram.getCount();
+                event.mean = histogram.getMeanMicros();
+                event.p50 = histogram.percentileMicros(50);
+                event.p90 = histogram.percentileMicros(90);
+                event.p99 = histogram.percentileMicros(99);
+                event.p999 = histogram.percentileMicros(99.9);
+                event.max = histogram.getMaxMicros();
+                event.commit();
+            }
+            for (Stall stall : getStalls()) {
+                StallEvent event = new StallEvent();
+                stall.fill(event);
+                event.commit();
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+    }
+    
+    static class Stall {
+        final long time;
+        final long nanos;
+        final StackTraceElement[] stack;
+        
+        Stall(long time, long nanos, StackTraceElement[] stack) {
+            this.time = time;
+            this.nanos = nanos;
+            this.stack = stack;
+        }
+        
+        void fill(StallEvent event) {
+            event.stalledAt = time;
+            event.stall = nanos;
+            StringBuilder trace = new StringBuilder();
+            for (int i = 0; i < Math.min(stack.length, MAX_EVENT_FRAMES); i++) {
+                trace.append(stack[i]).append('\n');
+            }
+            event.edtStack = trace.toString();
+        }
+    }
+    
+    @jdk.jfr.Name("editor.Latency")
+    @jdk.jfr.Label("Editor Latency")
+    @jdk.jfr.Category("Editor")
+    static class LatencyEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Operation")
+        String operation;
+        @jdk.jfr.Label("Latency")
+        @jdk.jfr.Timespan
+        long latency;
+    }
+    
+    @jdk.jfr.Name("editor.LatencyHistogram")
+    @jdk.jfr.Label("Editor Latency Histogram")
+    @jdk.jfr.Category("Editor")
+    @jdk.jfr.StackTrace(false)
+    static class HistogramEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Operation")
+        String operation;
+        @jdk.jfr.Label("Count")
+        long count;
+        @jdk.jfr.Label("Mean")
+        @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+        long mean;
+        @jdk.jfr.Label("50th Percentile")
+        @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+        long p50;
+        @jdk.jfr.Label("90th Percentile")
+        @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+        long p90;
+        @jdk.jfr.Label("99th Percentile")
+        @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+        long p99;
+        @jdk.jfr.Label("99.9th Percentile")
+        @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+        long p999;
+        @jdk.jfr.Label("Max")
+        @jdk.jfr.Timespan(jdk.jfr.Timespan.MICROSECONDS)
+        long max;
+    }
+    
+    @jdk.jfr.Name("editor.EdtStall")
+    @jdk.jfr.Label("EDT Stall")
+    @jdk.jfr.Category("Editor")
+    @jdk.jfr.StackTrace(false)
+    static class StallEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Stalled At")
+        @jdk.jfr.Timestamp
+        long stalledAt;
+        @jdk.jfr.Label("Stall")
+        @jdk.jfr.Timespan
+        long stall;
+        @jdk.jfr.Label("EDT Stack Trace")
+        String edtStack;
+    }
+}
+
 // Syntax Highlighting Engine
 class SyntaxHighlighter {
     private Map<String, LanguageStyle> languageStyles;
     private String currentTheme;
     
+    // Lexing runs on one shared background thread against text snapshots
+    private static final int LOOKAHEAD_LINES = 256;
+    private static final long SLICE_NANOS = 8_000_000L;
+    
+    // Visible lines plus a margin are styled first, the rest fills in during idle time
+    private static final int CHUNK_LINES = 32;
+    private static final int VIEWPORT_MARGIN_LINES = 100;
+    private static final long IDLE_SLICE_NANOS = 4_000_000L;
+    private static final int IDLE_DELAY_MILLIS = 15;
+    
+    // Edits touching at most this many lines get their brackets rescanned at once, bigger ones wait for the lexer
+    private static final int RESCAN_LINES = 64;
+    private static final ExecutorService LEXER_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "syntax-lexer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    
+    // Lexer state at the start of each line and the range edited since the last pass
+    private final LineIntTable lineStates = new LineIntTable();
+    private Position damageStart;
+    private Position damageEnd;
+    private Runnable damageListener;
+    
+    // Brackets of each line as the lexer saw them, and the lexer of the language last highlighted
+    private BracketIndex brackets;
+    private LanguageLexer lexer;
+    
+    // Bumped on every edit and every full pass so stale snapshots can be dropped
+    private volatile int version;
+    private volatile int generation;
+    
+    // Lines currently shown in the editor viewport and the appliers still at work
+    private int visibleFirstLine = 0;
+    private int visibleLastLine = 50;
+    private final List<TokenApplier> appliers = new ArrayList<>();
+    private int jobsInFlight;
+    
+    // Style names by token type, which also lets styled text be read back as token runs
+    private static final String[] STYLE_NAMES = {
+        "default", "keyword", "string", "comment", "number", "operator", "htmlTag", "cssSelector"
+    };
+    
     public SyntaxHighlighter(String theme) {
         this.currentTheme = theme;
         this.languageStyles = new HashMap<>();
@@ -703,6 +1705,9 @@ class SyntaxHighlighter {
         javaStyle.commentColor = getColorForTheme("comment");
         javaStyle.numberColor = getColorForTheme("number");
         javaStyle.operatorColor = getColorForTheme("operator");
+        javaStyle.lineComment = "//";
+        javaStyle.blockCommentStart = "/*";
+        javaStyle.blockCommentEnd = "*/";
         languageStyles.put("Java", javaStyle);
         
         // Python Language Style
@@ -717,6 +1722,8 @@ class SyntaxHighlighter {
         pythonStyle.commentColor = getColorForTheme("comment");
         pythonStyle.numberColor = getColorForTheme("number");
         pythonStyle.operatorColor = getColorForTheme("operator");
+        pythonStyle.lineComment = "#";
+        pythonStyle.tripleQuotedStrings = true;
         languageStyles.put("Python", pythonStyle);
         
         // JavaScript Language Style
@@ -735,6 +1742,10 @@ class SyntaxHighlighter {
         jsStyle.commentColor = getColorForTheme("comment");
         jsStyle.numberColor = getColorForTheme("number");
         jsStyle.operatorColor = getColorForTheme("operator");
+        jsStyle.lineComment = "//";
+        jsStyle.blockCommentStart = "/*";
+        jsStyle.blockCommentEnd = "*/";
+        jsStyle.templateStrings = true;
         languageStyles.put("JavaScript", jsStyle);
         
         // HTML Language Style
@@ -750,6 +1761,9 @@ class SyntaxHighlighter {
         htmlStyle.commentColor = getColorForTheme("comment");
         htmlStyle.numberColor = getColorForTheme("number");
         htmlStyle.operatorColor = getColorForTheme("operator");
+        htmlStyle.blockCommentStart = "<!--";
+        htmlStyle.blockCommentEnd = "-->";
+        htmlStyle.markupTags = true;
         languageStyles.put("HTML", htmlStyle);
         
         // CSS Language Style
@@ -764,7 +1778,15 @@ class SyntaxHighlighter {
         cssStyle.commentColor = getColorForTheme("comment");
         cssStyle.numberColor = getColorForTheme("number");
         cssStyle.operatorColor = getColorForTheme("operator");
+        cssStyle.blockCommentStart = "/*";
+        cssStyle.blockCommentEnd = "*/";
+        cssStyle.cssSelectors = true;
         languageStyles.put("CSS", cssStyle);
+        
+        // Compile every style once so highlighting never builds patterns on the hot path
+        for (LanguageStyle style : languageStyles.values()) {
+            style.lexer = new LanguageLexer(style);
+        }
     }
     
     private Color getColorForTheme(String type) {
@@ -817,177 +1839,535 @@ class SyntaxHighlighter {
     }
     
     public void highlightText(StyledDocument doc, String language) {
+        damageStart = null;
+        damageEnd = null;
+        generation++;
         if (!languageStyles.containsKey(language)) {
+            lexer = null;
             return;
         }
+        lexer = languageStyles.get(language).lexer;
         
-        LanguageStyle style = languageStyles.get(language);
-        String text = "";
+        Element root = doc.getDefaultRootElement();
+        lineStates.reset(root.getElementCount());
+        if (brackets != null && brackets.size() != root.getElementCount()) {
+            brackets.reset(root.getElementCount());
+        }
+        submit(doc, language, 0, root.getElementCount() - 1);
+    }
+    
+    // Newly exposed lines jump ahead of the idle backlog
+    public void viewportChanged(int firstLine, int lastLine) {
+        visibleFirstLine = firstLine;
+        visibleLastLine = lastLine;
+        for (TokenApplier applier : new ArrayList<>(appliers)) {
+            applier.wake();
+        }
+    }
+    
+    // Called when background work is handed back and the range needs another pass
+    public void setDamageListener(Runnable listener) {
+        this.damageListener = listener;
+    }
+    
+    public void setBracketIndex(BracketIndex brackets) {
+        this.brackets = brackets;
+    }
+    
+    // Track the lines touched by an edit so only that region is re-highlighted
+    public void documentChanged(DocumentEvent e) {
+        version++;
+        Document doc = e.getDocument();
+        Element root = doc.getDefaultRootElement();
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            // The first line keeps its start state, the edit happened after it began
+            int index = change.getIndex();
+            int firstState = lineStates.get(index);
+            lineStates.removeLines(index, change.getChildrenRemoved().length);
+            lineStates.insertLines(index, change.getChildrenAdded().length);
+            lineStates.set(index, firstState);
+            if (brackets != null) {
+                brackets.replaceLines(index, change.getChildrenRemoved().length, change.getChildrenAdded().length);
+            }
+        }
         
+        int start = e.getOffset();
+        int end = e.getType() == DocumentEvent.EventType.INSERT ? start + e.getLength() : start;
+        markDamaged(doc, start, end);
+        if (brackets != null) {
+            if (brackets.size() != root.getElementCount()) {
+                brackets.reset(root.getElementCount());
+            }
+            rescanBrackets(doc, root.getElementIndex(start), root.getElementIndex(end));
+        }
+    }
+    
+    // Gives edited lines their brackets right away so matching keeps up with typing. The lines are lexed from their
+    // current start states; if that changes how later lines start, the background pass corrects those.
+    private void rescanBrackets(Document doc, int firstLine, int lastLine) {
+        Element root = doc.getDefaultRootElement();
+        int lines = lastLine - firstLine + 1;
+        if (lexer == null || lines > RESCAN_LINES) {
+            brackets.setLines(firstLine, BracketIndex.build(new int[lines][], 0, lines));
+            return;
+        }
+        int base = root.getElement(firstLine).getStartOffset();
+        int[] lineStarts = new int[lines + 1];
+        int[] lineFirstToken = new int[lines + 1];
+        for (int i = 0; i < lines; i++) {
+            lineStarts[i] = root.getElement(firstLine + i).getStartOffset() - base;
+        }
+        lineStarts[lines] = Math.min(root.getElement(lastLine).getEndOffset(), doc.getLength()) - base;
+        char[] text;
         try {
-            text = doc.getText(0, doc.getLength());
+            text = doc.getText(base, lineStarts[lines]).toCharArray();
         } catch (BadLocationException e) {
             return;
         }
+        TokenRuns tokens = new TokenRuns();
+        int state = lineStates.get(firstLine);
+        for (int i = 0; i < lines; i++) {
+            lineFirstToken[i] = tokens.size();
+            state = lexer.lexLine(text, lineStarts[i], lineStarts[i + 1], base + lineStarts[i], state, tokens);
+        }
+        lineFirstToken[lines] = tokens.size();
+        brackets.setLines(firstLine, BracketIndex.scan(text, lineStarts, base, tokens, lineFirstToken, lines));
+    }
+    
+    private void markDamaged(Document doc, int start, int end) {
+        if (damageStart != null) {
+            start = Math.min(start, damageStart.getOffset());
+            end = Math.max(end, damageEnd.getOffset());
+        }
+        
+        try {
+            damageStart = doc.createPosition(Math.min(start, doc.getLength()));
+            damageEnd = doc.createPosition(Math.min(end, doc.getLength()));
+        } catch (BadLocationException ex) {
+            damageStart = null;
+            damageEnd = null;
+        }
+    }
+    
+    public void highlightDamaged(StyledDocument doc, String language) {
+        if (damageStart == null) {
+            return;
+        }
         
-        // Clear previous styles
-        Style defaultStyle = doc.addStyle("default", null);
-        StyleConstants.setForeground(defaultStyle, getColorForTheme("default"));
-        doc.setCharacterAttributes(0, doc.getLength(), defaultStyle, true);
+        int start = damageStart.getOffset();
+        int end = damageEnd.getOffset();
+        damageStart = null;
+        damageEnd = null;
         
-        // Highlight keywords
-        highlightKeywords(doc, text, style);
+        if (!languageStyles.containsKey(language)) {
+            return;
+        }
         
-        // Highlight strings
-        highlightStrings(doc, text, style);
+        Element root = doc.getDefaultRootElement();
+        if (lineStates.size() != root.getElementCount()) {
+            // Line states fell out of step with the document, start over
+            highlightText(doc, language);
+            return;
+        }
         
-        // Highlight comments
-        highlightComments(doc, text, style, language);
+        submit(doc, language, root.getElementIndex(start), root.getElementIndex(end));
+    }
+    
+    // Snapshots the damaged lines plus some lookahead and lexes them off the EDT
+    private void submit(StyledDocument doc, String language, int firstLine, int lastLine) {
+        Element root = doc.getDefaultRootElement();
+        int lineCount = root.getElementCount();
+        int snapshotLast = Math.min(lineCount - 1, lastLine + LOOKAHEAD_LINES);
+        int lines = snapshotLast - firstLine + 1;
         
-        // Highlight numbers
-        highlightNumbers(doc, text, style);
+        LexJob job = new LexJob();
+        job.lexer = languageStyles.get(language).lexer;
+        job.version = version;
+        job.generation = generation;
+        job.firstLine = firstLine;
+        job.lastLine = lastLine;
+        job.atDocumentEnd = snapshotLast == lineCount - 1;
+        job.base = root.getElement(firstLine).getStartOffset();
+        job.lineStarts = new int[lines + 1];
+        job.previousStates = new int[lines + 1];
+        for (int i = 0; i <= lines; i++) {
+            int line = firstLine + i;
+            job.lineStarts[i] = (line < lineCount ? root.getElement(line).getStartOffset()
+                                                  : root.getElement(lineCount - 1).getEndOffset()) - job.base;
+            job.previousStates[i] = lineStates.get(line);
+        }
         
-        // Highlight operators
-        highlightOperators(doc, text, style);
+        try {
+            job.text = doc.getText(job.base, job.lineStarts[lines]).toCharArray();
+            job.rangeStart = doc.createPosition(job.base);
+            job.rangeEnd = doc.createPosition(Math.min(job.base + job.lineStarts[lines], doc.getLength()));
+        } catch (BadLocationException e) {
+            return;
+        }
         
-        // Language-specific highlighting
-        if (language.equals("HTML")) {
-            highlightHTMLTags(doc, text, style);
-        } else if (language.equals("CSS")) {
-            highlightCSSSelectors(doc, text, style);
+        jobsInFlight++;
+        LEXER_EXECUTOR.execute(() -> {
+            long start = System.nanoTime();
+            boolean complete = job.run(this);
+            EditorDiagnostics.record(EditorDiagnostics.LEX, start);
+            SwingUtilities.invokeLater(() -> {
+                jobsInFlight--;
+                if (complete) {
+                    apply(doc, language, job);
+                } else {
+                    requeue(doc, job);
+                }
+            });
+        });
+    }
+    
+    // Nothing damaged, queued or half applied, so the document's styles are the whole highlighting
+    public boolean isSettled() {
+        return damageStart == null && jobsInFlight == 0 && appliers.isEmpty();
+    }
+    
+    public int[] getLineStates() {
+        return lineStates.toArray();
+    }
+    
+    // Reads the applied styles back as token runs; runs never cross lines since each line is its own element
+    public TokenRuns captureTokens(StyledDocument doc) {
+        Map<String, Integer> types = new HashMap<>();
+        for (int i = 1; i < STYLE_NAMES.length; i++) {
+            types.put(STYLE_NAMES[i], i);
+        }
+        TokenRuns tokens = new TokenRuns();
+        Element root = doc.getDefaultRootElement();
+        for (int line = 0; line < root.getElementCount(); line++) {
+            Element paragraph = root.getElement(line);
+            for (int i = 0; i < paragraph.getElementCount(); i++) {
+                Element run = paragraph.getElement(i);
+                Integer type = types.get(run.getAttributes().getAttribute(StyleConstants.NameAttribute));
+                if (type != null) {
+                    tokens.add(run.getStartOffset(), run.getEndOffset() - run.getStartOffset(), type);
+                }
+            }
         }
+        return tokens;
     }
     
-    private void highlightKeywords(StyledDocument doc, String text, LanguageStyle style) {
-        Style keywordStyle = doc.addStyle("keyword", null);
-        StyleConstants.setForeground(keywordStyle, style.keywordColor);
-        StyleConstants.setBold(keywordStyle, true);
+    // Styles the document from runs saved for this exact text, with the same viewport-first slicing as a lex pass
+    public boolean restore(StyledDocument doc, String language, int[] states, TokenRuns tokens) {
+        Element root = doc.getDefaultRootElement();
+        int lines = root.getElementCount();
+        if (!languageStyles.containsKey(language) || states.length != lines) {
+            return false;
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.start(i) + tokens.length(i) > doc.getLength()) {
+                return false;
+            }
+        }
+        // An edit while chunks are still being applied hands the whole text back for lexing
+        Position rangeStart;
+        Position rangeEnd;
+        try {
+            rangeStart = doc.createPosition(0);
+            rangeEnd = doc.createPosition(doc.getLength());
+        } catch (BadLocationException e) {
+            return false;
+        }
         
-        for (String keyword : style.keywords) {
-            Pattern pattern = Pattern.compile("\\b" + Pattern.quote(keyword) + "\\b");
-            Matcher matcher = pattern.matcher(text);
-            
-            while (matcher.find()) {
-                doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), keywordStyle, false);
+        damageStart = null;
+        damageEnd = null;
+        generation++;
+        lexer = languageStyles.get(language).lexer;
+        lineStates.reset(lines);
+        for (int i = 0; i < lines; i++) {
+            lineStates.set(i, states[i]);
+        }
+        
+        LexJob job = new LexJob();
+        job.version = version;
+        job.generation = generation;
+        job.lastLine = lines - 1;
+        job.lineStarts = new int[lines + 1];
+        job.lineFirstToken = new int[lines + 1];
+        job.linesLexed = lines;
+        job.tokens = tokens;
+        job.rangeStart = rangeStart;
+        job.rangeEnd = rangeEnd;
+        int token = 0;
+        for (int i = 0; i <= lines; i++) {
+            job.lineStarts[i] = i < lines ? root.getElement(i).getStartOffset() : root.getEndOffset();
+            while (token < tokens.size() && tokens.start(token) < job.lineStarts[i]) {
+                token++;
             }
+            job.lineFirstToken[i] = token;
         }
+        new TokenApplier(doc, languageStyles.get(language), job).run();
+        if (brackets != null && doc instanceof EditorDocument) {
+            scanRestoredBrackets(doc, job, ((EditorDocument) doc).snapshot());
+        }
+        return true;
+    }
+    
+    // Restored tokens come without brackets, so they are found from the tokens in the background
+    private void scanRestoredBrackets(StyledDocument doc, LexJob job, TextSnapshot snapshot) {
+        LEXER_EXECUTOR.execute(() -> {
+            char[] text = new char[snapshot.length()];
+            snapshot.getChars(0, text.length, text, 0);
+            BracketIndex.Node lines = BracketIndex.scan(text, job.lineStarts, 0, job.tokens, job.lineFirstToken,
+                                                        job.lineStarts.length - 1);
+            SwingUtilities.invokeLater(() -> {
+                if (isCurrent(job) && brackets.size() == job.lineStarts.length - 1) {
+                    brackets.setLines(0, lines);
+                } else if (job.generation == generation) {
+                    // Edited meanwhile; lexing the whole text again brings the brackets up to date
+                    markDamaged(doc, 0, doc.getLength());
+                    if (damageListener != null) {
+                        damageListener.run();
+                    }
+                }
+            });
+        });
+    }
+    
+    private boolean isCurrent(LexJob job) {
+        return job.version == version && job.generation == generation;
     }
     
-    private void highlightStrings(StyledDocument doc, String text, LanguageStyle style) {
-        Style stringStyle = doc.addStyle("string", null);
-        StyleConstants.setForeground(stringStyle, style.stringColor);
+    private void apply(StyledDocument doc, String language, LexJob job) {
+        if (!isCurrent(job) || !languageStyles.containsKey(language)) {
+            requeue(doc, job);
+            return;
+        }
         
-        // Double quotes
-        Pattern doubleQuotePattern = Pattern.compile("\"([^\"\\\\]|\\\\.)*\"");
-        Matcher matcher = doubleQuotePattern.matcher(text);
-        while (matcher.find()) {
-            doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), stringStyle, false);
+        for (int i = 1; i <= job.linesLexed; i++) {
+            lineStates.set(job.firstLine + i, job.states[i]);
+        }
+        if (brackets != null && brackets.size() == lineStates.size()) {
+            brackets.setLines(job.firstLine, job.brackets);
+        }
+        if (job.continueFrom >= 0) {
+            // Snapshot ended before the states settled, keep going from there
+            submit(doc, language, job.continueFrom, job.continueFrom);
         }
         
-        // Single quotes
-        Pattern singleQuotePattern = Pattern.compile("'([^'\\\\]|\\\\.)*'");
-        matcher = singleQuotePattern.matcher(text);
-        while (matcher.find()) {
-            doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), stringStyle, false);
+        new TokenApplier(doc, languageStyles.get(language), job).run();
+    }
+    
+    // Hands a stale job's range back to the damage region, unless a full pass replaced it
+    private void requeue(StyledDocument doc, LexJob job) {
+        if (job.generation != generation) {
+            return;
+        }
+        markDamaged(doc, job.rangeStart.getOffset(), job.rangeEnd.getOffset());
+        if (damageListener != null) {
+            damageListener.run();
         }
     }
     
-    private void highlightComments(StyledDocument doc, String text, LanguageStyle style, String language) {
-        Style commentStyle = doc.addStyle("comment", null);
-        StyleConstants.setForeground(commentStyle, style.commentColor);
-        StyleConstants.setItalic(commentStyle, true);
+    // Lines to lex with an immutable copy of their text, tagged with the document version
+    private static class LexJob {
+        LanguageLexer lexer;
+        int version;
+        int generation;
+        int firstLine;
+        int lastLine;
+        boolean atDocumentEnd;
+        int base;
+        char[] text;
+        int[] lineStarts;
+        int[] previousStates;
+        Position rangeStart;
+        Position rangeEnd;
         
-        if (language.equals("Python")) {
-            // Python single-line comments
-            Pattern pattern = Pattern.compile("#.*$", Pattern.MULTILINE);
-            Matcher matcher = pattern.matcher(text);
-            while (matcher.find()) {
-                doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), commentStyle, false);
-            }
-        } else if (language.equals("HTML")) {
-            // HTML comments
-            Pattern pattern = Pattern.compile("<!--.*?-->", Pattern.DOTALL);
-            Matcher matcher = pattern.matcher(text);
-            while (matcher.find()) {
-                doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), commentStyle, false);
-            }
-        } else if (language.equals("CSS")) {
-            // CSS comments
-            Pattern pattern = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
-            Matcher matcher = pattern.matcher(text);
-            while (matcher.find()) {
-                doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), commentStyle, false);
-            }
-        } else {
-            // Java/JavaScript style comments
-            // Single-line comments
-            Pattern singlePattern = Pattern.compile("//.*$", Pattern.MULTILINE);
-            Matcher matcher = singlePattern.matcher(text);
-            while (matcher.find()) {
-                doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), commentStyle, false);
+        // Results
+        TokenRuns tokens = new TokenRuns();
+        int[] states;
+        int[] lineFirstToken;
+        int linesLexed;
+        int continueFrom = -1;
+        BracketIndex.Node brackets;
+        
+        boolean run(SyntaxHighlighter owner) {
+            int lines = lineStarts.length - 1;
+            states = new int[lines + 1];
+            lineFirstToken = new int[lines + 1];
+            states[0] = previousStates[0];
+            
+            // Re-lex past the damaged lines until a line starts in the same state as before
+            int line = 0;
+            boolean settled = false;
+            while (line < lines && !settled) {
+                if ((line & 63) == 0 && !owner.isCurrent(this)) {
+                    return false;
+                }
+                lineFirstToken[line] = tokens.size();
+                states[line + 1] = lexer.lexLine(text, lineStarts[line], lineStarts[line + 1],
+                                                 base + lineStarts[line], states[line], tokens);
+                line++;
+                settled = firstLine + line > lastLine && states[line] == previousStates[line];
             }
+            lineFirstToken[line] = tokens.size();
+            linesLexed = line;
+            brackets = BracketIndex.scan(text, lineStarts, base, tokens, lineFirstToken, linesLexed);
             
-            // Multi-line comments
-            Pattern multiPattern = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
-            matcher = multiPattern.matcher(text);
-            while (matcher.find()) {
-                doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), commentStyle, false);
+            if (!settled && !atDocumentEnd) {
+                continueFrom = firstLine + line;
             }
+            return true;
         }
     }
     
-    private void highlightNumbers(StyledDocument doc, String text, LanguageStyle style) {
-        Style numberStyle = doc.addStyle("number", null);
-        StyleConstants.setForeground(numberStyle, style.numberColor);
+    // Applies a job's tokens on the EDT in bounded slices, nearest the viewport first
+    private class TokenApplier implements Runnable {
+        private final StyledDocument doc;
+        private final LexJob job;
+        private final Style[] tokenStyles;
+        private final boolean[] chunkDone;
+        private final javax.swing.Timer idleTimer;
+        private int remaining;
         
-        Pattern pattern = Pattern.compile("\\b\\d+(\\.\\d+)?([eE][+-]?\\d+)?[fFdD]?\\b");
-        Matcher matcher = pattern.matcher(text);
+        TokenApplier(StyledDocument doc, LanguageStyle style, LexJob job) {
+            this.doc = doc;
+            this.job = job;
+            this.tokenStyles = createTokenStyles(doc, style);
+            this.remaining = (job.linesLexed + CHUNK_LINES - 1) / CHUNK_LINES;
+            this.chunkDone = new boolean[remaining];
+            this.idleTimer = new javax.swing.Timer(IDLE_DELAY_MILLIS, e -> run());
+            this.idleTimer.setRepeats(false);
+            appliers.add(this);
+        }
         
-        while (matcher.find()) {
-            doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), numberStyle, false);
+        void wake() {
+            if (idleTimer.isRunning()) {
+                idleTimer.stop();
+                SwingUtilities.invokeLater(this);
+            }
         }
-    }
-    
-    private void highlightOperators(StyledDocument doc, String text, LanguageStyle style) {
-        Style operatorStyle = doc.addStyle("operator", null);
-        StyleConstants.setForeground(operatorStyle, style.operatorColor);
         
-        String operators = "\\+|\\-|\\*|\\/|%|==|!=|<=|>=|<|>|&&|\\|\\||!|&|\\||\\^|~|<<|>>|\\?|:";
-        Pattern pattern = Pattern.compile(operators);
-        Matcher matcher = pattern.matcher(text);
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            applySlice();
+            EditorDiagnostics.record(EditorDiagnostics.HIGHLIGHT, start);
+        }
         
-        while (matcher.find()) {
-            doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), operatorStyle, false);
+        private void applySlice() {
+            idleTimer.stop();
+            if (!isCurrent(job)) {
+                appliers.remove(this);
+                requeue(doc, job);
+                return;
+            }
+            
+            long deadline = System.nanoTime() + SLICE_NANOS;
+            int chunk;
+            while ((chunk = nextChunk(true)) >= 0) {
+                applyChunk(chunk);
+                if (System.nanoTime() > deadline) {
+                    SwingUtilities.invokeLater(this);
+                    return;
+                }
+            }
+            
+            // Off-screen lines only get short slices spaced out by the idle timer
+            deadline = System.nanoTime() + IDLE_SLICE_NANOS;
+            while ((chunk = nextChunk(false)) >= 0) {
+                applyChunk(chunk);
+                if (System.nanoTime() > deadline && remaining > 0) {
+                    idleTimer.restart();
+                    return;
+                }
+            }
+            appliers.remove(this);
         }
-    }
-    
-    private void highlightHTMLTags(StyledDocument doc, String text, LanguageStyle style) {
-        Style tagStyle = doc.addStyle("htmlTag", null);
-        StyleConstants.setForeground(tagStyle, style.keywordColor);
-        StyleConstants.setBold(tagStyle, true);
         
-        Pattern pattern = Pattern.compile("</?\\w+.*?>");
-        Matcher matcher = pattern.matcher(text);
+        // Next chunk inside the viewport margin, or else the closest one to it
+        private int nextChunk(boolean visibleOnly) {
+            int last = chunkDone.length - 1;
+            if (remaining == 0) {
+                return -1;
+            }
+            
+            int low = Math.floorDiv(visibleFirstLine - VIEWPORT_MARGIN_LINES - job.firstLine, CHUNK_LINES);
+            int high = Math.floorDiv(visibleLastLine + VIEWPORT_MARGIN_LINES - job.firstLine, CHUNK_LINES);
+            for (int c = Math.max(0, low); c <= Math.min(last, high); c++) {
+                if (!chunkDone[c]) {
+                    return c;
+                }
+            }
+            if (visibleOnly) {
+                return -1;
+            }
+            
+            low = Math.min(Math.max(low, 0), last);
+            high = Math.max(Math.min(high, last), 0);
+            for (int distance = 1; distance <= last; distance++) {
+                if (high + distance <= last && !chunkDone[high + distance]) {
+                    return high + distance;
+                }
+                if (low - distance >= 0 && !chunkDone[low - distance]) {
+                    return low - distance;
+                }
+            }
+            for (int c = 0; c <= last; c++) {
+                if (!chunkDone[c]) {
+                    return c;
+                }
+            }
+            return -1;
+        }
         
-        while (matcher.find()) {
-            doc.setCharacterAttributes(matcher.start(), matcher.end() - matcher.start(), tagStyle, false);
+        private void applyChunk(int chunk) {
+            int firstLine = chunk * CHUNK_LINES;
+            int endLine = Math.min(job.linesLexed, firstLine + CHUNK_LINES);
+            int start = job.base + job.lineStarts[firstLine];
+            int end = Math.min(job.base + job.lineStarts[endLine], doc.getLength());
+            
+            // Clear previous styles, then paint each token run over the chunk
+            if (end > start) {
+                doc.setCharacterAttributes(start, end - start, tokenStyles[LanguageLexer.DEFAULT], true);
+            }
+            for (int i = job.lineFirstToken[firstLine]; i < job.lineFirstToken[endLine]; i++) {
+                doc.setCharacterAttributes(job.tokens.start(i), job.tokens.length(i),
+                                           tokenStyles[job.tokens.type(i)], false);
+            }
+            chunkDone[chunk] = true;
+            remaining--;
         }
     }
     
-    private void highlightCSSSelectors(StyledDocument doc, String text, LanguageStyle style) {
-        Style selectorStyle = doc.addStyle("cssSelector", null);
-        StyleConstants.setForeground(selectorStyle, getColorForTheme("keyword"));
-        StyleConstants.setBold(selectorStyle, true);
+    private Style[] createTokenStyles(StyledDocument doc, LanguageStyle style) {
+        Style[] styles = new Style[LanguageLexer.TOKEN_TYPES];
         
-        Pattern pattern = Pattern.compile("^\\s*[.#]?[\\w-]+\\s*\\{", Pattern.MULTILINE);
-        Matcher matcher = pattern.matcher(text);
+        styles[LanguageLexer.DEFAULT] = doc.addStyle(STYLE_NAMES[LanguageLexer.DEFAULT], null);
+        StyleConstants.setForeground(styles[LanguageLexer.DEFAULT], getColorForTheme("default"));
         
-        while (matcher.find()) {
-            String match = matcher.group();
-            int start = matcher.start();
-            int end = start + match.indexOf('{');
-            doc.setCharacterAttributes(start, end - start, selectorStyle, false);
-        }
+        styles[LanguageLexer.KEYWORD] = doc.addStyle(STYLE_NAMES[LanguageLexer.KEYWORD], null);
+        StyleConstants.setForeground(styles[LanguageLexer.KEYWORD], style.keywordColor);
+        StyleConstants.setBold(styles[LanguageLexer.KEYWORD], true);
+        
+        styles[LanguageLexer.STRING] = doc.addStyle(STYLE_NAMES[LanguageLexer.STRING], null);
+        StyleConstants.setForeground(styles[LanguageLexer.STRING], style.stringColor);
+        
+        styles[LanguageLexer.COMMENT] = doc.addStyle(STYLE_NAMES[LanguageLexer.COMMENT], null);
+        StyleConstants.setForeground(styles[LanguageLexer.COMMENT], style.commentColor);
+        StyleConstants.setItalic(styles[LanguageLexer.COMMENT], true);
+        
+        styles[LanguageLexer.NUMBER] = doc.addStyle(STYLE_NAMES[LanguageLexer.NUMBER], null);
+        StyleConstants.setForeground(styles[LanguageLexer.NUMBER], style.numberColor);
+        
+        styles[LanguageLexer.OPERATOR] = doc.addStyle(STYLE_NAMES[LanguageLexer.OPERATOR], null);
+        StyleConstants.setForeground(styles[LanguageLexer.OPERATOR], style.operatorColor);
+        
+        styles[LanguageLexer.TAG] = doc.addStyle(STYLE_NAMES[LanguageLexer.TAG], null);
+        StyleConstants.setForeground(styles[LanguageLexer.TAG], style.keywordColor);
+        StyleConstants.setBold(styles[LanguageLexer.TAG], true);
+        
+        styles[LanguageLexer.SELECTOR] = doc.addStyle(STYLE_NAMES[LanguageLexer.SELECTOR], null);
+        StyleConstants.setForeground(styles[LanguageLexer.SELECTOR], getColorForTheme("keyword"));
+        StyleConstants.setBold(styles[LanguageLexer.SELECTOR], true);
+        
+        return styles;
     }
     
     public void setTheme(String theme) {
@@ -1004,680 +2384,7360 @@ class LanguageStyle {
     public Color commentColor;
     public Color numberColor;
     public Color operatorColor;
+    public String lineComment;
+    public String blockCommentStart;
+    public String blockCommentEnd;
+    public boolean tripleQuotedStrings;
+    public boolean templateStrings;
+    public boolean markupTags;
+    public boolean cssSelectors;
+    public LanguageLexer lexer;
 }
 
-// Enhanced EditorTab class with syntax highlighting
-class EditorTab extends JPanel {
-    private JTextPane textPane;
-    private JTextArea lineNumberArea;
-    private JScrollPane scrollPane;
-    private File file;
-    private boolean modified = false;
-    private String language = "Plain Text";
-    private UndoManager undoManager;
-    private AdvancedTextEditor parent;
-    private SyntaxHighlighter syntaxHighlighter;
-    private Timer syntaxTimer;
+// Single-pass tokenizer compiled once from a LanguageStyle
+class LanguageLexer {
+    // Token types
+    public static final int DEFAULT = 0;
+    public static final int KEYWORD = 1;
+    public static final int STRING = 2;
+    public static final int COMMENT = 3;
+    public static final int NUMBER = 4;
+    public static final int OPERATOR = 5;
+    public static final int TAG = 6;
+    public static final int SELECTOR = 7;
+    public static final int TOKEN_TYPES = 8;
     
-    public EditorTab(AdvancedTextEditor parent) {
-        this.parent = parent;
-        setLayout(new BorderLayout());
-        initializeComponents();
-        setupUndoRedo();
-        setupSyntaxHighlighting();
-    }
+    // Line states for constructs that continue onto the next line
+    public static final int STATE_DEFAULT = 0;
+    public static final int STATE_BLOCK_COMMENT = 1;
+    public static final int STATE_TRIPLE_DOUBLE = 2;
+    public static final int STATE_TRIPLE_SINGLE = 3;
+    public static final int STATE_TEMPLATE = 4;
     
-    private void initializeComponents() {
-        textPane = new JTextPane();
-        textPane.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
+    private static final int ALPHABET = 128;
+    private static final String OPERATOR_CHARS = "+-*/%<>!&|^~?:";
+    
+    // Keyword trie flattened into a DFA over ASCII, -1 means no transition
+    private final int[] transitions;
+    private final boolean[] accepting;
+    
+    private final String lineComment;
+    private final String blockCommentStart;
+    private final String blockCommentEnd;
+    private final boolean tripleQuotedStrings;
+    private final boolean templateStrings;
+    private final boolean markupTags;
+    private final boolean cssSelectors;
+    
+    public LanguageLexer(LanguageStyle style) {
+        lineComment = style.lineComment;
+        blockCommentStart = style.blockCommentStart;
+        blockCommentEnd = style.blockCommentEnd;
+        tripleQuotedStrings = style.tripleQuotedStrings;
+        templateStrings = style.templateStrings;
+        markupTags = style.markupTags;
+        cssSelectors = style.cssSelectors;
         
-        lineNumberArea = new JTextArea();
-        lineNumberArea.setFont(textPane.getFont());
-        lineNumberArea.setEditable(false);
-        lineNumberArea.setFocusable(false);
-        lineNumberArea.setBackground(new Color(240, 240, 240));
-        lineNumberArea.setBorder(BorderFactory.createEmptyBorder(0, 5, 0, 5));
+        List<int[]> rows = new ArrayList<>();
+        List<Boolean> accepts = new ArrayList<>();
+        rows.add(newRow());
+        accepts.add(false);
+        for (String keyword : style.keywords) {
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                if (c >= ALPHABET) {
+                    state = -1;
+                    break;
+                }
+                if (rows.get(state)[c] < 0) {
+                    rows.get(state)[c] = rows.size();
+                    rows.add(newRow());
+                    accepts.add(false);
+                }
+                state = rows.get(state)[c];
+            }
+            if (state > 0) {
+                accepts.set(state, true);
+            }
+        }
         
-        scrollPane = new JScrollPane(textPane);
-        scrollPane.setRowHeaderView(lineNumberArea);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        transitions = new int[rows.size() * ALPHABET];
+        accepting = new boolean[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            System.arraycopy(rows.get(i), 0, transitions, i * ALPHABET, ALPHABET);
+            accepting[i] = accepts.get(i);
+        }
+    }
+    
+    private static int[] newRow() {
+        int[] row = new int[ALPHABET];
+        Arrays.fill(row, -1);
+        return row;
+    }
+    
+    // Tokenizes text[start, end) which begins at document offset base, returning the state at the end
+    public int lexLine(char[] text, int start, int end, int base, int state, TokenRuns out) {
+        int i = start;
         
-        add(scrollPane, BorderLayout.CENTER);
+        // Finish a comment or string carried over from the previous line
+        if (state != STATE_DEFAULT) {
+            String close = closerFor(state);
+            int found = indexOf(text, close, i, end, state != STATE_BLOCK_COMMENT);
+            int type = state == STATE_BLOCK_COMMENT ? COMMENT : STRING;
+            if (found < 0) {
+                out.add(base, lineLength(text, start, end), type);
+                return state;
+            }
+            i = found + close.length();
+            out.add(base, i - start, type);
+            state = STATE_DEFAULT;
+        }
         
-        // Document listener for modifications and syntax highlighting
-        textPane.getDocument().addDocumentListener(new DocumentListener() {
-            @Override
-            public void insertUpdate(DocumentEvent e) {
-                setModified(true);
-                updateLineNumbers();
-                scheduleSyntaxHighlighting();
-                if (parent != null) {
-                    SwingUtilities.invokeLater(() -> parent.updateStatus());
+        boolean atLineStart = true;
+        while (i < end) {
+            char c = text[i];
+            int tokenStart = i;
+            
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                i++;
+                continue;
+            }
+            
+            if (cssSelectors && atLineStart) {
+                int selectorEnd = matchSelector(text, i, end);
+                if (selectorEnd > i) {
+                    out.add(base + i - start, selectorEnd - i, SELECTOR);
+                    i = selectorEnd;
+                    atLineStart = false;
+                    continue;
                 }
             }
+            atLineStart = false;
             
-            @Override
-            public void removeUpdate(DocumentEvent e) {
-                setModified(true);
-                updateLineNumbers();
-                scheduleSyntaxHighlighting();
-                if (parent != null) {
-                    SwingUtilities.invokeLater(() -> parent.updateStatus());
+            if (lineComment != null && regionMatches(text, i, end, lineComment)) {
+                out.add(base + i - start, lineLength(text, i, end), COMMENT);
+                return STATE_DEFAULT;
+            }
+            
+            if (blockCommentStart != null && regionMatches(text, i, end, blockCommentStart)) {
+                int found = indexOf(text, blockCommentEnd, i + blockCommentStart.length(), end, false);
+                if (found < 0) {
+                    out.add(base + i - start, lineLength(text, i, end), COMMENT);
+                    return STATE_BLOCK_COMMENT;
                 }
+                i = found + blockCommentEnd.length();
+                out.add(base + tokenStart - start, i - tokenStart, COMMENT);
+                continue;
             }
             
-            @Override
-            public void changedUpdate(DocumentEvent e) {
-                updateLineNumbers();
-                if (parent != null) {
-                    SwingUtilities.invokeLater(() -> parent.updateStatus());
+            if (markupTags) {
+                // Markup only has tags and comments, quotes in prose are not strings
+                if (c == '<' && i + 1 < end && (isWordStart(text[i + 1]) || text[i + 1] == '/')) {
+                    int close = indexOf(text, ">", i + 1, end, false);
+                    if (close > 0) {
+                        i = close + 1;
+                        out.add(base + tokenStart - start, i - tokenStart, TAG);
+                        continue;
+                    }
+                }
+            } else if (c == '"' || c == '\'' || (templateStrings && c == '`')) {
+                int multiLineState = multiLineStringState(text, i, end, c);
+                if (multiLineState != STATE_DEFAULT) {
+                    String close = closerFor(multiLineState);
+                    int found = indexOf(text, close, i + (c == '`' ? 1 : 3), end, true);
+                    if (found < 0) {
+                        out.add(base + i - start, lineLength(text, i, end), STRING);
+                        return multiLineState;
+                    }
+                    i = found + close.length();
+                } else {
+                    i++;
+                    while (i < end && text[i] != c && text[i] != '\n') {
+                        i += text[i] == '\\' ? 2 : 1;
+                    }
+                    i = Math.min(end, i + 1);
+                    if (i > tokenStart && text[i - 1] == '\n') {
+                        i--;
+                    }
                 }
+                out.add(base + tokenStart - start, i - tokenStart, STRING);
+                continue;
             }
-        });
-        
-        // Caret listener for status updates
-        textPane.addCaretListener(e -> {
-            if (parent != null) {
-                SwingUtilities.invokeLater(() -> parent.updateStatus());
+            
+            if (isWordStart(c)) {
+                int dfa = 0;
+                while (i < end && isWordPart(text[i])) {
+                    char w = text[i];
+                    dfa = dfa >= 0 && w < ALPHABET ? transitions[dfa * ALPHABET + w] : -1;
+                    i++;
+                }
+                if (dfa > 0 && accepting[dfa]) {
+                    out.add(base + tokenStart - start, i - tokenStart, KEYWORD);
+                }
+                continue;
             }
-        });
-        
-        // Initial line numbers
-        updateLineNumbers();
+            
+            if (c >= '0' && c <= '9') {
+                i = scanNumber(text, i, end);
+                if (i < end && isWordPart(text[i])) {
+                    // Not a number on its own, e.g. 0x1F, skip the whole word
+                    while (i < end && isWordPart(text[i])) {
+                        i++;
+                    }
+                } else {
+                    out.add(base + tokenStart - start, i - tokenStart, NUMBER);
+                }
+                continue;
+            }
+            
+            if (OPERATOR_CHARS.indexOf(c) >= 0 || (c == '=' && i + 1 < end && text[i + 1] == '=')) {
+                i++;
+                if (i < end && text[i] == '=' && "=!<>".indexOf(c) >= 0) {
+                    i++;
+                }
+                out.add(base + tokenStart - start, i - tokenStart, OPERATOR);
+                continue;
+            }
+            
+            i++;
+        }
+        return STATE_DEFAULT;
     }
     
-    private void setupUndoRedo() {
-        undoManager = new UndoManager();
-        textPane.getDocument().addUndoableEditListener(undoManager);
+    private int multiLineStringState(char[] text, int i, int end, char quote) {
+        if (quote == '`') {
+            return STATE_TEMPLATE;
+        }
+        if (tripleQuotedStrings && i + 2 < end && text[i + 1] == quote && text[i + 2] == quote) {
+            return quote == '"' ? STATE_TRIPLE_DOUBLE : STATE_TRIPLE_SINGLE;
+        }
+        return STATE_DEFAULT;
     }
     
-    private void setupSyntaxHighlighting() {
-        syntaxHighlighter = new SyntaxHighlighter("Dark");
-        
-        // Timer to delay syntax highlighting for better performance
-        syntaxTimer = new Timer(500, e -> {
-            applySyntaxHighlighting();
-            syntaxTimer.stop();
-        });
-        syntaxTimer.setRepeats(false);
+    private String closerFor(int state) {
+        switch (state) {
+            case STATE_BLOCK_COMMENT: return blockCommentEnd;
+            case STATE_TRIPLE_DOUBLE: return "\"\"\"";
+            case STATE_TRIPLE_SINGLE: return "'''";
+            default: return "`";
+        }
     }
     
-    private void scheduleSyntaxHighlighting() {
-        if (syntaxTimer.isRunning()) {
-            syntaxTimer.restart();
-        } else {
-            syntaxTimer.start();
+    // [.#]?[\w-]+\s*\{ at the start of a line, returns the end of the selector or start if none
+    private int matchSelector(char[] text, int i, int end) {
+        int j = i;
+        if (j < end && (text[j] == '.' || text[j] == '#')) {
+            j++;
+        }
+        int nameStart = j;
+        while (j < end && (isWordPart(text[j]) || text[j] == '-')) {
+            j++;
+        }
+        if (j == nameStart) {
+            return i;
+        }
+        int selectorEnd = j;
+        while (j < end && (text[j] == ' ' || text[j] == '\t')) {
+            j++;
         }
+        return j < end && text[j] == '{' ? selectorEnd : i;
     }
     
-    private void applySyntaxHighlighting() {
-        if (!language.equals("Plain Text")) {
-            SwingUtilities.invokeLater(() -> {
-                int caretPos = textPane.getCaretPosition();
-                syntaxHighlighter.highlightText(textPane.getStyledDocument(), language);
-                try {
-                    textPane.setCaretPosition(Math.min(caretPos, textPane.getDocument().getLength()));
-                } catch (IllegalArgumentException e) {
-                    // Ignore invalid caret position
-                }
-            });
+    // \d+(\.\d+)?([eE][+-]?\d+)?[fFdD]?
+    private static int scanNumber(char[] text, int i, int end) {
+        i = skipDigits(text, i, end);
+        if (i + 1 < end && text[i] == '.' && isDigit(text[i + 1])) {
+            i = skipDigits(text, i + 1, end);
+        }
+        if (i < end && (text[i] == 'e' || text[i] == 'E')) {
+            int j = i + 1;
+            if (j < end && (text[j] == '+' || text[j] == '-')) {
+                j++;
+            }
+            if (j < end && isDigit(text[j])) {
+                i = skipDigits(text, j, end);
+            }
+        }
+        if (i < end && "fFdD".indexOf(text[i]) >= 0) {
+            i++;
         }
+        return i;
     }
     
-    private void updateLineNumbers() {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                int lines = textPane.getDocument().getDefaultRootElement().getElementCount();
-                StringBuilder sb = new StringBuilder();
-                for (int i = 1; i <= lines; i++) {
-                    sb.append(String.format("%3d\n", i));
-                }
-                lineNumberArea.setText(sb.toString());
-            } catch (Exception e) {
-                // Handle any exceptions gracefully
-            }
-        });
+    private static int skipDigits(char[] text, int i, int end) {
+        while (i < end && isDigit(text[i])) {
+            i++;
+        }
+        return i;
     }
     
-    public void duplicateLine() {
-        try {
-            int caretPos = textPane.getCaretPosition();
-            Element root = textPane.getDocument().getDefaultRootElement();
-            int lineNum = root.getElementIndex(caretPos);
-            Element line = root.getElement(lineNum);
-            int lineStart = line.getStartOffset();
-            int lineEnd = line.getEndOffset();
-            
-            String lineText = textPane.getText(lineStart, lineEnd - lineStart);
-            textPane.getDocument().insertString(lineEnd, lineText, null);
-        } catch (BadLocationException e) {
-            e.printStackTrace();
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private boolean isWordStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+    
+    private boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || (cssSelectors && c == '-');
+    }
+    
+    // Length of text from index up to but not including the line break
+    private static int lineLength(char[] text, int index, int end) {
+        int length = end - index;
+        if (length > 0 && text[end - 1] == '\n') {
+            length--;
         }
+        return length;
     }
     
-    public void commentUncommentLines() {
-        String commentPrefix = getCommentPrefix();
-        
-        try {
-            int caretPos = textPane.getCaretPosition();
-            Element root = textPane.getDocument().getDefaultRootElement();
-            int lineNum = root.getElementIndex(caretPos);
-            Element line = root.getElement(lineNum);
-            int lineStart = line.getStartOffset();
-            int lineEnd = line.getEndOffset();
-            
-            String lineText = textPane.getText(lineStart, lineEnd - lineStart);
-            String trimmedLine = lineText.trim();
-            
-            if (trimmedLine.startsWith(commentPrefix.trim())) {
-                // Uncomment
-                String newLine = lineText.replaceFirst(Pattern.quote(commentPrefix), "");
-                textPane.getDocument().remove(lineStart, lineEnd - lineStart);
-                textPane.getDocument().insertString(lineStart, newLine, null);
-            } else {
-                // Comment
-                String newLine = commentPrefix + lineText;
-                textPane.getDocument().remove(lineStart, lineEnd - lineStart);
-                textPane.getDocument().insertString(lineStart, newLine, null);
+    private static boolean regionMatches(char[] text, int index, int end, String token) {
+        if (index + token.length() > end) {
+            return false;
+        }
+        for (int k = 0; k < token.length(); k++) {
+            if (text[index + k] != token.charAt(k)) {
+                return false;
             }
-        } catch (BadLocationException e) {
-            e.printStackTrace();
         }
+        return true;
     }
     
-    private String getCommentPrefix() {
-        switch (language) {
-            case "Java":
-            case "JavaScript":
-            case "C":
-            case "C++":
-            case "CSS":
-                return "// ";
-            case "Python":
-                return "# ";
-            case "HTML":
-            case "XML":
-                return "<!-- ";
-            default:
-                return "# ";
+    private static int indexOf(char[] text, String token, int from, int end, boolean escapes) {
+        for (int i = from; i <= end - token.length(); i++) {
+            if (escapes && text[i] == '\\') {
+                i++;
+            } else if (regionMatches(text, i, end, token)) {
+                return i;
+            }
         }
+        return -1;
     }
+}
+
+// Growable list of token runs produced by a lexer pass
+class TokenRuns {
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private byte[] types = new byte[256];
+    private int size;
     
-    public void undo() {
-        if (undoManager.canUndo()) {
-            undoManager.undo();
+    public void add(int start, int length, int type) {
+        if (length <= 0) {
+            return;
         }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+        }
+        starts[size] = start;
+        lengths[size] = length;
+        types[size] = (byte) type;
+        size++;
     }
     
-    public void redo() {
-        if (undoManager.canRedo()) {
-            undoManager.redo();
-        }
+    public int size() { return size; }
+    public int start(int index) { return starts[index]; }
+    public int length(int index) { return lengths[index]; }
+    public int type(int index) { return types[index]; }
+    public void clear() { size = 0; }
+}
+
+// Per-line integer table that shifts along with line insertions and removals
+class LineIntTable {
+    private int[] values = new int[64];
+    private int size;
+    
+    public int size() {
+        return size;
     }
     
-    public void refresh() {
-        updateLineNumbers();
-        applySyntaxHighlighting();
-        repaint();
+    public int get(int line) {
+        return line >= 0 && line < size ? values[line] : 0;
     }
     
-    public void applyTheme(Color backgroundColor, Color textColor, Color selectionColor) {
-        textPane.setBackground(backgroundColor);
-        textPane.setForeground(textColor);
-        textPane.setSelectionColor(selectionColor);
-        textPane.setCaretColor(textColor);
-        
-        lineNumberArea.setBackground(backgroundColor.brighter());
-        lineNumberArea.setForeground(textColor.darker());
-        
-        scrollPane.getViewport().setBackground(backgroundColor);
-        
-        // Update syntax highlighter theme
-        String theme = "Dark";
-        if (backgroundColor.equals(new Color(240, 240, 240))) {
-            theme = "Light";
-        } else if (backgroundColor.equals(new Color(39, 40, 34))) {
-            theme = "Monokai";
-        } else if (backgroundColor.equals(new Color(0, 43, 54))) {
-            theme = "Solarized Dark";
+    public void set(int line, int value) {
+        if (line >= 0 && line < size) {
+            values[line] = value;
         }
-        
-        syntaxHighlighter.setTheme(theme);
-        applySyntaxHighlighting();
     }
     
-    public void detectLanguage() {
-        if (file != null) {
-            String fileName = file.getName().toLowerCase();
-            if (fileName.endsWith(".java")) {
-                language = "Java";
-            } else if (fileName.endsWith(".py")) {
-                language = "Python";
-            } else if (fileName.endsWith(".html") || fileName.endsWith(".htm")) {
-                language = "HTML";
-            } else if (fileName.endsWith(".js")) {
-                language = "JavaScript";
-            } else if (fileName.endsWith(".css")) {
-                language = "CSS";
-            } else if (fileName.endsWith(".xml")) {
-                language = "XML";
-            } else if (fileName.endsWith(".json")) {
-                language = "JSON";
-            } else {
-                language = "Plain Text";
-            }
-            
-            // Apply syntax highlighting after language detection
-            applySyntaxHighlighting();
-        }
+    public void reset(int lines) {
+        values = new int[Math.max(64, lines)];
+        size = lines;
     }
     
-    // Getters and setters
-    public JTextPane getTextPane() { return textPane; }
-    public File getFile() { return file; }
-    public void setFile(File file) { 
-        this.file = file; 
-        detectLanguage();
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
     }
-    public String getText() { return textPane.getText(); }
-    public void setText(String text) { 
-        textPane.setText(text); 
-        applySyntaxHighlighting();
+    
+    public void insertLines(int index, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (size + count > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, size + count));
+        }
+        index = Math.min(index, size);
+        System.arraycopy(values, index, values, index + count, size - index);
+        Arrays.fill(values, index, index + count, 0);
+        size += count;
+    }
+    
+    public void removeLines(int index, int count) {
+        count = Math.min(count, size - index);
+        if (count <= 0) {
+            return;
+        }
+        System.arraycopy(values, index + count, values, index, size - index - count);
+        size -= count;
     }
-    public boolean isModified() { return modified; }
-    public void setModified(boolean modified) { this.modified = modified; }
-    public String getLanguage() { return language; }
 }
 
-// Tab component with close button
-class TabComponent extends JPanel {
-    private final String title;
-    private final Runnable closeAction;
+// Brackets outside strings and comments, kept per line in an implicit treap so edits add and remove lines in O(log n).
+// Each subtree knows how much it changes the nesting depth and the lowest depth it reaches, so finding a partner or
+// the enclosing pair is one descent instead of a scan. A bracket is stored as its offset in the line shifted left by
+// three plus its kind; even kinds open and the next odd kind closes them.
+class BracketIndex {
+    private static final int NONE = Integer.MAX_VALUE / 2;
+    private static final Random PRIORITIES = new Random();
     
-    public TabComponent(String title, Runnable closeAction) {
-        this.title = title;
-        this.closeAction = closeAction;
+    // One line of the document and the subtree below it
+    static class Node {
+        final int[] brackets;
+        final int priority;
+        Node left;
+        Node right;
         
-        setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
-        setOpaque(false);
+        // The line alone: depth change, and the lowest depth just before and just after one of its brackets
+        final int lineDelta;
+        final int lineBefore;
+        final int lineAfter;
         
-        JLabel titleLabel = new JLabel(title);
-        titleLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 5));
-        add(titleLabel);
+        // The whole subtree, relative to the depth where it starts
+        int lines;
+        int delta;
+        int lowestBefore;
+        int lowestAfter;
         
-        JButton closeButton = new JButton("×");
-        closeButton.setPreferredSize(new Dimension(17, 17));
-        closeButton.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 12));
-        closeButton.setFocusable(false);
-        closeButton.setBorderPainted(false);
-        closeButton.setContentAreaFilled(false);
-        closeButton.addActionListener(e -> closeAction.run());
-        add(closeButton);
+        Node(int[] brackets, int priority) {
+            this.brackets = brackets;
+            this.priority = priority;
+            int depth = 0;
+            int before = NONE;
+            int after = NONE;
+            if (brackets != null) {
+                for (int bracket : brackets) {
+                    before = Math.min(before, depth);
+                    depth += sign(bracket);
+                    after = Math.min(after, depth);
+                }
+            }
+            lineDelta = depth;
+            lineBefore = before;
+            lineAfter = after;
+        }
+        
+        void update() {
+            int leftDelta = left == null ? 0 : left.delta;
+            lines = 1 + size(left) + size(right);
+            delta = leftDelta + lineDelta + (right == null ? 0 : right.delta);
+            lowestBefore = Math.min(left == null ? NONE : left.lowestBefore, leftDelta + Math.min(lineBefore,
+                                    right == null ? NONE : lineDelta + right.lowestBefore));
+            lowestAfter = Math.min(left == null ? NONE : left.lowestAfter, leftDelta + Math.min(lineAfter,
+                                   right == null ? NONE : lineDelta + right.lowestAfter));
+        }
+    }
+    
+    private Node root = build(new int[1][], 0, 1);
+    
+    private static int size(Node t) {
+        return t == null ? 0 : t.lines;
+    }
+    
+    private static int sign(int bracket) {
+        return (bracket & 1) == 0 ? 1 : -1;
+    }
+    
+    public int size() {
+        return size(root);
+    }
+    
+    public void reset(int lines) {
+        root = build(new int[lines][], 0, lines);
+    }
+    
+    // Lines from index on were edited; the ones added start out without brackets until they are scanned
+    public void replaceLines(int index, int removed, int added) {
+        Node[] before = split(root, index);
+        Node[] after = split(before[1], removed);
+        root = merge(merge(before[0], build(new int[added][], 0, added)), after[1]);
+    }
+    
+    // Puts scanned lines in place of as many lines from index on
+    public void setLines(int index, Node lines) {
+        Node[] before = split(root, index);
+        Node[] after = split(before[1], size(lines));
+        root = merge(merge(before[0], lines), after[1]);
+    }
+    
+    // Finds the brackets of lines[i] in text[lineStarts[i], lineStarts[i + 1]), skipping the strings and comments
+    // among tokens. Text starts at document offset base, and lineFirstToken[i] is the first token of line i.
+    static Node scan(char[] text, int[] lineStarts, int base, TokenRuns tokens, int[] lineFirstToken, int lines) {
+        int[][] found = new int[lines][];
+        int[] buffer = new int[16];
+        for (int line = 0; line < lines; line++) {
+            int start = lineStarts[line];
+            int end = Math.min(lineStarts[line + 1], text.length);
+            int token = lineFirstToken[line];
+            int lastToken = lineFirstToken[line + 1];
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                int kind;
+                switch (text[i]) {
+                    case '(': kind = 0; break;
+                    case ')': kind = 1; break;
+                    case '[': kind = 2; break;
+                    case ']': kind = 3; break;
+                    case '{': kind = 4; break;
+                    case '}': kind = 5; break;
+                    default: continue;
+                }
+                int offset = base + i;
+                while (token < lastToken && tokens.start(token) + tokens.length(token) <= offset) {
+                    token++;
+                }
+                if (token < lastToken && tokens.start(token) <= offset
+                        && (tokens.type(token) == LanguageLexer.STRING || tokens.type(token) == LanguageLexer.COMMENT)) {
+                    continue;
+                }
+                if (count == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, count * 2);
+                }
+                buffer[count++] = (i - start) << 3 | kind;
+            }
+            found[line] = count == 0 ? null : Arrays.copyOf(buffer, count);
+        }
+        return build(found, 0, lines);
+    }
+    
+    // Balanced subtree over lines[from, to), with priorities falling by depth so it is a valid treap as built
+    static Node build(int[][] lines, int from, int to) {
+        return build(lines, from, to, 0);
+    }
+    
+    private static Node build(int[][] lines, int from, int to, int depth) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        Node node = new Node(lines[middle], (31 - Math.min(depth, 31)) << 26 | PRIORITIES.nextInt(1 << 26));
+        node.left = build(lines, from, middle, depth + 1);
+        node.right = build(lines, middle + 1, to, depth + 1);
+        node.update();
+        return node;
+    }
+    
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.update();
+        return b;
+    }
+    
+    // Splits t into its first k lines and the rest
+    private static Node[] split(Node t, int k) {
+        if (t == null) {
+            return new Node[2];
+        }
+        if (k <= size(t.left)) {
+            Node[] parts = split(t.left, k);
+            t.left = parts[1];
+            t.update();
+            parts[1] = t;
+            return parts;
+        }
+        Node[] parts = split(t.right, k - size(t.left) - 1);
+        t.right = parts[0];
+        t.update();
+        parts[0] = t;
+        return parts;
+    }
+    
+    private Node lineNode(int line) {
+        Node t = root;
+        while (t != null) {
+            int leftSize = size(t.left);
+            if (line < leftSize) {
+                t = t.left;
+            } else if (line == leftSize) {
+                return t;
+            } else {
+                line -= leftSize + 1;
+                t = t.right;
+            }
+        }
+        return null;
+    }
+    
+    // Nesting depth at the start of a line
+    private int depthBefore(int line) {
+        int depth = 0;
+        Node t = root;
+        while (t != null) {
+            int leftSize = size(t.left);
+            int leftDelta = t.left == null ? 0 : t.left.delta;
+            if (line < leftSize) {
+                t = t.left;
+            } else if (line == leftSize) {
+                return depth + leftDelta;
+            } else {
+                depth += leftDelta + t.lineDelta;
+                line -= leftSize + 1;
+                t = t.right;
+            }
+        }
+        return depth;
+    }
+    
+    // Offset of the bracket that pairs with the one at offset, or -1 when there is none or the kinds differ
+    public int findMatch(Element root, int offset) {
+        int line = root.getElementIndex(offset);
+        Node node = lineNode(line);
+        if (node == null || node.brackets == null) {
+            return -1;
+        }
+        int column = offset - root.getElement(line).getStartOffset();
+        int index = 0;
+        int depth = depthBefore(line);
+        while (index < node.brackets.length && node.brackets[index] >> 3 < column) {
+            depth += sign(node.brackets[index++]);
+        }
+        if (index == node.brackets.length || node.brackets[index] >> 3 != column) {
+            return -1;
+        }
+        int kind = node.brackets[index] & 7;
+        long found = (kind & 1) == 0
+            // The first bracket after it that brings the depth back below it
+            ? firstAtMost(line, index + 1, depth + 1, depth)
+            // The last bracket before it that starts from the depth it ends at
+            : lastAtMost(line, index, depth - 1);
+        if (found < 0 || kindOf(found) >> 1 != kind >> 1) {
+            return -1;
+        }
+        return offsetOf(root, found);
+    }
+    
+    // Offsets of the innermost bracket pair around offset, or null when it is not enclosed or the kinds differ
+    public int[] enclosingPair(Element root, int offset) {
+        int line = root.getElementIndex(offset);
+        Node node = lineNode(line);
+        if (node == null) {
+            return null;
+        }
+        int column = offset - root.getElement(line).getStartOffset();
+        int index = 0;
+        int depth = depthBefore(line);
+        while (node.brackets != null && index < node.brackets.length && node.brackets[index] >> 3 < column) {
+            depth += sign(node.brackets[index++]);
+        }
+        long open = lastAtMost(line, index, depth - 1);
+        long close = open < 0 ? -1 : firstAtMost(line, index, depth, depth - 1);
+        if (close < 0 || kindOf(open) >> 1 != kindOf(close) >> 1) {
+            return null;
+        }
+        return new int[] {offsetOf(root, open), offsetOf(root, close)};
+    }
+    
+    // The first block opened on a line that closes at least two lines further down, as {open, close} offsets
+    public int[] foldableBlock(Element root, int line) {
+        Node node = lineNode(line);
+        if (node == null || node.brackets == null) {
+            return null;
+        }
+        int depth = depthBefore(line);
+        for (int i = 0; i < node.brackets.length; i++) {
+            int kind = node.brackets[i] & 7;
+            if ((kind & 1) == 0) {
+                long close = firstAtMost(line, i + 1, depth + 1, depth);
+                if (close >= 0 && (close >>> 32) >= line + 2 && kindOf(close) >> 1 == kind >> 1) {
+                    return new int[] {root.getElement(line).getStartOffset() + (node.brackets[i] >> 3), offsetOf(root, close)};
+                }
+            }
+            depth += sign(node.brackets[i]);
+        }
+        return null;
+    }
+    
+    // First bracket from (line, index) on after which the depth is at most threshold, as line << 32 | index.
+    // depth is the depth just before that bracket.
+    private long firstAtMost(int line, int index, int depth, int threshold) {
+        while (true) {
+            int[] brackets = lineNode(line).brackets;
+            for (int i = index; brackets != null && i < brackets.length; i++) {
+                depth += sign(brackets[i]);
+                if (depth <= threshold) {
+                    return (long) line << 32 | i;
+                }
+            }
+            line = firstLine(root, 0, 0, line + 1, threshold);
+            if (line < 0) {
+                return -1;
+            }
+            index = 0;
+            depth = depthBefore(line);
+        }
+    }
+    
+    // Last bracket before (line, index) before which the depth is at most threshold
+    private long lastAtMost(int line, int index, int threshold) {
+        while (true) {
+            int[] brackets = lineNode(line).brackets;
+            int depth = depthBefore(line);
+            int found = -1;
+            for (int i = 0; brackets != null && i < brackets.length && i < index; i++) {
+                if (depth <= threshold) {
+                    found = i;
+                }
+                depth += sign(brackets[i]);
+            }
+            if (found >= 0) {
+                return (long) line << 32 | found;
+            }
+            line = lastLine(root, 0, 0, line, threshold);
+            if (line < 0) {
+                return -1;
+            }
+            index = Integer.MAX_VALUE;
+        }
+    }
+    
+    // First line from 'from' on where a bracket leaves the depth at most threshold; base is the depth at t's start
+    private static int firstLine(Node t, int offset, int base, int from, int threshold) {
+        if (t == null || offset + t.lines <= from || base + t.lowestAfter > threshold) {
+            return -1;
+        }
+        int found = firstLine(t.left, offset, base, from, threshold);
+        if (found >= 0) {
+            return found;
+        }
+        int line = offset + size(t.left);
+        int lineBase = base + (t.left == null ? 0 : t.left.delta);
+        if (line >= from && lineBase + t.lineAfter <= threshold) {
+            return line;
+        }
+        return firstLine(t.right, line + 1, lineBase + t.lineDelta, from, threshold);
+    }
+    
+    // Last line before 'before' where a bracket starts from a depth at most threshold
+    private static int lastLine(Node t, int offset, int base, int before, int threshold) {
+        if (t == null || offset >= before || base + t.lowestBefore > threshold) {
+            return -1;
+        }
+        int line = offset + size(t.left);
+        int lineBase = base + (t.left == null ? 0 : t.left.delta);
+        int found = lastLine(t.right, line + 1, lineBase + t.lineDelta, before, threshold);
+        if (found >= 0) {
+            return found;
+        }
+        if (line < before && lineBase + t.lineBefore <= threshold) {
+            return line;
+        }
+        return lastLine(t.left, offset, base, before, threshold);
+    }
+    
+    private int kindOf(long found) {
+        return lineNode((int) (found >>> 32)).brackets[(int) found] & 7;
+    }
+    
+    private int offsetOf(Element root, long found) {
+        int line = (int) (found >>> 32);
+        return root.getElement(line).getStartOffset() + (lineNode(line).brackets[(int) found] >> 3);
     }
 }
 
-// Find and Replace Dialog
-class FindReplaceDialog extends JDialog {
-    private JTextField findField;
-    private JTextField replaceField;
-    private JCheckBox caseSensitiveBox;
-    private JCheckBox regexBox;
-    private JLabel statusLabel;
+// Word count kept per line and patched from document events, so the status bar never rescans the text
+class DocumentMetrics implements DocumentListener {
+    private final Document doc;
+    private final LineIntTable lineWords = new LineIntTable();
+    private final Segment segment = new Segment();
+    private long words;
+    
+    public DocumentMetrics(Document doc) {
+        this.doc = doc;
+        Element root = doc.getDefaultRootElement();
+        lineWords.reset(root.getElementCount());
+        recountLines(root, 0, root.getElementCount());
+        doc.addDocumentListener(this);
+    }
+    
+    public int getCharacters() { return doc.getLength(); }
+    public int getLines() { return doc.getDefaultRootElement().getElementCount(); }
+    public long getWords() { return words; }
+    
+    // Zero-based line of an offset, found through the element tree in O(log n)
+    public int lineOf(int offset) {
+        return doc.getDefaultRootElement().getElementIndex(offset);
+    }
+    
+    public int columnOf(int offset) {
+        Element root = doc.getDefaultRootElement();
+        return offset - root.getElement(root.getElementIndex(offset)).getStartOffset();
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        update(e);
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        update(e);
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+    
+    // Only the lines the edit touched are recounted
+    private void update(DocumentEvent e) {
+        Element root = doc.getDefaultRootElement();
+        int first = root.getElementIndex(e.getOffset());
+        int last = e.getType() == DocumentEvent.EventType.INSERT
+            ? root.getElementIndex(e.getOffset() + e.getLength()) : first;
+        
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            int index = change.getIndex();
+            int removed = change.getChildrenRemoved().length;
+            int added = change.getChildrenAdded().length;
+            for (int i = index; i < index + removed; i++) {
+                words -= lineWords.get(i);
+                lineWords.set(i, 0);
+            }
+            lineWords.removeLines(index, removed);
+            lineWords.insertLines(index, added);
+            first = Math.min(first, index);
+            last = Math.max(last, index + added - 1);
+        }
+        
+        for (int i = first; i <= last; i++) {
+            words -= lineWords.get(i);
+        }
+        recountLines(root, first, last + 1);
+    }
+    
+    private void recountLines(Element root, int first, int end) {
+        for (int line = first; line < end; line++) {
+            Element element = root.getElement(line);
+            int start = element.getStartOffset();
+            int length = Math.min(element.getEndOffset(), doc.getLength()) - start;
+            int count = 0;
+            try {
+                doc.getText(start, Math.max(0, length), segment);
+                boolean inWord = false;
+                for (int i = segment.offset, limit = segment.offset + segment.count; i < limit; i++) {
+                    boolean letter = !Character.isWhitespace(segment.array[i]);
+                    if (letter && !inWord) {
+                        count++;
+                    }
+                    inWord = letter;
+                }
+            } catch (BadLocationException ex) {
+                // Line bounds come from the document itself
+            }
+            lineWords.set(line, count);
+            words += count;
+        }
+    }
+}
+
+// Enhanced EditorTab class with syntax highlighting
+class EditorTab extends JPanel {
+    private JTextPane textPane;
+    private LineNumberGutter lineNumberGutter;
+    private JScrollPane scrollPane;
+    private Minimap minimap;
+    private File file;
+    private boolean modified = false;
+    private String language = "Plain Text";
+    private UndoHistory undoHistory;
     private AdvancedTextEditor parent;
+    private SyntaxHighlighter syntaxHighlighter;
+    private javax.swing.Timer syntaxTimer;
+    private LargeFileView largeFileView;
+    private DocumentMetrics metrics;
+    private TextEncoding encoding = TextEncoding.defaultEncoding();
+    private int loadProgress = -1;
+    private long pendingLine = -1;
+    private long diskModified = -1;
+    private long diskSize = -1;
+    private boolean changedOnDisk;
+    private boolean saving;
+    private boolean bulkEdit;
+    private boolean settingText;
+    private EditJournal journal;
+    private SessionStore.Entry deferredEntry;
+    private final BracketIndex brackets = new BracketIndex();
+    private CodeFolding folding;
     
-    public FindReplaceDialog(AdvancedTextEditor parent) {
-        super(parent, "Find & Replace", false);
+    // Second view over the same document while the tab is split. Highlighting, undo, metrics and the journal
+    // listen to the document, so they run once however many views there are.
+    private JTextPane secondPane;
+    private JScrollPane secondScrollPane;
+    private LineNumberGutter secondGutter;
+    private JSplitPane splitter;
+    private JTextPane activePane;
+    private static final int REPLACE_MERGE_GAP = 256;
+    private static final int REPLACE_MAX_SPAN = 64 * 1024;
+    private static final Highlighter.HighlightPainter BRACKET_PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(128, 128, 128, 96));
+    
+    public EditorTab(AdvancedTextEditor parent) {
         this.parent = parent;
+        setLayout(new BorderLayout());
         initializeComponents();
-        setSize(400, 200);
-        setLocationRelativeTo(parent);
+        setupUndoRedo();
+        setupSyntaxHighlighting();
     }
     
     private void initializeComponents() {
-        findField = new JTextField(20);
-        replaceField = new JTextField(20);
-        caseSensitiveBox = new JCheckBox("Case Sensitive");
-        regexBox = new JCheckBox("Regular Expression");
-        statusLabel = new JLabel(" ");
-        
-        JButton findNextButton = new JButton("Find Next");
-        findNextButton.addActionListener(e -> findNext());
-        
-        JButton findPrevButton = new JButton("Find Previous");
-        findPrevButton.addActionListener(e -> findPrevious());
-        
-        JButton replaceButton = new JButton("Replace");
-        replaceButton.addActionListener(e -> replace());
-        
-        JButton replaceAllButton = new JButton("Replace All");
-        replaceAllButton.addActionListener(e -> replaceAll());
-        
-        JPanel buttonPanel = new JPanel(new FlowLayout());
-        buttonPanel.add(findNextButton);
-        buttonPanel.add(findPrevButton);
-        buttonPanel.add(replaceButton);
-        buttonPanel.add(replaceAllButton);
-        
-        setLayout(new GridBagLayout());
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.insets = new Insets(5, 5, 5, 5);
+        EditorDocument document = new EditorDocument();
+        folding = new CodeFolding(document, brackets);
+        folding.setChangeListener(this::foldsChanged);
+        textPane = createPane(document);
+        textPane.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
         
-        gbc.gridx = 0; gbc.gridy = 0; gbc.anchor = GridBagConstraints.WEST;
-        add(new JLabel("Find:"), gbc);
-        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL;
-        add(findField, gbc);
+        lineNumberGutter = new LineNumberGutter(textPane);
+        lineNumberGutter.setFolding(folding);
+        metrics = new DocumentMetrics(textPane.getDocument());
         
-        gbc.gridx = 0; gbc.gridy = 1; gbc.anchor = GridBagConstraints.WEST; gbc.fill = GridBagConstraints.NONE;
-        add(new JLabel("Replace:"), gbc);
-        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL;
-        add(replaceField, gbc);
+        scrollPane = createScrollPane(textPane, lineNumberGutter);
+        activePane = textPane;
         
-        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 2; gbc.fill = GridBagConstraints.NONE;
-        add(caseSensitiveBox, gbc);
+        minimap = new Minimap();
+        minimap.setView(textPane, scrollPane.getViewport());
+        minimap.setVisible(parent == null || parent.getShowMinimap());
         
-        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2;
-        add(regexBox, gbc);
+        add(scrollPane, BorderLayout.CENTER);
+        add(minimap, BorderLayout.EAST);
         
-        gbc.gridx = 0; gbc.gridy = 4; gbc.gridwidth = 2;
-        add(buttonPanel, gbc);
+        // Document listener for modifications and syntax highlighting
+        textPane.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                syntaxHighlighter.documentChanged(e);
+                journalEdit(e);
+                EditorDiagnostics.viewChanged();
+                if (bulkEdit) {
+                    return;
+                }
+                setModified(true);
+                scheduleSyntaxHighlighting();
+                if (parent != null) {
+                    parent.scheduleStatusUpdate();
+                }
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                syntaxHighlighter.documentChanged(e);
+                journalEdit(e);
+                EditorDiagnostics.viewChanged();
+                if (bulkEdit) {
+                    return;
+                }
+                setModified(true);
+                scheduleSyntaxHighlighting();
+                if (parent != null) {
+                    parent.scheduleStatusUpdate();
+                }
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                if (parent != null) {
+                    parent.scheduleStatusUpdate();
+                }
+            }
+        });
         
-        gbc.gridx = 0; gbc.gridy = 5; gbc.gridwidth = 2;
-        add(statusLabel, gbc);
+        trackView(textPane);
     }
     
-    private void findNext() {
-        String searchText = findField.getText();
-        if (searchText.isEmpty()) return;
-        
-        EditorTab currentTab = parent.getCurrentEditorTab();
-        if (currentTab != null) {
-            JTextPane textPane = currentTab.getTextPane();
-            String content = textPane.getText();
-            int startPos = textPane.getCaretPosition();
-            
-            int index = findInText(content, searchText, startPos, true);
-            if (index != -1) {
-                textPane.setCaretPosition(index);
-                textPane.select(index, index + searchText.length());
-                statusLabel.setText("Found at position " + index);
-            } else {
-                statusLabel.setText("Not found");
+    // Views get their paragraphs from the folding kit, so folded lines take up no room
+    private JTextPane createPane(StyledDocument document) {
+        JTextPane pane = new JTextPane() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                EditorDiagnostics.painted();
+            }
+        };
+        pane.setEditorKit(new FoldingEditorKit(folding));
+        pane.setDocument(document);
+        return pane;
+    }
+    
+    private JScrollPane createScrollPane(JTextPane pane, LineNumberGutter gutter) {
+        JScrollPane scroll = new JScrollPane(pane);
+        scroll.setRowHeaderView(gutter);
+        scroll.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        scroll.getViewport().addChangeListener(e -> updateVisibleLines(pane, scroll.getViewport()));
+        return scroll;
+    }
+    
+    // The status bar follows the caret of whichever view was used last
+    private void trackView(JTextPane pane) {
+        pane.addCaretListener(e -> {
+            EditorDiagnostics.viewChanged();
+            if (parent != null) {
+                parent.scheduleStatusUpdate();
+            }
+            // After the edit that moved the caret, if any, has reached the bracket index
+            SwingUtilities.invokeLater(() -> caretMoved(pane));
+        });
+        pane.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                EditorDiagnostics.keyPressed(e);
+            }
+        });
+        pane.addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusGained(FocusEvent e) {
+                // A view dropped by unsplit no longer shows the document
+                if (pane != textPane && pane != secondPane) {
+                    return;
+                }
+                activePane = pane;
+                minimap.setView(pane, (JViewport) pane.getParent());
+                if (parent != null) {
+                    parent.scheduleStatusUpdate();
+                }
+            }
+        });
+    }
+    
+    private void caretMoved(JTextPane pane) {
+        if (pane != textPane && pane != secondPane) {
+            return;
+        }
+        folding.reveal(pane.getCaretPosition());
+        highlightBracketMatch(pane);
+    }
+    
+    // Marks the bracket at or just before the caret together with its partner
+    private void highlightBracketMatch(JTextPane pane) {
+        Highlighter highlighter = pane.getHighlighter();
+        Object tags = pane.getClientProperty(BracketIndex.class);
+        if (tags instanceof Object[]) {
+            for (Object tag : (Object[]) tags) {
+                highlighter.removeHighlight(tag);
+            }
+        }
+        pane.putClientProperty(BracketIndex.class, null);
+        
+        Element root = pane.getDocument().getDefaultRootElement();
+        int at = pane.getCaretPosition();
+        int match = brackets.findMatch(root, at);
+        if (match < 0 && at > 0) {
+            at--;
+            match = brackets.findMatch(root, at);
+        }
+        if (match < 0) {
+            return;
+        }
+        try {
+            pane.putClientProperty(BracketIndex.class, new Object[] {
+                highlighter.addHighlight(at, at + 1, BRACKET_PAINTER),
+                highlighter.addHighlight(match, match + 1, BRACKET_PAINTER)
+            });
+        } catch (BadLocationException e) {
+            // Both offsets come from the index of this document
+        }
+    }
+    
+    public void foldBlock() {
+        folding.foldEnclosing(getTextPane().getCaretPosition());
+    }
+    
+    public void unfoldBlock() {
+        folding.unfold(getTextPane().getCaretPosition());
+    }
+    
+    public void unfoldAll() {
+        folding.unfoldAll();
+    }
+    
+    // Folded lines changed, so each view lays its lines out again and no caret stays behind in a fold
+    private void foldsChanged() {
+        for (JTextPane pane : secondPane == null ? new JTextPane[] {textPane} : new JTextPane[] {textPane, secondPane}) {
+            View root = pane.getUI().getRootView(pane);
+            if (root.getViewCount() > 0) {
+                root.getView(0).preferenceChanged(null, false, true);
+            }
+            Element lines = pane.getDocument().getDefaultRootElement();
+            int line = lines.getElementIndex(pane.getCaretPosition());
+            int visible = folding.visibleLine(line);
+            if (visible != line) {
+                pane.setCaretPosition(lines.getElement(visible).getEndOffset() - 1);
+            }
+            pane.repaint();
+        }
+        lineNumberGutter.repaint();
+        if (secondGutter != null) {
+            secondGutter.repaint();
+        }
+    }
+    
+    // Shows a second view of the document beside or below the first, or removes it again.
+    // Choosing the other orientation while split turns the split instead.
+    public void toggleSplit(boolean horizontal) {
+        int orientation = horizontal ? JSplitPane.HORIZONTAL_SPLIT : JSplitPane.VERTICAL_SPLIT;
+        if (splitter != null) {
+            if (splitter.getOrientation() == orientation) {
+                unsplit();
+            } else {
+                splitter.setOrientation(orientation);
+                splitter.setDividerLocation(0.5);
+            }
+            return;
+        }
+        if (largeFileView != null) {
+            return;
+        }
+        
+        secondPane = createPane(textPane.getStyledDocument());
+        secondPane.setFont(textPane.getFont());
+        secondPane.setEditable(textPane.isEditable());
+        secondGutter = new LineNumberGutter(secondPane);
+        secondGutter.setFolding(folding);
+        secondGutter.setFont(lineNumberGutter.getFont());
+        secondScrollPane = createScrollPane(secondPane, secondGutter);
+        styleView(secondPane, secondGutter, secondScrollPane,
+                  textPane.getBackground(), textPane.getForeground(), textPane.getSelectionColor());
+        trackView(secondPane);
+        
+        // The new view starts out showing what the first one shows
+        secondPane.setCaretPosition(textPane.getCaretPosition());
+        Point position = scrollPane.getViewport().getViewPosition();
+        
+        remove(scrollPane);
+        splitter = new JSplitPane(orientation, scrollPane, secondScrollPane);
+        splitter.setResizeWeight(0.5);
+        add(splitter, BorderLayout.CENTER);
+        revalidate();
+        SwingUtilities.invokeLater(() -> {
+            splitter.setDividerLocation(0.5);
+            secondScrollPane.getViewport().setViewPosition(position);
+        });
+    }
+    
+    // Keeps the view that was in use; the other one lets go of the document. Whatever listens to the document through
+    // the second view is moved or removed first, so the document keeps exactly the listeners it had before the split.
+    private void unsplit() {
+        if (activePane == secondPane) {
+            Point position = secondScrollPane.getViewport().getViewPosition();
+            textPane.setCaretPosition(secondPane.getCaretPosition());
+            SwingUtilities.invokeLater(() -> scrollPane.getViewport().setViewPosition(position));
+        }
+        remove(splitter);
+        splitter.removeAll();
+        add(scrollPane, BorderLayout.CENTER);
+        // The minimap leaves the second view while that still shows the shared document
+        minimap.setView(textPane, scrollPane.getViewport());
+        secondGutter.dispose();
+        secondPane.setDocument(new DefaultStyledDocument());
+        secondPane = null;
+        secondScrollPane = null;
+        secondGutter = null;
+        splitter = null;
+        activePane = textPane;
+        revalidate();
+        repaint();
+        textPane.requestFocusInWindow();
+    }
+    
+    private void setEditable(boolean editable) {
+        textPane.setEditable(editable);
+        if (secondPane != null) {
+            secondPane.setEditable(editable);
+        }
+    }
+    
+    // Queues an edit for the recovery journal, starting one on the first edit since the tab was clean
+    private void journalEdit(DocumentEvent e) {
+        if (settingText || loadProgress >= 0 || largeFileView != null || parent == null || !parent.isJournaled(this)) {
+            return;
+        }
+        boolean insert = e.getType() == DocumentEvent.EventType.INSERT;
+        if (journal == null || journal.isClosed()) {
+            TextSnapshot text = getTextSnapshot();
+            // A clean tab still holds what its file decodes to, so the journal can start from the file instead of a copy
+            boolean fromFile = !modified && file != null && isDiskStateCurrent();
+            int before = text.length() + (insert ? -e.getLength() : e.getLength());
+            journal = EditJournal.start(file, encoding, getLineSeparator(), diskSize, diskModified, fromFile ? before : -1, text);
+            if (!fromFile) {
+                return;
+            }
+        }
+        if (insert) {
+            try {
+                journal.inserted(e.getOffset(), textPane.getDocument().getText(e.getOffset(), e.getLength()));
+            } catch (BadLocationException ex) {
+                // The event describes text that is in the document
+            }
+        } else {
+            journal.removed(e.getOffset(), e.getLength());
+        }
+        if (journal.needsCompaction(textPane.getDocument().getLength())) {
+            journal.compact(getTextSnapshot());
+        }
+    }
+    
+    public void discardJournal() {
+        if (journal != null) {
+            journal.delete();
+            journal = null;
+        }
+    }
+    
+    // Fills a new tab with text recovered from a journal, which carries on as the tab's journal
+    public void restoreText(EditJournal.Recovery recovery) {
+        setEncoding(recovery.encoding);
+        setText(recovery.text);
+        textPane.getDocument().putProperty(DefaultEditorKit.EndOfLineStringProperty, recovery.lineSeparator);
+        undoHistory.discardAllEdits();
+        recordDiskState();
+        setModified(true);
+        journal = EditJournal.resume(recovery, getTextSnapshot());
+    }
+    
+    private void setupUndoRedo() {
+        undoHistory = new UndoHistory((EditorDocument) textPane.getDocument(), AdvancedTextEditor.MAX_UNDO_STACK);
+    }
+    
+    private void setupSyntaxHighlighting() {
+        syntaxHighlighter = new SyntaxHighlighter("Dark");
+        syntaxHighlighter.setDamageListener(this::scheduleSyntaxHighlighting);
+        syntaxHighlighter.setBracketIndex(brackets);
+        
+        // Timer to delay syntax highlighting for better performance
+        syntaxTimer = new javax.swing.Timer(500, e -> {
+            applyIncrementalHighlighting();
+            syntaxTimer.stop();
+        });
+        syntaxTimer.setRepeats(false);
+    }
+    
+    private void scheduleSyntaxHighlighting() {
+        if (syntaxTimer.isRunning()) {
+            syntaxTimer.restart();
+        } else {
+            syntaxTimer.start();
+        }
+    }
+    
+    // Lexing happens in the background, only the styling is applied on the EDT
+    private void applySyntaxHighlighting() {
+        if (!language.equals("Plain Text")) {
+            syntaxHighlighter.highlightText(textPane.getStyledDocument(), language);
+        }
+    }
+    
+    // Lets the highlighter style what the user is looking at before the rest of the file
+    private void updateVisibleLines(JTextPane pane, JViewport viewport) {
+        if (syntaxHighlighter == null) {
+            return;
+        }
+        Rectangle visible = viewport.getViewRect();
+        Element root = pane.getDocument().getDefaultRootElement();
+        int top = pane.viewToModel2D(new Point(visible.x, visible.y));
+        int bottom = pane.viewToModel2D(new Point(visible.x, visible.y + visible.height));
+        syntaxHighlighter.viewportChanged(root.getElementIndex(Math.max(0, top)),
+                                          root.getElementIndex(Math.max(0, bottom)));
+    }
+    
+    // Restyles only the lines edited since the last pass
+    private void applyIncrementalHighlighting() {
+        syntaxHighlighter.highlightDamaged(textPane.getStyledDocument(), language);
+    }
+    
+    private void updateLineNumbers() {
+        lineNumberGutter.setFont(textPane.getFont());
+        lineNumberGutter.revalidate();
+        lineNumberGutter.repaint();
+        if (secondGutter != null) {
+            secondGutter.setFont(textPane.getFont());
+            secondGutter.revalidate();
+            secondGutter.repaint();
+        }
+    }
+    
+    public void duplicateLine() {
+        try {
+            JTextPane pane = getTextPane();
+            int caretPos = pane.getCaretPosition();
+            Element root = textPane.getDocument().getDefaultRootElement();
+            int lineNum = root.getElementIndex(caretPos);
+            Element line = root.getElement(lineNum);
+            int lineStart = line.getStartOffset();
+            int lineEnd = line.getEndOffset();
+            
+            String lineText = pane.getText(lineStart, lineEnd - lineStart);
+            textPane.getDocument().insertString(lineEnd, lineText, null);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    public void commentUncommentLines() {
+        String commentPrefix = getCommentPrefix();
+        
+        try {
+            JTextPane pane = getTextPane();
+            int caretPos = pane.getCaretPosition();
+            Element root = textPane.getDocument().getDefaultRootElement();
+            int lineNum = root.getElementIndex(caretPos);
+            Element line = root.getElement(lineNum);
+            int lineStart = line.getStartOffset();
+            int lineEnd = line.getEndOffset();
+            
+            String lineText = pane.getText(lineStart, lineEnd - lineStart);
+            String trimmedLine = lineText.trim();
+            
+            if (trimmedLine.startsWith(commentPrefix.trim())) {
+                // Uncomment
+                String newLine = lineText.replaceFirst(Pattern.quote(commentPrefix), "");
+                textPane.getDocument().remove(lineStart, lineEnd - lineStart);
+                textPane.getDocument().insertString(lineStart, newLine, null);
+            } else {
+                // Comment
+                String newLine = commentPrefix + lineText;
+                textPane.getDocument().remove(lineStart, lineEnd - lineStart);
+                textPane.getDocument().insertString(lineStart, newLine, null);
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private String getCommentPrefix() {
+        switch (language) {
+            case "Java":
+            case "JavaScript":
+            case "C":
+            case "C++":
+            case "CSS":
+                return "// ";
+            case "Python":
+                return "# ";
+            case "HTML":
+            case "XML":
+                return "<!-- ";
+            default:
+                return "# ";
+        }
+    }
+    
+    public void undo() {
+        moveCaretAfterHistory(undoHistory.undo());
+    }
+    
+    public void redo() {
+        moveCaretAfterHistory(undoHistory.redo());
+    }
+    
+    private void moveCaretAfterHistory(int caret) {
+        if (caret >= 0) {
+            getTextPane().setCaretPosition(Math.min(caret, textPane.getDocument().getLength()));
+        }
+    }
+    
+    // The tab is closed for good
+    public void discardHistory() {
+        undoHistory.close();
+    }
+    
+    // Applies many replacements as one undoable step, last range first so earlier offsets stay valid.
+    // Matches close together are merged into one span and only the part of the span that differs is
+    // replaced, so dense matches cost a few large edits instead of one document edit each.
+    public void replaceRanges(int[] starts, int[] ends, int count, java.util.function.IntFunction<String> replacementAt) {
+        if (count == 0) {
+            return;
+        }
+        AbstractDocument doc = (AbstractDocument) textPane.getDocument();
+        TextSnapshot text = getTextSnapshot();
+        JTextPane pane = getTextPane();
+        int caret = pane.getCaretPosition();
+        int shift = 0;
+        boolean changed = false;
+        
+        undoHistory.beginGroup();
+        bulkEdit = true;
+        try {
+            int last = count - 1;
+            while (last >= 0) {
+                int first = last;
+                while (first > 0 && starts[first] - ends[first - 1] <= REPLACE_MERGE_GAP
+                        && ends[last] - starts[first - 1] <= REPLACE_MAX_SPAN) {
+                    first--;
+                }
+                
+                int spanStart = starts[first];
+                int spanEnd = ends[last];
+                StringBuilder replacement = new StringBuilder();
+                for (int i = first; i <= last; i++) {
+                    if (i > first) {
+                        replacement.append(text, ends[i - 1], starts[i]);
+                    }
+                    replacement.append(replacementAt.apply(i));
+                }
+                
+                // Trim what the old and new span have in common at either end
+                int oldLength = spanEnd - spanStart;
+                int prefix = 0;
+                while (prefix < oldLength && prefix < replacement.length()
+                        && text.charAt(spanStart + prefix) == replacement.charAt(prefix)) {
+                    prefix++;
+                }
+                int suffix = 0;
+                while (suffix < oldLength - prefix && suffix < replacement.length() - prefix
+                        && text.charAt(spanEnd - 1 - suffix) == replacement.charAt(replacement.length() - 1 - suffix)) {
+                    suffix++;
+                }
+                if (prefix < oldLength - suffix || prefix < replacement.length() - suffix) {
+                    doc.replace(spanStart + prefix, oldLength - prefix - suffix,
+                                replacement.substring(prefix, replacement.length() - suffix), null);
+                    changed = true;
+                }
+                if (spanEnd <= caret) {
+                    shift += replacement.length() - oldLength;
+                }
+                last = first - 1;
+            }
+        } catch (BadLocationException e) {
+            // Ranges come from a snapshot of this document taken on the EDT
+        } finally {
+            bulkEdit = false;
+            undoHistory.endGroup();
+        }
+        if (!changed) {
+            return;
+        }
+        
+        pane.setCaretPosition(Math.max(0, Math.min(caret + shift, doc.getLength())));
+        setModified(true);
+        applyIncrementalHighlighting();
+        if (parent != null) {
+            parent.scheduleStatusUpdate();
+        }
+    }
+    
+    // The document is read-only until the background load has streamed in every chunk
+    public void beginLoading() {
+        loadProgress = 0;
+        setEditable(false);
+        undoHistory.setRecording(false);
+        recordDiskState();
+    }
+    
+    public void appendLoadedText(String text) {
+        Document doc = textPane.getDocument();
+        try {
+            doc.insertString(doc.getLength(), text, null);
+        } catch (BadLocationException e) {
+            // Cannot happen when appending at the end
+        }
+    }
+    
+    public void finishLoading(String lineSeparator) {
+        if (lineSeparator != null) {
+            textPane.getDocument().putProperty(DefaultEditorKit.EndOfLineStringProperty, lineSeparator);
+        }
+        loadProgress = -1;
+        setEditable(true);
+        undoHistory.discardAllEdits();
+        undoHistory.setRecording(true);
+        setModified(false);
+        applyPendingLine();
+    }
+    
+    // Moves the caret to a 1-based line, or remembers it until the file has loaded
+    public void goToLine(long line) {
+        if (largeFileView != null) {
+            largeFileView.goToLine(line - 1);
+            if (!largeFileView.getMappedFile().isIndexed()) {
+                pendingLine = line;
+            }
+        } else if (loadProgress >= 0) {
+            pendingLine = line;
+        } else {
+            JTextPane pane = getTextPane();
+            Element root = pane.getDocument().getDefaultRootElement();
+            int index = (int) Math.max(0, Math.min(line - 1, root.getElementCount() - 1));
+            pane.setCaretPosition(root.getElement(index).getStartOffset());
+            pane.requestFocusInWindow();
+        }
+    }
+    
+    public void applyPendingLine() {
+        if (pendingLine > 0) {
+            long line = pendingLine;
+            pendingLine = -1;
+            goToLine(line);
+        }
+    }
+    
+    // Swaps the editable pane for a paged, read-only view over a mapped file
+    public void showLargeFile(MappedTextFile mappedFile, int tabSize) {
+        if (splitter != null) {
+            unsplit();
+        }
+        largeFileView = new LargeFileView(mappedFile, textPane.getFont(), tabSize);
+        largeFileView.setColors(textPane.getBackground(), textPane.getForeground(), textPane.getSelectionColor());
+        largeFileView.setPositionListener(() -> parent.scheduleStatusUpdate());
+        textPane.setEditable(false);
+        remove(scrollPane);
+        remove(minimap);
+        add(largeFileView, BorderLayout.CENTER);
+        revalidate();
+        recordDiskState();
+    }
+    
+    // Puts the caret and scroll position back where the last session left them
+    public void restoreSessionView(SessionStore.Entry entry) {
+        if (entry.large) {
+            return;
+        }
+        textPane.setCaretPosition((int) Math.max(0, Math.min(entry.caret, textPane.getDocument().getLength())));
+        // Runs after the caret has scrolled itself into view, so the saved position wins
+        SwingUtilities.invokeLater(() -> {
+            JViewport viewport = scrollPane.getViewport();
+            Dimension view = viewport.getViewSize();
+            Dimension extent = viewport.getExtentSize();
+            viewport.setViewPosition(new Point(Math.max(0, Math.min(entry.scrollX, view.width - extent.width)),
+                                               Math.max(0, Math.min(entry.scrollY, view.height - extent.height))));
+        });
+    }
+    
+    public void applyCachedTokens(SessionStore.Tokens tokens) {
+        if (tokens.language.equals(language)) {
+            syntaxHighlighter.restore(textPane.getStyledDocument(), language, tokens.lineStates, tokens.runs);
+        }
+    }
+    
+    // What the session needs to reopen this tab; unsaved untitled text is left to the journal
+    public SessionStore.Entry getSessionEntry() {
+        if (deferredEntry != null) {
+            return deferredEntry;
+        }
+        if (file == null) {
+            return null;
+        }
+        if (largeFileView != null) {
+            return new SessionStore.Entry(file, true, largeFileView.getCaretLine(), 0, 0);
+        }
+        Point position = scrollPane.getViewport().getViewPosition();
+        return new SessionStore.Entry(file, false, textPane.getCaretPosition(), position.x, position.y);
+    }
+    
+    // The highlighting worth caching: complete, and for text that is exactly the file on disk
+    public SessionStore.Tokens captureTokens() {
+        if (deferredEntry != null || file == null || largeFileView != null || modified || loadProgress >= 0
+                || language.equals("Plain Text") || !syntaxHighlighter.isSettled() || !isDiskStateCurrent()) {
+            return null;
+        }
+        StyledDocument doc = textPane.getStyledDocument();
+        return new SessionStore.Tokens(language, syntaxHighlighter.getLineStates(), syntaxHighlighter.captureTokens(doc));
+    }
+    
+    // Replaces the text with what is now on disk, keeping the caret near where it was
+    public void reloadText(String text, TextEncoding encoding) {
+        int caret = textPane.getCaretPosition();
+        this.encoding = encoding;
+        setText(text);
+        textPane.setCaretPosition(Math.min(caret, textPane.getDocument().getLength()));
+        undoHistory.discardAllEdits();
+        setModified(false);
+        recordDiskState();
+    }
+    
+    // Size and time of the file as last read or written, to tell outside changes from our own
+    public void recordDiskState() {
+        if (file != null) {
+            diskModified = file.lastModified();
+            diskSize = file.length();
+        }
+        changedOnDisk = false;
+    }
+    
+    public boolean isDiskStateCurrent() {
+        return file != null && file.lastModified() == diskModified && file.length() == diskSize;
+    }
+    
+    public void refresh() {
+        updateLineNumbers();
+        applySyntaxHighlighting();
+        repaint();
+    }
+    
+    public void applyTheme(Color backgroundColor, Color textColor, Color selectionColor) {
+        styleView(textPane, lineNumberGutter, scrollPane, backgroundColor, textColor, selectionColor);
+        if (secondPane != null) {
+            styleView(secondPane, secondGutter, secondScrollPane, backgroundColor, textColor, selectionColor);
+        }
+        minimap.refresh();
+        if (largeFileView != null) {
+            largeFileView.setColors(backgroundColor, textColor, selectionColor);
+        }
+        
+        // Update syntax highlighter theme
+        String theme = "Dark";
+        if (backgroundColor.equals(new Color(240, 240, 240))) {
+            theme = "Light";
+        } else if (backgroundColor.equals(new Color(39, 40, 34))) {
+            theme = "Monokai";
+        } else if (backgroundColor.equals(new Color(0, 43, 54))) {
+            theme = "Solarized Dark";
+        }
+        
+        syntaxHighlighter.setTheme(theme);
+        applySyntaxHighlighting();
+    }
+    
+    private static void styleView(JTextPane pane, LineNumberGutter gutter, JScrollPane scroll,
+                                  Color backgroundColor, Color textColor, Color selectionColor) {
+        pane.setBackground(backgroundColor);
+        pane.setForeground(textColor);
+        pane.setSelectionColor(selectionColor);
+        pane.setCaretColor(textColor);
+        
+        gutter.setBackground(backgroundColor.brighter());
+        gutter.setForeground(textColor.darker());
+        
+        scroll.getViewport().setBackground(backgroundColor);
+    }
+    
+    public void detectLanguage() {
+        if (file != null) {
+            String fileName = file.getName().toLowerCase();
+            if (fileName.endsWith(".java")) {
+                language = "Java";
+            } else if (fileName.endsWith(".py")) {
+                language = "Python";
+            } else if (fileName.endsWith(".html") || fileName.endsWith(".htm")) {
+                language = "HTML";
+            } else if (fileName.endsWith(".js")) {
+                language = "JavaScript";
+            } else if (fileName.endsWith(".css")) {
+                language = "CSS";
+            } else if (fileName.endsWith(".xml")) {
+                language = "XML";
+            } else if (fileName.endsWith(".json")) {
+                language = "JSON";
+            } else {
+                language = "Plain Text";
+            }
+            
+            // Apply syntax highlighting after language detection
+            applySyntaxHighlighting();
+        }
+    }
+    
+    // Getters and setters
+    // The view in use; both views edit the same document
+    public JTextPane getTextPane() { return activePane; }
+    public File getFile() { return file; }
+    public void setFile(File file) { 
+        this.file = file; 
+        detectLanguage();
+    }
+    public String getText() { return textPane.getText(); }
+    public TextSnapshot getTextSnapshot() { return ((EditorDocument) textPane.getDocument()).snapshot(); }
+    public void setText(String text) { 
+        // One insert into the piece table instead of the editor kit's chunked reader
+        Document doc = textPane.getDocument();
+        settingText = true;
+        undoHistory.setRecording(false);
+        try {
+            doc.remove(0, doc.getLength());
+            doc.insertString(0, text, null);
+        } catch (BadLocationException e) {
+            // Cannot happen for offsets taken from the document itself
+        } finally {
+            settingText = false;
+            undoHistory.setRecording(loadProgress < 0);
+        }
+        textPane.setCaretPosition(0);
+        applySyntaxHighlighting();
+    }
+    public boolean isModified() { return modified; }
+    public void setModified(boolean modified) {
+        this.modified = modified;
+        // Once the tab is clean there is nothing left to recover
+        if (!modified) {
+            discardJournal();
+        }
+    }
+    public String getLanguage() { return language; }
+    public boolean isLargeFile() { return largeFileView != null; }
+    public DocumentMetrics getMetrics() { return metrics; }
+    public TextEncoding getEncoding() { return encoding; }
+    public void setEncoding(TextEncoding encoding) { this.encoding = encoding; }
+    public int getLoadProgress() { return loadProgress; }
+    public void setLoadProgress(int loadProgress) { if (this.loadProgress >= 0) this.loadProgress = loadProgress; }
+    public String getLineSeparator() {
+        Object separator = textPane.getDocument().getProperty(DefaultEditorKit.EndOfLineStringProperty);
+        return separator instanceof String ? (String) separator : System.lineSeparator();
+    }
+    public LargeFileView getLargeFileView() { return largeFileView; }
+    public void setMinimapVisible(boolean visible) {
+        minimap.setVisible(visible);
+        revalidate();
+    }
+    public boolean isDeferred() { return deferredEntry != null; }
+    public void setDeferred(SessionStore.Entry entry) { deferredEntry = entry; }
+    public SessionStore.Entry takeDeferred() {
+        SessionStore.Entry entry = deferredEntry;
+        deferredEntry = null;
+        return entry;
+    }
+    public boolean isChangedOnDisk() { return changedOnDisk; }
+    public void setChangedOnDisk(boolean changedOnDisk) { this.changedOnDisk = changedOnDisk; }
+    public boolean isSaving() { return saving; }
+    public void setSaving(boolean saving) { this.saving = saving; }
+}
+
+// Line number gutter that paints only the numbers inside the clip, reading line starts from the root element
+class LineNumberGutter extends JComponent implements DocumentListener {
+    private static final int MIN_DIGITS = 3;
+    private static final int PADDING = 5;
+    private static final int FOLD_WIDTH = 12;
+    
+    private final JTextComponent textComponent;
+    private CodeFolding folding;
+    private int lineCount;
+    private int digits = MIN_DIGITS;
+    
+    public LineNumberGutter(JTextComponent textComponent) {
+        this.textComponent = textComponent;
+        setOpaque(true);
+        setFont(textComponent.getFont());
+        setBackground(new Color(240, 240, 240));
+        setForeground(Color.GRAY);
+        
+        textComponent.getDocument().addDocumentListener(this);
+        lineCount = textComponent.getDocument().getDefaultRootElement().getElementCount();
+        digits = Math.max(MIN_DIGITS, Integer.toString(lineCount).length());
+        
+        // Wrapping and font changes move lines without changing their count
+        textComponent.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                revalidate();
+                repaint();
+            }
+        });
+    }
+    
+    // Adds a column of fold markers; clicking one folds or unfolds its block
+    public void setFolding(CodeFolding folding) {
+        this.folding = folding;
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getX() < getWidth() - FOLD_WIDTH) {
+                    return;
+                }
+                int offset = textComponent.viewToModel2D(new Point(0, e.getY()));
+                if (offset >= 0) {
+                    folding.toggle(textComponent.getDocument().getDefaultRootElement().getElementIndex(offset));
+                }
+            }
+        });
+        revalidate();
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        FontMetrics metrics = getFontMetrics(getFont());
+        int markers = folding == null ? 0 : FOLD_WIDTH;
+        return new Dimension(digits * metrics.charWidth('0') + 2 * PADDING + markers, textComponent.getHeight());
+    }
+    
+    // The document outlives this gutter when a split view is closed
+    public void dispose() {
+        textComponent.getDocument().removeDocumentListener(this);
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        linesChanged(e);
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        linesChanged(e);
+    }
+    
+    // Restyling follows a lexer pass, which may have found brackets that start or end blocks
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        repaintMarkers();
+    }
+    
+    private void repaintMarkers() {
+        if (folding != null) {
+            repaint(getWidth() - FOLD_WIDTH, 0, FOLD_WIDTH, getHeight());
+        }
+    }
+    
+    // Numbers only move when the line count changes, and then only from the edited line down
+    private void linesChanged(DocumentEvent e) {
+        Element root = textComponent.getDocument().getDefaultRootElement();
+        int count = root.getElementCount();
+        if (count == lineCount) {
+            repaintMarkers();
+            return;
+        }
+        lineCount = count;
+        
+        int newDigits = Math.max(MIN_DIGITS, Integer.toString(count).length());
+        if (newDigits != digits) {
+            digits = newDigits;
+            revalidate();
+            repaint();
+            return;
+        }
+        
+        SwingUtilities.invokeLater(() -> {
+            try {
+                int offset = Math.min(e.getOffset(), textComponent.getDocument().getLength());
+                Rectangle2D from = textComponent.modelToView2D(offset);
+                if (from != null) {
+                    int y = (int) from.getY();
+                    repaint(0, y, getWidth(), Math.max(0, getHeight() - y));
+                    return;
+                }
+            } catch (BadLocationException ex) {
+                // Fall through to a full repaint
+            }
+            repaint();
+        });
+    }
+    
+    // Laying out the numbers against the text's views is where the gutter spends its time, so that is what is measured
+    @Override
+    protected void paintComponent(Graphics g) {
+        long start = System.nanoTime();
+        paintNumbers(g);
+        EditorDiagnostics.record(EditorDiagnostics.LINE_NUMBERS, start);
+    }
+    
+    private void paintNumbers(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        
+        Document doc = textComponent.getDocument();
+        Element root = doc.getDefaultRootElement();
+        FontMetrics metrics = g.getFontMetrics(getFont());
+        g.setFont(getFont());
+        g.setColor(getForeground());
+        
+        int offset = textComponent.viewToModel2D(new Point(0, clip.y));
+        if (offset < 0) {
+            return;
+        }
+        int markers = folding == null ? 0 : FOLD_WIDTH;
+        int right = getWidth() - PADDING - markers;
+        int bottom = clip.y + clip.height;
+        for (int line = root.getElementIndex(offset); line < root.getElementCount(); line++) {
+            if (folding != null) {
+                line = folding.nextVisibleLine(line);
+                if (line >= root.getElementCount()) {
+                    break;
+                }
+            }
+            Rectangle2D bounds;
+            try {
+                bounds = textComponent.modelToView2D(root.getElement(line).getStartOffset());
+            } catch (BadLocationException e) {
+                break;
+            }
+            if (bounds == null || bounds.getY() > bottom) {
+                break;
+            }
+            String number = Integer.toString(line + 1);
+            int baseline = (int) bounds.getY() + metrics.getAscent();
+            g.drawString(number, right - metrics.stringWidth(number), baseline);
+            if (folding != null) {
+                paintMarker(g, folding.markerAt(line), getWidth() - FOLD_WIDTH, (int) bounds.getY(), (int) bounds.getHeight());
+            }
+        }
+    }
+    
+    // A triangle pointing down for an open block, right for a folded one
+    private void paintMarker(Graphics g, int marker, int x, int y, int height) {
+        if (marker == CodeFolding.NO_FOLD) {
+            return;
+        }
+        int size = FOLD_WIDTH - 4;
+        int top = y + (height - size) / 2;
+        if (marker == CodeFolding.EXPANDED) {
+            g.fillPolygon(new int[] {x + 1, x + 1 + size, x + 1 + size / 2}, new int[] {top + 2, top + 2, top + size - 1}, 3);
+        } else {
+            g.fillPolygon(new int[] {x + 2, x + 2, x + size - 1}, new int[] {top + 1, top + 1 + size, top + 1 + size / 2}, 3);
+        }
+    }
+}
+
+// Overview of the whole file beside the editor: two pixel rows per line, or several lines to a row once the file is
+// taller than the strip. Rows are drawn into cached tiles from the token colors already in the document, so an edit or
+// a restyle only redraws the tiles its lines fall in, and scrolling or dragging the viewport indicator only copies
+// tiles to the screen.
+class Minimap extends JComponent implements DocumentListener {
+    private static final int WIDTH = 100;
+    private static final int LINE_HEIGHT = 2;
+    private static final int TILE_HEIGHT = 128;
+    private static final int TAB_SIZE = 4;
+    private static final Color INDICATOR_COLOR = new Color(128, 128, 128, 64);
+    
+    private JTextComponent textComponent;
+    private JViewport viewport;
+    private final javax.swing.event.ChangeListener viewportListener = e -> repaint();
+    private final Segment segment = new Segment();
+    
+    // Tiles at the current scale; a missing tile is drawn when it is next painted
+    private java.awt.image.BufferedImage[] tiles = new java.awt.image.BufferedImage[0];
+    private int lineCount = -1;
+    private double lineHeight;
+    private int mapHeight;
+    private int dragOffset = -1;
+    
+    public Minimap() {
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                Rectangle indicator = getIndicator();
+                if (indicator == null) {
+                    return;
+                }
+                // Grabbing the indicator keeps the grab point under the mouse, a click elsewhere centers the view there
+                dragOffset = indicator.contains(indicator.x, e.getY()) ? e.getY() - indicator.y : indicator.height / 2;
+                scrollTo(e.getY());
+            }
+            
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (dragOffset >= 0) {
+                    scrollTo(e.getY());
+                }
+            }
+            
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragOffset = -1;
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+    }
+    
+    // Follows the given view, e.g. whichever half of a split was used last
+    public void setView(JTextComponent textComponent, JViewport viewport) {
+        if (this.textComponent == textComponent) {
+            return;
+        }
+        if (this.textComponent != null) {
+            this.textComponent.getDocument().removeDocumentListener(this);
+            this.viewport.removeChangeListener(viewportListener);
+        }
+        this.textComponent = textComponent;
+        this.viewport = viewport;
+        textComponent.getDocument().addDocumentListener(this);
+        viewport.addChangeListener(viewportListener);
+        refresh();
+    }
+    
+    // Colors changed, so every tile is drawn again
+    public void refresh() {
+        lineCount = -1;
+        repaint();
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(WIDTH, 0);
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        edited(e);
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        edited(e);
+    }
+    
+    // Highlighting restyles a range of lines
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        Element root = e.getDocument().getDefaultRootElement();
+        invalidateLines(root.getElementIndex(e.getOffset()), root.getElementIndex(e.getOffset() + e.getLength()));
+    }
+    
+    // Added or removed lines move every row below them
+    private void edited(DocumentEvent e) {
+        Element root = e.getDocument().getDefaultRootElement();
+        int first = root.getElementIndex(e.getOffset());
+        if (root.getElementCount() != lineCount) {
+            invalidateLines(first, Integer.MAX_VALUE);
+        } else {
+            int end = e.getType() == DocumentEvent.EventType.INSERT ? e.getOffset() + e.getLength() : e.getOffset();
+            invalidateLines(first, root.getElementIndex(end));
+        }
+    }
+    
+    private void invalidateLines(int first, int last) {
+        if (tiles.length == 0) {
+            return;
+        }
+        int top = Math.min(tiles.length - 1, (int) (first * lineHeight) / TILE_HEIGHT);
+        int bottom = last == Integer.MAX_VALUE ? tiles.length - 1
+            : Math.min(tiles.length - 1, (int) ((last + 1) * lineHeight) / TILE_HEIGHT);
+        for (int i = top; i <= bottom; i++) {
+            tiles[i] = null;
+        }
+        repaint(0, top * TILE_HEIGHT, getWidth(), (bottom - top + 1) * TILE_HEIGHT);
+    }
+    
+    // The scale depends on the line count and the strip's height; when either changes all tiles go
+    private void updateScale() {
+        int lines = textComponent.getDocument().getDefaultRootElement().getElementCount();
+        double height = lines * LINE_HEIGHT <= getHeight() ? LINE_HEIGHT : (double) getHeight() / lines;
+        if (lines == lineCount && height == lineHeight) {
+            return;
+        }
+        lineCount = lines;
+        lineHeight = height;
+        mapHeight = (int) Math.ceil(lines * height);
+        tiles = new java.awt.image.BufferedImage[(mapHeight + TILE_HEIGHT - 1) / TILE_HEIGHT];
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (textComponent == null) {
+            return;
+        }
+        g.setColor(textComponent.getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        
+        updateScale();
+        for (int i = clip.y / TILE_HEIGHT; i < tiles.length && i * TILE_HEIGHT < clip.y + clip.height; i++) {
+            if (tiles[i] == null) {
+                tiles[i] = drawTile(i);
+            }
+            g.drawImage(tiles[i], 0, i * TILE_HEIGHT, null);
+        }
+        
+        Rectangle indicator = getIndicator();
+        if (indicator != null) {
+            g.setColor(INDICATOR_COLOR);
+            g.fillRect(indicator.x, indicator.y, indicator.width, indicator.height);
+        }
+    }
+    
+    private java.awt.image.BufferedImage drawTile(int index) {
+        java.awt.image.BufferedImage tile = new java.awt.image.BufferedImage(WIDTH, TILE_HEIGHT,
+                                                                            java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((java.awt.image.DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        Element root = textComponent.getDocument().getDefaultRootElement();
+        int top = index * TILE_HEIGHT;
+        int previous = -1;
+        for (int row = 0; row < TILE_HEIGHT; row++) {
+            int line = (int) ((top + row) / lineHeight);
+            if (line >= lineCount || line >= root.getElementCount()) {
+                break;
+            }
+            // A line taller than a row is drawn once, leaving a gap below it; rows covering several lines show the first
+            if (line != previous) {
+                drawLine(root.getElement(line), pixels, row * WIDTH);
+                previous = line;
+            }
+        }
+        return tile;
+    }
+    
+    // Each visible character becomes one pixel in the color of its token
+    private void drawLine(Element paragraph, int[] pixels, int rowStart) {
+        Document doc = textComponent.getDocument();
+        int fallback = textComponent.getForeground().getRGB();
+        int x = 0;
+        for (int i = 0; i < paragraph.getElementCount() && x < WIDTH; i++) {
+            Element run = paragraph.getElement(i);
+            Object foreground = run.getAttributes().getAttribute(StyleConstants.Foreground);
+            int color = (foreground instanceof Color ? ((Color) foreground).getRGB() : fallback) & 0xFFFFFF | 0xC0000000;
+            int start = run.getStartOffset();
+            int length = Math.min(run.getEndOffset(), doc.getLength()) - start;
+            try {
+                doc.getText(start, Math.max(0, Math.min(length, WIDTH - x)), segment);
+            } catch (BadLocationException e) {
+                return;
+            }
+            for (int k = segment.offset, end = segment.offset + segment.count; k < end && x < WIDTH; k++) {
+                char c = segment.array[k];
+                if (c == '\t') {
+                    x = (x / TAB_SIZE + 1) * TAB_SIZE;
+                } else {
+                    if (c > ' ') {
+                        pixels[rowStart + x] = color;
+                    }
+                    x++;
+                }
+            }
+        }
+    }
+    
+    // The part of the map the viewport shows, in proportion to where it is scrolled
+    private Rectangle getIndicator() {
+        if (viewport == null || mapHeight == 0) {
+            return null;
+        }
+        int viewHeight = viewport.getViewSize().height;
+        if (viewHeight <= 0) {
+            return null;
+        }
+        Rectangle visible = viewport.getViewRect();
+        int top = (int) ((long) visible.y * mapHeight / viewHeight);
+        int height = Math.max(4, (int) ((long) visible.height * mapHeight / viewHeight));
+        return new Rectangle(0, top, getWidth(), height);
+    }
+    
+    private void scrollTo(int y) {
+        int viewHeight = viewport.getViewSize().height;
+        int extent = viewport.getExtentSize().height;
+        long target = (long) (y - dragOffset) * viewHeight / Math.max(1, mapHeight);
+        int position = (int) Math.max(0, Math.min(target, viewHeight - extent));
+        viewport.setViewPosition(new Point(viewport.getViewPosition().x, position));
+    }
+}
+
+// Collapsed bracket blocks. The text stays in the document; the lines inside a fold are laid out with no height,
+// so search, undo and the journal see the same document as before.
+class CodeFolding implements DocumentListener {
+    public static final int NO_FOLD = 0;
+    public static final int EXPANDED = 1;
+    public static final int COLLAPSED = 2;
+    
+    private final Document doc;
+    private final BracketIndex brackets;
+    private final List<Position[]> folds = new ArrayList<>();
+    private Runnable changeListener;
+    
+    // Lines the folds start on, and the first and last line of each run of hidden lines, both sorted
+    private int[] foldLines = new int[0];
+    private int[] hidden = new int[0];
+    
+    public CodeFolding(Document doc, BracketIndex brackets) {
+        this.doc = doc;
+        this.brackets = brackets;
+        doc.addDocumentListener(this);
+    }
+    
+    // Called whenever lines are hidden or shown
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
+    }
+    
+    public boolean isEmpty() {
+        return folds.isEmpty();
+    }
+    
+    public boolean isHidden(int line) {
+        return runOf(line) >= 0;
+    }
+    
+    public int nextVisibleLine(int line) {
+        int run = runOf(line);
+        return run < 0 ? line : hidden[2 * run + 1] + 1;
+    }
+    
+    // The line a hidden line is folded into, or the line itself
+    public int visibleLine(int line) {
+        int run = runOf(line);
+        return run < 0 ? line : hidden[2 * run] - 1;
+    }
+    
+    public boolean isFoldStart(int line) {
+        return Arrays.binarySearch(foldLines, line) >= 0;
+    }
+    
+    public int markerAt(int line) {
+        if (isFoldStart(line)) {
+            return COLLAPSED;
+        }
+        return brackets.foldableBlock(doc.getDefaultRootElement(), line) != null ? EXPANDED : NO_FOLD;
+    }
+    
+    public void toggle(int line) {
+        if (isFoldStart(line)) {
+            removeFolds(line, false);
+            return;
+        }
+        int[] block = brackets.foldableBlock(doc.getDefaultRootElement(), line);
+        if (block != null) {
+            fold(block[0], block[1]);
+        }
+    }
+    
+    // Folds the innermost block around offset that spans enough lines to hide any and is not folded yet
+    public boolean foldEnclosing(int offset) {
+        Element root = doc.getDefaultRootElement();
+        int[] pair = brackets.enclosingPair(root, offset);
+        while (pair != null && (root.getElementIndex(pair[1]) - root.getElementIndex(pair[0]) < 2
+                                || isFoldStart(root.getElementIndex(pair[0])))) {
+            pair = brackets.enclosingPair(root, pair[0]);
+        }
+        if (pair == null) {
+            return false;
+        }
+        fold(pair[0], pair[1]);
+        return true;
+    }
+    
+    // Opens the fold starting on the offset's line, or else the innermost one hiding it
+    public void unfold(int offset) {
+        int line = doc.getDefaultRootElement().getElementIndex(offset);
+        removeFolds(line, !isFoldStart(line));
+    }
+    
+    public void unfoldAll() {
+        if (!folds.isEmpty()) {
+            folds.clear();
+            changed();
+        }
+    }
+    
+    // A caret that lands inside a fold opens every fold around it
+    public void reveal(int offset) {
+        int line = doc.getDefaultRootElement().getElementIndex(offset);
+        if (isHidden(line)) {
+            Element root = doc.getDefaultRootElement();
+            folds.removeIf(fold -> root.getElementIndex(fold[0].getOffset()) < line
+                                   && root.getElementIndex(fold[1].getOffset()) > line);
+            changed();
+        }
+    }
+    
+    private void fold(int open, int close) {
+        Element root = doc.getDefaultRootElement();
+        if (isFoldStart(root.getElementIndex(open))) {
+            return;
+        }
+        try {
+            folds.add(new Position[] {doc.createPosition(open), doc.createPosition(close)});
+        } catch (BadLocationException e) {
+            return;
+        }
+        changed();
+    }
+    
+    // Removes the fold starting on line, or with containing set the innermost fold whose hidden lines include it
+    private void removeFolds(int line, boolean containing) {
+        Element root = doc.getDefaultRootElement();
+        Position[] innermost = null;
+        int innermostStart = -1;
+        for (Position[] fold : folds) {
+            int start = root.getElementIndex(fold[0].getOffset());
+            int end = root.getElementIndex(fold[1].getOffset());
+            boolean matches = containing ? start < line && end > line : start == line;
+            if (matches && start > innermostStart) {
+                innermost = fold;
+                innermostStart = start;
+            }
+        }
+        if (innermost != null) {
+            folds.remove(innermost);
+            changed();
+        }
+    }
+    
+    private void changed() {
+        rebuild();
+        if (changeListener != null) {
+            changeListener.run();
+        }
+    }
+    
+    // Folds whose block shrank below three lines open up; the rest become sorted runs of hidden lines
+    private void rebuild() {
+        Element root = doc.getDefaultRootElement();
+        List<int[]> runs = new ArrayList<>();
+        for (Iterator<Position[]> it = folds.iterator(); it.hasNext(); ) {
+            Position[] fold = it.next();
+            int start = root.getElementIndex(fold[0].getOffset());
+            int end = root.getElementIndex(fold[1].getOffset());
+            if (end - start < 2) {
+                it.remove();
+            } else {
+                runs.add(new int[] {start + 1, end - 1});
+            }
+        }
+        foldLines = new int[runs.size()];
+        for (int i = 0; i < runs.size(); i++) {
+            foldLines[i] = runs.get(i)[0] - 1;
+        }
+        Arrays.sort(foldLines);
+        
+        runs.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] merged = new int[2 * runs.size()];
+        int count = 0;
+        for (int[] run : runs) {
+            if (count > 0 && run[0] <= merged[count - 1] + 1) {
+                merged[count - 1] = Math.max(merged[count - 1], run[1]);
+            } else {
+                merged[count++] = run[0];
+                merged[count++] = run[1];
+            }
+        }
+        hidden = Arrays.copyOf(merged, count);
+    }
+    
+    private int runOf(int line) {
+        int low = 0;
+        int high = hidden.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (line < hidden[2 * middle]) {
+                high = middle - 1;
+            } else if (line > hidden[2 * middle + 1]) {
+                low = middle + 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        linesMoved();
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        linesMoved();
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+    
+    // Edits move folds with their text; lines that change sides need laying out again once the edit is done
+    private void linesMoved() {
+        if (folds.isEmpty()) {
+            return;
+        }
+        int[] before = hidden;
+        int folded = folds.size();
+        rebuild();
+        if (folds.size() != folded || !Arrays.equals(before, hidden)) {
+            SwingUtilities.invokeLater(() -> {
+                if (changeListener != null) {
+                    changeListener.run();
+                }
+            });
+        }
+    }
+}
+
+// Styled editor kit whose paragraphs collapse to nothing while they are inside a fold
+class FoldingEditorKit extends StyledEditorKit {
+    private final CodeFolding folding;
+    
+    public FoldingEditorKit(CodeFolding folding) {
+        this.folding = folding;
+    }
+    
+    @Override
+    public ViewFactory getViewFactory() {
+        ViewFactory styled = super.getViewFactory();
+        return element -> AbstractDocument.ParagraphElementName.equals(element.getName())
+            ? new FoldingParagraphView(element) : styled.create(element);
+    }
+    
+    private class FoldingParagraphView extends ParagraphView {
+        FoldingParagraphView(Element element) {
+            super(element);
+        }
+        
+        private int line() {
+            return getDocument().getDefaultRootElement().getElementIndex(getStartOffset());
+        }
+        
+        private boolean isHidden() {
+            return !folding.isEmpty() && folding.isHidden(line());
+        }
+        
+        @Override
+        public float getPreferredSpan(int axis) {
+            return axis == Y_AXIS && isHidden() ? 0 : super.getPreferredSpan(axis);
+        }
+        
+        @Override
+        public float getMinimumSpan(int axis) {
+            return axis == Y_AXIS && isHidden() ? 0 : super.getMinimumSpan(axis);
+        }
+        
+        @Override
+        public float getMaximumSpan(int axis) {
+            return axis == Y_AXIS && isHidden() ? 0 : super.getMaximumSpan(axis);
+        }
+        
+        // A folded line ends in a marker standing in for the lines it hides
+        @Override
+        public void paint(Graphics g, Shape allocation) {
+            if (isHidden()) {
+                return;
+            }
+            super.paint(g, allocation);
+            if (folding.isEmpty() || !folding.isFoldStart(line())) {
+                return;
+            }
+            try {
+                Rectangle end = modelToView(getEndOffset() - 1, allocation, Position.Bias.Forward).getBounds();
+                FontMetrics metrics = g.getFontMetrics();
+                int width = metrics.stringWidth("...") + 6;
+                g.setColor(Color.GRAY);
+                g.drawRoundRect(end.x + 4, end.y + 1, width, end.height - 2, 4, 4);
+                g.drawString("...", end.x + 7, end.y + metrics.getAscent());
+            } catch (BadLocationException e) {
+                // The line end is inside this view
+            }
+        }
+    }
+}
+
+// Styled document kept in a piece table so large files avoid full-text copies
+class EditorDocument extends DefaultStyledDocument {
+    private boolean captureRemovedText;
+    private String removedText;
+    
+    public EditorDocument() {
+        super(new PieceTableContent(), new StyleContext());
+    }
+    
+    // Removed text is read while it is still in the content, for the undo history
+    @Override
+    protected void removeUpdate(DefaultDocumentEvent chng) {
+        if (captureRemovedText) {
+            try {
+                removedText = getText(chng.getOffset(), chng.getLength());
+            } catch (BadLocationException e) {
+                removedText = null;
+            }
+        }
+        super.removeUpdate(chng);
+    }
+    
+    public void setCaptureRemovedText(boolean capture) {
+        captureRemovedText = capture;
+        removedText = null;
+    }
+    
+    public String takeRemovedText() {
+        String text = removedText;
+        removedText = null;
+        return text;
+    }
+    
+    // Immutable view of the current text, taken in O(1) and readable from any thread
+    public TextSnapshot snapshot() {
+        readLock();
+        try {
+            return ((PieceTableContent) getContent()).snapshot(0, getLength());
+        } finally {
+            readUnlock();
+        }
+    }
+}
+
+// Undo history kept as plain text operations. Style-only edits from highlighting are ignored, typing is grouped into
+// words, and once the steps in memory pass a count or byte budget the oldest move to a compressed log on disk.
+class UndoHistory implements UndoableEditListener {
+    private static final long MEMORY_BUDGET = 8L * 1024 * 1024;
+    private static final long DISK_BUDGET = 256L * 1024 * 1024;
+    private static final long PAUSE_MILLIS = 1000;
+    private static final int OP_OVERHEAD = 48;
+    // Undo and redo logs have a thread each, so reading one back never waits behind writes to the other
+    private static final ExecutorService UNDO_SPILL_EXECUTOR = spillExecutor("undo-spill");
+    private static final ExecutorService REDO_SPILL_EXECUTOR = spillExecutor("redo-spill");
+    
+    private static ExecutorService spillExecutor(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    // Text removed at an offset and text inserted there; one of the two is empty
+    private static class Op {
+        int offset;
+        final StringBuilder removed;
+        final StringBuilder inserted;
+        
+        Op(int offset, String removed, String inserted) {
+            this.offset = offset;
+            this.removed = new StringBuilder(removed);
+            this.inserted = new StringBuilder(inserted);
+        }
+    }
+    
+    // What one undo or redo step reverts or replays
+    private static class Group {
+        final List<Op> ops = new ArrayList<>();
+        long bytes;
+    }
+    
+    // Steps moved out of memory, kept as a stack in a temp file: each record is a deflated group followed by its
+    // length, so the newest can be read back from the end. The file belongs to the log's thread. The newest spilled
+    // steps stay in memory, and as undo or redo uses them up the next ones are read back ahead of time, so a step
+    // is only waited for when they are used up faster than the disk can keep up.
+    private static class SpillLog {
+        private static final int READY_GROUPS = 4;
+        private static final int MIN_READY_GROUPS = 2;
+        private static final long READY_BYTES = 1024 * 1024;
+        
+        // Newest last; everything on disk is older than these
+        private final Deque<Group> ready = new ArrayDeque<>();
+        private long readyBytes;
+        // Records on disk or queued for it, the read under way, and a tag that changes whenever the log is cleared
+        private int stored;
+        private java.util.concurrent.FutureTask<Group> fetch;
+        private int epoch;
+        
+        // Records actually in the file; only touched by the log's thread
+        private final ExecutorService executor;
+        private int records;
+        private Path file;
+        private java.nio.channels.FileChannel channel;
+        
+        SpillLog(ExecutorService executor) {
+            this.executor = executor;
+        }
+        
+        boolean isEmpty() {
+            return ready.isEmpty() && stored == 0 && fetch == null;
+        }
+        
+        void push(Group group) {
+            ready.addLast(group);
+            readyBytes += group.bytes;
+            // A read under way expects the newest record to stay where it was
+            if (fetch != null) {
+                return;
+            }
+            while (ready.size() > MIN_READY_GROUPS && (ready.size() > READY_GROUPS || readyBytes > READY_BYTES)) {
+                Group oldest = ready.pollFirst();
+                readyBytes -= oldest.bytes;
+                stored++;
+                int tag = epoch;
+                executor.execute(() -> write(oldest, tag));
+            }
+        }
+        
+        Group pop() {
+            if (ready.isEmpty()) {
+                prefetch();
+                if (fetch != null) {
+                    java.util.concurrent.FutureTask<Group> task = fetch;
+                    fetch = null;
+                    fetched(result(task));
+                }
+            }
+            Group group = ready.pollLast();
+            if (group != null) {
+                readyBytes -= group.bytes;
+                prefetch();
+            }
+            return group;
+        }
+        
+        void clear() {
+            if (!isEmpty()) {
+                forget();
+                executor.execute(this::truncate);
+            }
+        }
+        
+        void close() {
+            forget();
+            executor.execute(() -> {
+                closeChannel();
+                if (file != null) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Deleted on exit instead
+                    }
+                }
+            });
+        }
+        
+        private void forget() {
+            ready.clear();
+            readyBytes = 0;
+            stored = 0;
+            fetch = null;
+            epoch++;
+        }
+        
+        // Reads the newest record on disk back while fewer steps than wanted are ready
+        private void prefetch() {
+            if (fetch != null || stored == 0) {
+                return;
+            }
+            if (ready.size() >= MIN_READY_GROUPS && (ready.size() >= READY_GROUPS || readyBytes >= READY_BYTES)) {
+                return;
+            }
+            stored--;
+            java.util.concurrent.FutureTask<Group> task = new java.util.concurrent.FutureTask<>(this::readLast);
+            fetch = task;
+            executor.execute(() -> {
+                task.run();
+                SwingUtilities.invokeLater(() -> {
+                    if (fetch == task) {
+                        fetch = null;
+                        fetched(result(task));
+                        prefetch();
+                    }
+                });
+            });
+        }
+        
+        private void fetched(Group group) {
+            if (group != null) {
+                ready.addFirst(group);
+                readyBytes += group.bytes;
+            } else {
+                // The file could not be read; what is left in it is no use without that record
+                stored = 0;
+                executor.execute(this::truncate);
+            }
+        }
+        
+        private static Group result(java.util.concurrent.FutureTask<Group> task) {
+            try {
+                return task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+        }
+        
+        // Records cut from the file by the log's thread are taken off the count, unless the log was cleared since
+        private void dropped(int lost, int tag) {
+            if (lost > 0) {
+                SwingUtilities.invokeLater(() -> {
+                    if (tag == epoch) {
+                        stored = Math.max(0, stored - lost);
+                    }
+                });
+            }
+        }
+        
+        private void write(Group group, int tag) {
+            try {
+                if (channel == null) {
+                    file = Files.createTempFile("undo-", ".log");
+                    file.toFile().deleteOnExit();
+                    channel = java.nio.channels.FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new java.util.zip.DeflaterOutputStream(bytes)))) {
+                    out.writeInt(group.ops.size());
+                    for (Op op : group.ops) {
+                        out.writeInt(op.offset);
+                        out.writeInt(op.removed.length());
+                        out.writeChars(op.removed.toString());
+                        out.writeInt(op.inserted.length());
+                        out.writeChars(op.inserted.toString());
+                    }
+                }
+                if (channel.size() + bytes.size() > DISK_BUDGET) {
+                    // History this old goes as a whole; a gap in it would make the rest unusable
+                    channel.truncate(0);
+                    dropped(records, tag);
+                    records = 0;
+                }
+                java.nio.ByteBuffer record = java.nio.ByteBuffer.allocate(bytes.size() + 4);
+                record.put(bytes.toByteArray()).putInt(bytes.size()).flip();
+                long position = channel.size();
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+                records++;
+            } catch (IOException e) {
+                // Without the log the spilled steps are simply gone, this one included
+                dropped(records + 1, tag);
+                truncate();
+            }
+        }
+        
+        private Group readLast() throws IOException {
+            if (channel == null || channel.size() < 4) {
+                return null;
+            }
+            java.nio.ByteBuffer length = java.nio.ByteBuffer.allocate(4);
+            channel.read(length, channel.size() - 4);
+            int size = length.flip().getInt();
+            long start = channel.size() - 4 - size;
+            java.nio.ByteBuffer record = java.nio.ByteBuffer.allocate(size);
+            while (record.hasRemaining() && channel.read(record, start + record.position()) > 0) {
+                // Fill the record
+            }
+            channel.truncate(start);
+            records--;
+            
+            Group group = new Group();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new java.util.zip.InflaterInputStream(
+                    new ByteArrayInputStream(record.array()))))) {
+                int ops = in.readInt();
+                for (int i = 0; i < ops; i++) {
+                    int offset = in.readInt();
+                    String removed = readChars(in);
+                    String inserted = readChars(in);
+                    group.ops.add(new Op(offset, removed, inserted));
+                    group.bytes += OP_OVERHEAD + 2L * (removed.length() + inserted.length());
+                }
+            }
+            return group;
+        }
+        
+        private static String readChars(DataInputStream in) throws IOException {
+            char[] chars = new char[in.readInt()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = in.readChar();
+            }
+            return new String(chars);
+        }
+        
+        private void truncate() {
+            records = 0;
+            try {
+                if (channel != null) {
+                    channel.truncate(0);
+                }
+            } catch (IOException e) {
+                closeChannel();
+            }
+        }
+        
+        private void closeChannel() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Already closed
+            }
+            channel = null;
+        }
+    }
+    
+    private final EditorDocument doc;
+    private final int maxGroups;
+    
+    // Oldest first; the ends nearest the present are the last elements
+    private final Deque<Group> undoStack = new ArrayDeque<>();
+    private final Deque<Group> redoStack = new ArrayDeque<>();
+    private final SpillLog undoLog = new SpillLog(UNDO_SPILL_EXECUTOR);
+    private final SpillLog redoLog = new SpillLog(REDO_SPILL_EXECUTOR);
+    private long memoryBytes;
+    private boolean recording = true;
+    private boolean applying;
+    
+    // Typing state: whether the top step still takes keystrokes, and where the last one landed
+    private boolean open;
+    private boolean lastInsert;
+    private int lastEnd;
+    private char lastChar;
+    private long lastTime;
+    private Group explicit;
+    
+    public UndoHistory(EditorDocument doc, int maxGroups) {
+        this.doc = doc;
+        this.maxGroups = maxGroups;
+        doc.addUndoableEditListener(this);
+        doc.setCaptureRemovedText(true);
+    }
+    
+    // Loading and wholesale text replacement are not steps anyone undoes
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+        doc.setCaptureRemovedText(recording);
+        open = false;
+    }
+    
+    @Override
+    public void undoableEditHappened(UndoableEditEvent e) {
+        if (!(e.getEdit() instanceof DocumentEvent)) {
+            return;
+        }
+        DocumentEvent event = (DocumentEvent) e.getEdit();
+        String removedText = event.getType() == DocumentEvent.EventType.REMOVE ? doc.takeRemovedText() : null;
+        if (applying || !recording) {
+            return;
+        }
+        if (event.getType() == DocumentEvent.EventType.INSERT) {
+            try {
+                inserted(event.getOffset(), doc.getText(event.getOffset(), event.getLength()));
+            } catch (BadLocationException ex) {
+                // The event describes text that is in the document
+            }
+        } else if (removedText != null) {
+            removed(event.getOffset(), removedText);
+        }
+    }
+    
+    // Everything until endGroup becomes one step, e.g. a Replace All
+    public void beginGroup() {
+        explicit = new Group();
+    }
+    
+    public void endGroup() {
+        Group group = explicit;
+        explicit = null;
+        if (group != null && !group.ops.isEmpty()) {
+            push(group);
+        }
+        open = false;
+    }
+    
+    private void inserted(int offset, String text) {
+        long now = System.currentTimeMillis();
+        char c = text.isEmpty() ? 0 : text.charAt(0);
+        boolean keystroke = text.length() == 1 && c != '\n';
+        if (explicit != null) {
+            add(explicit, new Op(offset, "", text));
+        } else if (open && keystroke && now - lastTime < PAUSE_MILLIS && offset == lastEnd
+                   && !(lastInsert && !isWordChar(lastChar) && isWordChar(c))) {
+            // Continues the word, or joins the removal of the selection it was typed over
+            Group group = undoStack.peekLast();
+            Op op = group.ops.get(group.ops.size() - 1);
+            if (lastInsert && op.offset + op.inserted.length() == offset) {
+                op.inserted.append(c);
+                grow(group, 2);
+            } else {
+                add(group, new Op(offset, "", text));
+            }
+        } else {
+            Group group = new Group();
+            add(group, new Op(offset, "", text));
+            push(group);
+        }
+        open = keystroke && explicit == null;
+        lastInsert = true;
+        lastEnd = offset + text.length();
+        lastChar = c;
+        lastTime = now;
+        trim();
+    }
+    
+    private void removed(int offset, String text) {
+        long now = System.currentTimeMillis();
+        boolean keystroke = text.length() == 1;
+        if (explicit != null) {
+            add(explicit, new Op(offset, text, ""));
+        } else if (open && !lastInsert && keystroke && now - lastTime < PAUSE_MILLIS
+                   && (offset == lastEnd - 1 || offset == lastEnd)) {
+            // Backspace grows the removal leftwards, Delete rightwards
+            Group group = undoStack.peekLast();
+            Op op = group.ops.get(group.ops.size() - 1);
+            if (offset == lastEnd - 1) {
+                op.removed.insert(0, text);
+                op.offset = offset;
+            } else {
+                op.removed.append(text);
+            }
+            grow(group, 2);
+        } else {
+            Group group = new Group();
+            add(group, new Op(offset, text, ""));
+            push(group);
+        }
+        open = explicit == null;
+        lastInsert = false;
+        lastEnd = offset;
+        lastTime = now;
+        trim();
+    }
+    
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+    
+    private void add(Group group, Op op) {
+        group.ops.add(op);
+        grow(group, OP_OVERHEAD + 2L * (op.removed.length() + op.inserted.length()));
+    }
+    
+    // A step counts against the budget once it is on the stack
+    private void grow(Group group, long bytes) {
+        group.bytes += bytes;
+        if (group == undoStack.peekLast()) {
+            memoryBytes += bytes;
+        }
+    }
+    
+    // A new step ends whatever could have been redone
+    private void push(Group group) {
+        undoStack.addLast(group);
+        memoryBytes += group.bytes;
+        for (Group undone : redoStack) {
+            memoryBytes -= undone.bytes;
+        }
+        redoStack.clear();
+        redoLog.clear();
+    }
+    
+    public boolean canUndo() {
+        return !undoStack.isEmpty() || !undoLog.isEmpty();
+    }
+    
+    public boolean canRedo() {
+        return !redoStack.isEmpty() || !redoLog.isEmpty();
+    }
+    
+    // Returns where the caret belongs afterwards, or -1 when there was nothing to undo
+    public int undo() {
+        Group group = take(undoStack, undoLog);
+        if (group == null) {
+            return -1;
+        }
+        int caret = -1;
+        applying = true;
+        try {
+            for (int i = group.ops.size() - 1; i >= 0; i--) {
+                Op op = group.ops.get(i);
+                doc.remove(op.offset, op.inserted.length());
+                doc.insertString(op.offset, op.removed.toString(), null);
+                caret = op.offset + op.removed.length();
+            }
+        } catch (BadLocationException e) {
+            // History and document disagree; none of what is left still applies
+            discardAllEdits();
+            return caret;
+        } finally {
+            applying = false;
+        }
+        put(redoStack, group);
+        return caret;
+    }
+    
+    public int redo() {
+        Group group = take(redoStack, redoLog);
+        if (group == null) {
+            return -1;
+        }
+        int caret = -1;
+        applying = true;
+        try {
+            for (Op op : group.ops) {
+                doc.remove(op.offset, op.removed.length());
+                doc.insertString(op.offset, op.inserted.toString(), null);
+                caret = op.offset + op.inserted.length();
+            }
+        } catch (BadLocationException e) {
+            discardAllEdits();
+            return caret;
+        } finally {
+            applying = false;
+        }
+        put(undoStack, group);
+        return caret;
+    }
+    
+    private Group take(Deque<Group> stack, SpillLog log) {
+        open = false;
+        Group group = stack.pollLast();
+        if (group == null) {
+            return log.pop();
+        }
+        memoryBytes -= group.bytes;
+        return group;
+    }
+    
+    private void put(Deque<Group> stack, Group group) {
+        stack.addLast(group);
+        memoryBytes += group.bytes;
+        trim();
+    }
+    
+    public void discardAllEdits() {
+        undoStack.clear();
+        redoStack.clear();
+        undoLog.clear();
+        redoLog.clear();
+        memoryBytes = 0;
+        open = false;
+    }
+    
+    // The tab is gone, and its logs with it
+    public void close() {
+        discardAllEdits();
+        doc.removeUndoableEditListener(this);
+        undoLog.close();
+        redoLog.close();
+    }
+    
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+    
+    // Moves the steps furthest from the present to disk; the step nearest it on each side stays in memory
+    private void trim() {
+        while (undoStack.size() > 1 && (undoStack.size() + redoStack.size() > maxGroups || memoryBytes > MEMORY_BUDGET)) {
+            spill(undoStack, undoLog);
+        }
+        while (redoStack.size() > 1 && (undoStack.size() + redoStack.size() > maxGroups || memoryBytes > MEMORY_BUDGET)) {
+            spill(redoStack, redoLog);
+        }
+    }
+    
+    private void spill(Deque<Group> stack, SpillLog log) {
+        Group group = stack.pollFirst();
+        memoryBytes -= group.bytes;
+        log.push(group);
+    }
+}
+
+// Document content stored as pieces of immutable buffers in a persistent treap
+class PieceTableContent implements AbstractDocument.Content {
+    private static final int ADD_BLOCK_SIZE = 64 * 1024;
+    private static final int OWN_BUFFER_THRESHOLD = 16 * 1024;
+    private static final int PARTIAL_COPY_LIMIT = 16 * 1024;
+    
+    private final Random priorities = new Random();
+    private final MarkList marks = new MarkList();
+    private Piece root;
+    
+    // Typed text is appended to fixed blocks that are never moved or overwritten
+    private char[] addBlock = new char[ADD_BLOCK_SIZE];
+    private int addLength;
+    
+    public PieceTableContent() {
+        // Content always ends with the implied line break
+        root = new Piece(new char[] {'\n'}, null, 0, 1, priorities.nextInt(), null, null);
+    }
+    
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        return marks.create(offset);
+    }
+    
+    @Override
+    public int length() {
+        return Piece.size(root);
+    }
+    
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where > length() || where < 0) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        
+        marks.insertUpdate(where);
+        Piece[] parts = split(root, where);
+        Piece left = parts[0];
+        Piece last = rightmost(left);
+        int length = str.length();
+        
+        if (length < OWN_BUFFER_THRESHOLD && last != null && last.chars == addBlock
+                && last.start + last.length == addLength && addLength + length <= ADD_BLOCK_SIZE) {
+            // Consecutive typing just grows the previous piece
+            str.getChars(0, length, addBlock, addLength);
+            addLength += length;
+            left = growRightmost(left, length);
+        } else {
+            left = merge(left, newPiece(str));
+        }
+        root = merge(left, parts[1]);
+        return new InsertUndo(where, length);
+    }
+    
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", length() + 1);
+        }
+        
+        List<SavedMark> saved = marks.removeUpdate(where, nitems);
+        Piece[] before = split(root, where);
+        Piece[] removed = split(before[1], nitems);
+        root = merge(before[0], removed[1]);
+        return new RemoveUndo(where, nitems, removed[0], saved);
+    }
+    
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        checkRange(where, len);
+        char[] chars = new char[len];
+        copy(root, where, len, chars, 0);
+        return new String(chars);
+    }
+    
+    @Override
+    public void getChars(int where, int len, Segment chars) throws BadLocationException {
+        checkRange(where, len);
+        if (len == 0) {
+            chars.array = new char[0];
+            chars.offset = 0;
+            chars.count = 0;
+            return;
+        }
+        
+        // Point straight into the buffer when the range sits inside one typed piece
+        Piece piece = root;
+        int pieceStart = 0;
+        while (true) {
+            int leftSize = Piece.size(piece.left);
+            if (where < pieceStart + leftSize) {
+                piece = piece.left;
+            } else if (where < pieceStart + leftSize + piece.length) {
+                pieceStart += leftSize;
+                break;
+            } else {
+                pieceStart += leftSize + piece.length;
+                piece = piece.right;
+            }
+        }
+        
+        int available = pieceStart + piece.length - where;
+        if (piece.chars != null && (len <= available || chars.isPartialReturn())) {
+            chars.array = piece.chars;
+            chars.offset = piece.start + where - pieceStart;
+            chars.count = Math.min(len, available);
+            return;
+        }
+        
+        if (chars.isPartialReturn()) {
+            len = Math.min(len, Math.max(available, PARTIAL_COPY_LIMIT));
+        }
+        chars.array = new char[len];
+        chars.offset = 0;
+        chars.count = len;
+        copy(root, where, len, chars.array, 0);
+    }
+    
+    public TextSnapshot snapshot(int offset, int length) {
+        return new TextSnapshot(root, offset, length);
+    }
+    
+    private void checkRange(int where, int len) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid location", length() + 1);
+        }
+    }
+    
+    private Piece newPiece(String str) {
+        int length = str.length();
+        if (length >= OWN_BUFFER_THRESHOLD) {
+            // Large inserts such as a loaded file keep their own compact String
+            return new Piece(null, str, 0, length, priorities.nextInt(), null, null);
+        }
+        if (addLength + length > ADD_BLOCK_SIZE) {
+            addBlock = new char[ADD_BLOCK_SIZE];
+            addLength = 0;
+        }
+        str.getChars(0, length, addBlock, addLength);
+        Piece piece = new Piece(addBlock, null, addLength, length, priorities.nextInt(), null, null);
+        addLength += length;
+        return piece;
+    }
+    
+    // Splits t into the first k characters and the rest, sharing untouched subtrees
+    private Piece[] split(Piece t, int k) {
+        if (t == null) {
+            return new Piece[2];
+        }
+        int leftSize = Piece.size(t.left);
+        if (k <= leftSize) {
+            Piece[] parts = split(t.left, k);
+            parts[1] = t.with(parts[1], t.right);
+            return parts;
+        }
+        if (k >= leftSize + t.length) {
+            Piece[] parts = split(t.right, k - leftSize - t.length);
+            parts[0] = t.with(t.left, parts[0]);
+            return parts;
+        }
+        
+        int cut = k - leftSize;
+        Piece head = new Piece(t.chars, t.text, t.start, cut, priorities.nextInt(), null, null);
+        Piece tail = new Piece(t.chars, t.text, t.start + cut, t.length - cut, priorities.nextInt(), null, null);
+        return new Piece[] {merge(t.left, head), merge(tail, t.right)};
+    }
+    
+    private static Piece merge(Piece a, Piece b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        }
+        return b.with(merge(a, b.left), b.right);
+    }
+    
+    private static Piece rightmost(Piece t) {
+        while (t != null && t.right != null) {
+            t = t.right;
+        }
+        return t;
+    }
+    
+    private static Piece growRightmost(Piece t, int count) {
+        if (t.right == null) {
+            return new Piece(t.chars, t.text, t.start, t.length + count, t.priority, t.left, null);
+        }
+        return t.with(t.left, growRightmost(t.right, count));
+    }
+    
+    static void copy(Piece t, int where, int len, char[] dst, int dstPos) {
+        while (t != null && len > 0) {
+            int leftSize = Piece.size(t.left);
+            if (where < leftSize) {
+                int fromLeft = Math.min(len, leftSize - where);
+                copy(t.left, where, fromLeft, dst, dstPos);
+                where += fromLeft;
+                dstPos += fromLeft;
+                len -= fromLeft;
+                continue;
+            }
+            where -= leftSize;
+            if (where < t.length) {
+                int count = Math.min(len, t.length - where);
+                t.copyTo(where, count, dst, dstPos);
+                dstPos += count;
+                len -= count;
+                where = 0;
+            } else {
+                where -= t.length;
+            }
+            t = t.right;
+        }
+    }
+    
+    // Node of the treap: one piece of a buffer plus the subtrees around it
+    static final class Piece {
+        final char[] chars;
+        final String text;
+        final int start;
+        final int length;
+        final int priority;
+        final Piece left;
+        final Piece right;
+        final int size;
+        
+        Piece(char[] chars, String text, int start, int length, int priority, Piece left, Piece right) {
+            this.chars = chars;
+            this.text = text;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + length + size(right);
+        }
+        
+        static int size(Piece piece) {
+            return piece == null ? 0 : piece.size;
+        }
+        
+        Piece with(Piece newLeft, Piece newRight) {
+            return new Piece(chars, text, start, length, priority, newLeft, newRight);
+        }
+        
+        char charAt(int index) {
+            return chars != null ? chars[start + index] : text.charAt(start + index);
+        }
+        
+        void copyTo(int from, int count, char[] dst, int dstPos) {
+            if (chars != null) {
+                System.arraycopy(chars, start + from, dst, dstPos, count);
+            } else {
+                text.getChars(start + from, start + from + count, dst, dstPos);
+            }
+        }
+    }
+    
+    private final class InsertUndo extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private Piece removed;
+        private List<SavedMark> saved;
+        
+        InsertUndo(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            saved = marks.removeUpdate(offset, length);
+            Piece[] before = split(root, offset);
+            Piece[] middle = split(before[1], length);
+            removed = middle[0];
+            root = merge(before[0], middle[1]);
+        }
+        
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            reinsert(offset, length, removed, saved);
+            removed = null;
+            saved = null;
+        }
+    }
+    
+    // Keeps the removed pieces themselves, so undo never copies text
+    private final class RemoveUndo extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private Piece removed;
+        private List<SavedMark> saved;
+        
+        RemoveUndo(int offset, int length, Piece removed, List<SavedMark> saved) {
+            this.offset = offset;
+            this.length = length;
+            this.removed = removed;
+            this.saved = saved;
+        }
+        
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            reinsert(offset, length, removed, saved);
+            removed = null;
+            saved = null;
+        }
+        
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            saved = marks.removeUpdate(offset, length);
+            Piece[] before = split(root, offset);
+            Piece[] middle = split(before[1], length);
+            removed = middle[0];
+            root = merge(before[0], middle[1]);
+        }
+    }
+    
+    private void reinsert(int offset, int length, Piece pieces, List<SavedMark> saved) {
+        marks.insertUpdate(offset);
+        Piece[] parts = split(root, offset);
+        root = merge(merge(parts[0], pieces), parts[1]);
+        marks.restore(offset, length, saved);
+    }
+    
+    private static final class SavedMark {
+        final Mark mark;
+        final int relative;
+        
+        SavedMark(Mark mark, int relative) {
+            this.mark = mark;
+            this.relative = relative;
+        }
+    }
+    
+    private final class StickyPosition implements Position {
+        Mark mark;
+        
+        @Override
+        public int getOffset() {
+            return marks.offsetOf(mark);
+        }
+        
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+    
+    // Position bookkeeping, dropped once the Position itself is garbage collected
+    private static final class Mark extends java.lang.ref.WeakReference<StickyPosition> {
+        int value;
+        boolean tail;
+        
+        Mark(StickyPosition position, java.lang.ref.ReferenceQueue<StickyPosition> queue, int value) {
+            super(position, queue);
+            this.value = value;
+        }
+    }
+    
+    // Marks sorted by offset in a gapped array; marks after the gap store offsets relative to the end,
+    // so an edit only touches the marks between it and the previous edit
+    private final class MarkList {
+        private final java.lang.ref.ReferenceQueue<StickyPosition> queue = new java.lang.ref.ReferenceQueue<>();
+        private Mark[] array = new Mark[64];
+        private int gapStart = 0;
+        private int gapEnd = 64;
+        private int dead;
+        
+        int count() {
+            return array.length - (gapEnd - gapStart);
+        }
+        
+        Mark get(int index) {
+            return array[index < gapStart ? index : index + gapEnd - gapStart];
+        }
+        
+        int offsetOf(Mark mark) {
+            return mark.tail ? mark.value + length() : mark.value;
+        }
+        
+        // First index whose mark offset is at least (or, if strict, past) the given offset
+        int search(int offset, boolean strict) {
+            int low = 0;
+            int high = count();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int value = offsetOf(get(mid));
+                if (value < offset || (strict && value == offset)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        
+        void moveGap(int index) {
+            int length = length();
+            while (gapStart > index) {
+                Mark mark = array[--gapStart];
+                array[gapStart] = null;
+                mark.value -= length;
+                mark.tail = true;
+                array[--gapEnd] = mark;
+            }
+            while (gapStart < index) {
+                Mark mark = array[gapEnd];
+                array[gapEnd++] = null;
+                mark.value += length;
+                mark.tail = false;
+                array[gapStart++] = mark;
+            }
+        }
+        
+        Position create(int offset) {
+            purge();
+            int index = search(offset, false);
+            if (index < count()) {
+                Mark existing = get(index);
+                StickyPosition shared = existing.get();
+                if (shared != null && offsetOf(existing) == offset) {
+                    return shared;
+                }
+            }
+            
+            moveGap(index);
+            if (gapStart == gapEnd) {
+                int grow = array.length;
+                Mark[] larger = new Mark[array.length * 2];
+                System.arraycopy(array, 0, larger, 0, gapStart);
+                System.arraycopy(array, gapEnd, larger, gapEnd + grow, array.length - gapEnd);
+                gapEnd += grow;
+                array = larger;
+            }
+            
+            StickyPosition position = new StickyPosition();
+            position.mark = new Mark(position, queue, offset);
+            array[gapStart++] = position.mark;
+            return position;
+        }
+        
+        // Marks at or after an insert shift with it, except those at offset zero
+        void insertUpdate(int where) {
+            moveGap(search(where == 0 ? 1 : where, false));
+        }
+        
+        // Marks inside a removed range collapse to its start and are saved for undo
+        List<SavedMark> removeUpdate(int where, int length) {
+            int low = search(where, false);
+            int high = search(where + length, true);
+            moveGap(high);
+            List<SavedMark> saved = new ArrayList<>(high - low);
+            for (int i = low; i < high; i++) {
+                Mark mark = array[i];
+                saved.add(new SavedMark(mark, mark.value - where));
+                mark.value = where;
+            }
+            return saved;
+        }
+        
+        void restore(int where, int length, List<SavedMark> saved) {
+            int low = search(where, false);
+            int high = search(where + length, true);
+            moveGap(high);
+            for (SavedMark entry : saved) {
+                if (!entry.mark.tail) {
+                    entry.mark.value = where + entry.relative;
+                }
+            }
+            Arrays.sort(array, low, high, (a, b) -> Integer.compare(a.value, b.value));
+        }
+        
+        // Drops bookkeeping for positions nobody references anymore
+        private void purge() {
+            while (queue.poll() != null) {
+                dead++;
+            }
+            if (dead < 64 || dead < count() / 2) {
+                return;
+            }
+            
+            moveGap(count());
+            int live = 0;
+            for (int i = 0; i < gapStart; i++) {
+                if (array[i].get() != null) {
+                    array[live++] = array[i];
+                }
+            }
+            Arrays.fill(array, live, gapStart, null);
+            gapStart = live;
+            dead = 0;
+        }
+    }
+}
+
+// Immutable view of document text at one point in time, cheap to take and safe to read off the EDT
+class TextSnapshot implements CharSequence {
+    private final PieceTableContent.Piece root;
+    private final int offset;
+    private final int length;
+    
+    // Piece found by the last lookup, so sequential reads stay O(1)
+    private PieceTableContent.Piece cached;
+    private int cachedStart;
+    private int cachedEnd;
+    
+    TextSnapshot(PieceTableContent.Piece root, int offset, int length) {
+        this.root = root;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    @Override
+    public int length() {
+        return length;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + length);
+        }
+        int position = offset + index;
+        if (position < cachedStart || position >= cachedEnd) {
+            locate(position);
+        }
+        return cached.charAt(position - cachedStart);
+    }
+    
+    private void locate(int position) {
+        PieceTableContent.Piece piece = root;
+        int base = 0;
+        while (true) {
+            int leftSize = PieceTableContent.Piece.size(piece.left);
+            if (position < base + leftSize) {
+                piece = piece.left;
+            } else if (position < base + leftSize + piece.length) {
+                cached = piece;
+                cachedStart = base + leftSize;
+                cachedEnd = cachedStart + piece.length;
+                return;
+            } else {
+                base += leftSize + piece.length;
+                piece = piece.right;
+            }
+        }
+    }
+    
+    // True when both snapshots were taken from the same document state
+    public boolean sameText(TextSnapshot other) {
+        return other != null && root == other.root && offset == other.offset && length == other.length;
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + ".." + end + " out of " + length);
+        }
+        return new TextSnapshot(root, offset + start, end - start);
+    }
+    
+    public void getChars(int start, int end, char[] dst, int dstBegin) {
+        PieceTableContent.copy(root, offset + start, end - start, dst, dstBegin);
+    }
+    
+    public void writeTo(Writer out) throws IOException {
+        writeTo(out, "\n");
+    }
+    
+    // Writes the text in blocks, expanding each \n to the given line separator
+    public void writeTo(Writer out, String lineSeparator) throws IOException {
+        char[] buffer = new char[8192];
+        boolean plain = lineSeparator.equals("\n");
+        for (int i = 0; i < length; i += buffer.length) {
+            int count = Math.min(buffer.length, length - i);
+            getChars(i, i + count, buffer, 0);
+            if (plain) {
+                out.write(buffer, 0, count);
+                continue;
+            }
+            int from = 0;
+            for (int j = 0; j < count; j++) {
+                if (buffer[j] == '\n') {
+                    out.write(buffer, from, j - from);
+                    out.write(lineSeparator);
+                    from = j + 1;
+                }
+            }
+            out.write(buffer, from, count - from);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        return new String(chars);
+    }
+}
+
+// Replaces a file by writing a synced sibling temp file and renaming it over the original, so a crash leaves the old or the new contents but never a torn mix
+class AtomicFileWriter {
+    interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+    
+    public static void write(Path target, Body body) throws IOException {
+        // Saving through a symbolic link replaces the file it points at, not the link
+        if (Files.isSymbolicLink(target)) {
+            target = target.toRealPath();
+        }
+        target = target.toAbsolutePath();
+        Path directory = target.getParent();
+        Path temp = null;
+        java.nio.channels.FileChannel channel = null;
+        for (int attempt = 0; channel == null; attempt++) {
+            temp = directory.resolve("." + target.getFileName() + "." + Long.toHexString(System.nanoTime() + attempt) + ".tmp");
+            try {
+                channel = java.nio.channels.FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                if (attempt >= 100) {
+                    throw e;
+                }
+            }
+        }
+        boolean moved = false;
+        try {
+            try (java.nio.channels.FileChannel out = channel) {
+                OutputStream stream = new BufferedOutputStream(java.nio.channels.Channels.newOutputStream(out), 64 * 1024);
+                body.writeTo(stream);
+                stream.flush();
+                out.force(true);
+            }
+            if (Files.exists(target)) {
+                copyAttributes(target, temp);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            syncDirectory(directory);
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+    
+    // Carries permissions, and ownership where allowed, over to the replacement
+    private static void copyAttributes(Path from, Path to) throws IOException {
+        java.nio.file.attribute.PosixFileAttributeView posix =
+            Files.getFileAttributeView(from, java.nio.file.attribute.PosixFileAttributeView.class);
+        if (posix != null) {
+            java.nio.file.attribute.PosixFileAttributes attributes = posix.readAttributes();
+            Files.setPosixFilePermissions(to, attributes.permissions());
+            java.nio.file.attribute.PosixFileAttributeView target =
+                Files.getFileAttributeView(to, java.nio.file.attribute.PosixFileAttributeView.class);
+            try {
+                target.setGroup(attributes.group());
+                target.setOwner(attributes.owner());
+            } catch (IOException e) {
+                // Only the owner's own files can be saved without this, which is the usual case
+            }
+            return;
+        }
+        java.nio.file.attribute.DosFileAttributeView dos =
+            Files.getFileAttributeView(from, java.nio.file.attribute.DosFileAttributeView.class);
+        if (dos != null) {
+            java.nio.file.attribute.DosFileAttributes attributes = dos.readAttributes();
+            java.nio.file.attribute.DosFileAttributeView target =
+                Files.getFileAttributeView(to, java.nio.file.attribute.DosFileAttributeView.class);
+            target.setHidden(attributes.isHidden());
+            target.setArchive(attributes.isArchive());
+            target.setSystem(attributes.isSystem());
+        }
+    }
+    
+    // Makes the rename itself durable; platforms that cannot open a folder for syncing skip this
+    private static void syncDirectory(Path directory) {
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here, e.g. on Windows
+        }
+    }
+}
+
+// Append-only log of a tab's unsaved edits. The EDT queues records and a background thread appends and syncs them in
+// batches, so a crash loses at most the last flush interval. Recovery replays the records over the file the log was
+// started from, or over the snapshot it starts with once it has been compacted.
+class EditJournal {
+    private static final int MAGIC = 0x454A524E;
+    private static final int VERSION = 1;
+    private static final int SNAPSHOT = 1;
+    private static final int INSERT = 2;
+    private static final int REMOVE = 3;
+    private static final long FLUSH_MILLIS = 300;
+    private static final long COMPACT_BYTES = 4L * 1024 * 1024;
+    private static final int SNAPSHOT_CHARS = 64 * 1024;
+    private static final java.util.concurrent.ScheduledExecutorService JOURNAL_EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "edit-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    
+    // A journal left behind by an earlier run; text is null when it no longer applies to the file on disk
+    static class Recovery {
+        final Path journal;
+        final File file;
+        final TextEncoding encoding;
+        final String lineSeparator;
+        final String text;
+        private final java.nio.channels.FileChannel channel;
+        private final java.nio.channels.FileLock lock;
+        
+        Recovery(Path journal, File file, TextEncoding encoding, String lineSeparator, String text,
+                 java.nio.channels.FileChannel channel, java.nio.channels.FileLock lock) {
+            this.journal = journal;
+            this.file = file;
+            this.encoding = encoding;
+            this.lineSeparator = lineSeparator;
+            this.text = text;
+            this.channel = channel;
+            this.lock = lock;
+        }
+    }
+    
+    private final Path path;
+    private File file;
+    private TextEncoding encoding;
+    private String lineSeparator;
+    
+    // Guarded by this: records not yet on disk, and the header and snapshot to rewrite the file with first
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream records = new DataOutputStream(pending);
+    private byte[] rewriteHeader;
+    private TextSnapshot rewriteSnapshot;
+    private boolean flushScheduled;
+    private boolean closed;
+    
+    // Record bytes queued since the file was last rewritten, counted on the EDT
+    private long appended;
+    
+    // Journal thread only; the lock tells other running editors the journal is still in use
+    private java.nio.channels.FileChannel channel;
+    private java.nio.channels.FileLock lock;
+    
+    private EditJournal(Path path, File file, TextEncoding encoding, String lineSeparator) {
+        this.path = path;
+        this.file = file;
+        this.encoding = encoding;
+        this.lineSeparator = lineSeparator;
+    }
+    
+    static Path journalDirectory() {
+        return AdvancedTextEditor.dataDirectory().resolve("journal");
+    }
+    
+    // Starts over the file as last read or written when length is the length of that text, otherwise over a copy of the text
+    static EditJournal start(File file, TextEncoding encoding, String lineSeparator,
+                             long diskSize, long diskModified, int length, TextSnapshot text) {
+        Path path = journalDirectory().resolve(Long.toHexString(System.currentTimeMillis())
+            + "-" + Long.toHexString(System.nanoTime() & 0xFFFFFFFFL) + ".journal");
+        EditJournal journal = new EditJournal(path, file, encoding, lineSeparator);
+        if (length >= 0) {
+            journal.rewrite(header(file, encoding, lineSeparator, diskSize, diskModified, length), null);
+        } else {
+            journal.rewrite(header(file, encoding, lineSeparator, -1, -1, text.length()), text);
+        }
+        return journal;
+    }
+    
+    // Carries on with a recovered journal, rewriting it as a snapshot of the restored text
+    static EditJournal resume(Recovery recovery, TextSnapshot text) {
+        EditJournal journal = new EditJournal(recovery.journal, recovery.file, recovery.encoding, recovery.lineSeparator);
+        journal.channel = recovery.channel;
+        journal.lock = recovery.lock;
+        journal.compact(text);
+        return journal;
+    }
+    
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+    
+    public void inserted(int offset, String text) {
+        byte[] bytes = encode(text, 0, text.length());
+        synchronized (this) {
+            try {
+                int before = records.size();
+                records.write(INSERT);
+                writeVarint(records, offset);
+                writeVarint(records, bytes.length);
+                records.write(bytes);
+                appended += records.size() - before;
+            } catch (IOException e) {
+                // Cannot happen writing to memory
+            }
+            schedule();
+        }
+    }
+    
+    public synchronized void removed(int offset, int length) {
+        try {
+            int before = records.size();
+            records.write(REMOVE);
+            writeVarint(records, offset);
+            writeVarint(records, length);
+            appended += records.size() - before;
+        } catch (IOException e) {
+            // Cannot happen writing to memory
+        }
+        schedule();
+    }
+    
+    // Replaying stays cheap while the records are small next to the text they rebuild
+    public synchronized boolean needsCompaction(int length) {
+        return appended > Math.max(COMPACT_BYTES, length);
+    }
+    
+    public void compact(TextSnapshot text) {
+        rewrite(header(file, encoding, lineSeparator, -1, -1, text.length()), text);
+    }
+    
+    // The work is saved or thrown away; the file goes with it
+    public void delete() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.reset();
+            rewriteHeader = null;
+            rewriteSnapshot = null;
+        }
+        JOURNAL_EXECUTOR.execute(() -> {
+            release();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Left for the next start to find and drop
+            }
+        });
+    }
+    
+    // Lets queued writes and deletes finish before the process exits
+    static void awaitIdle() {
+        try {
+            JOURNAL_EXECUTOR.submit(() -> { }).get(2, java.util.concurrent.TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // Exiting anyway
+        }
+    }
+    
+    // Records queued before the snapshot are part of it
+    private synchronized void rewrite(byte[] header, TextSnapshot snapshot) {
+        if (closed) {
+            return;
+        }
+        rewriteHeader = header;
+        rewriteSnapshot = snapshot;
+        pending.reset();
+        appended = 0;
+        schedule();
+    }
+    
+    private void schedule() {
+        if (!flushScheduled && !closed) {
+            flushScheduled = true;
+            JOURNAL_EXECUTOR.schedule(this::flush, FLUSH_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void flush() {
+        byte[] header;
+        TextSnapshot snapshot;
+        byte[] batch;
+        synchronized (this) {
+            flushScheduled = false;
+            if (closed) {
+                return;
+            }
+            header = rewriteHeader;
+            snapshot = rewriteSnapshot;
+            rewriteHeader = null;
+            rewriteSnapshot = null;
+            batch = pending.toByteArray();
+            pending.reset();
+        }
+        try {
+            if (header != null) {
+                // Replaced in one rename, so a crash leaves the old journal or the new one
+                release();
+                Files.createDirectories(path.getParent());
+                AtomicFileWriter.write(path, out -> {
+                    out.write(header);
+                    if (snapshot != null) {
+                        writeSnapshot(new DataOutputStream(out), snapshot);
+                    }
+                });
+            }
+            if (channel == null) {
+                channel = java.nio.channels.FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                lock = channel.tryLock();
+            }
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // Without a consistent journal there is nothing to recover; the tab starts a new one on its next edit
+            synchronized (this) {
+                closed = true;
+            }
+            release();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // Replay stops at the first record that does not fit
+            }
+        }
+    }
+    
+    private void release() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        lock = null;
+        channel = null;
+    }
+    
+    private static byte[] header(File file, TextEncoding encoding, String lineSeparator, long diskSize, long diskModified, int length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(file == null ? "" : file.getAbsolutePath());
+            out.writeUTF(encoding.charset.name());
+            out.writeBoolean(encoding.bom);
+            out.writeUTF(lineSeparator);
+            out.writeLong(diskSize);
+            out.writeLong(diskModified);
+            out.writeInt(length);
+        } catch (IOException e) {
+            // Cannot happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static void writeSnapshot(DataOutputStream out, TextSnapshot text) throws IOException {
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(length, start + SNAPSHOT_CHARS);
+            byte[] bytes = encode(text, start, end);
+            out.write(SNAPSHOT);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+            start = end;
+        }
+        out.flush();
+    }
+    
+    // Reads every journal no other running editor holds. Records are replayed into a piece table, so a long
+    // run of single-character edits costs a tree update each rather than a copy of the text.
+    static List<Recovery> recover() {
+        List<Recovery> recovered = new ArrayList<>();
+        File[] journals = journalDirectory().toFile().listFiles((directory, name) -> name.endsWith(".journal"));
+        if (journals == null) {
+            return recovered;
+        }
+        Arrays.sort(journals);
+        for (File journal : journals) {
+            java.nio.channels.FileChannel channel = null;
+            java.nio.channels.FileLock lock = null;
+            try {
+                channel = java.nio.channels.FileChannel.open(journal.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                lock = channel.tryLock();
+                if (lock == null) {
+                    channel.close();
+                    continue;
+                }
+                recovered.add(read(journal.toPath(), channel, lock));
+            } catch (IOException | IllegalArgumentException | java.nio.channels.OverlappingFileLockException e) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException ignored) {
+                    // Skipped either way
+                }
+            }
+        }
+        return recovered;
+    }
+    
+    private static Recovery read(Path journal, java.nio.channels.FileChannel channel, java.nio.channels.FileLock lock) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(java.nio.channels.Channels.newInputStream(channel), 64 * 1024));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return new Recovery(journal, null, TextEncoding.defaultEncoding(), System.lineSeparator(), null, channel, lock);
+        }
+        String path = in.readUTF();
+        File file = path.isEmpty() ? null : new File(path);
+        java.nio.charset.Charset charset = java.nio.charset.Charset.forName(in.readUTF());
+        boolean bom = in.readBoolean();
+        int bomLength = !bom ? 0 : charset.equals(java.nio.charset.StandardCharsets.UTF_8) ? 3 : 2;
+        TextEncoding encoding = new TextEncoding(charset, bom, bomLength);
+        String lineSeparator = in.readUTF();
+        long diskSize = in.readLong();
+        long diskModified = in.readLong();
+        int length = in.readInt();
+        
+        PieceTableContent content = new PieceTableContent();
+        try {
+            if (diskSize >= 0) {
+                // Started from the file on disk, which must still be exactly what the tab had loaded
+                if (file == null || !file.isFile() || file.length() != diskSize || file.lastModified() != diskModified) {
+                    return new Recovery(journal, file, encoding, lineSeparator, null, channel, lock);
+                }
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                String text = TextEncoding.detect(bytes, Math.min(bytes.length, TextEncoding.SNIFF_BYTES)).decode(bytes);
+                if (text.length() != length) {
+                    return new Recovery(journal, file, encoding, lineSeparator, null, channel, lock);
+                }
+                content.insertString(0, text);
+            }
+            while (true) {
+                int type = in.read();
+                if (type == SNAPSHOT) {
+                    content.insertString(content.length() - 1, readString(in, channel.size()));
+                } else if (type == INSERT) {
+                    int offset = readVarint(in);
+                    content.insertString(offset, readString(in, channel.size()));
+                } else if (type == REMOVE) {
+                    int offset = readVarint(in);
+                    content.remove(offset, readVarint(in));
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException | BadLocationException e) {
+            // A torn last batch; everything before it is good
+        }
+        try {
+            return new Recovery(journal, file, encoding, lineSeparator, content.getString(0, content.length() - 1), channel, lock);
+        } catch (BadLocationException e) {
+            return new Recovery(journal, file, encoding, lineSeparator, null, channel, lock);
+        }
+    }
+    
+    // Drops a journal that was read but not restored
+    static void discard(Recovery recovery) {
+        JOURNAL_EXECUTOR.execute(() -> {
+            try {
+                if (recovery.lock != null) {
+                    recovery.lock.release();
+                }
+                recovery.channel.close();
+                Files.deleteIfExists(recovery.journal);
+            } catch (IOException e) {
+                // Tried again on the next start
+            }
+        });
+    }
+    
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        int length = readVarint(in);
+        if (length > limit) {
+            throw new EOFException("Record past the end of the journal");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return decode(bytes);
+    }
+    
+    // UTF-8 applied to each char on its own, as DataOutput.writeUTF does, so text cut inside a surrogate pair
+    // survives the round trip and a chunk boundary can fall anywhere
+    private static byte[] encode(CharSequence text, int start, int end) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    private static String decode(byte[] bytes) throws IOException {
+        char[] chars = new char[bytes.length];
+        int count = 0;
+        int i = 0;
+        while (i < bytes.length) {
+            int b = bytes[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && i < bytes.length) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[i++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && i + 1 < bytes.length) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F));
+                i += 2;
+            } else {
+                throw new EOFException("Bad text record");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+    
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Bad varint");
+    }
+}
+
+// Open tabs with their caret and scroll positions, and a token run cache per file keyed by path, size and time,
+// so a restart can bring back the working set without reading or lexing the tabs nobody looks at
+class SessionStore {
+    private static final int SESSION_MAGIC = 0x53455353;
+    private static final int TOKENS_MAGIC = 0x544F4B53;
+    private static final int VERSION = 1;
+    
+    // One tab of a saved session; caret is an offset, or a line for a large file
+    static class Entry {
+        final File file;
+        final boolean large;
+        final long caret;
+        final int scrollX;
+        final int scrollY;
+        
+        Entry(File file, boolean large, long caret, int scrollX, int scrollY) {
+            this.file = file;
+            this.large = large;
+            this.caret = caret;
+            this.scrollX = scrollX;
+            this.scrollY = scrollY;
+        }
+    }
+    
+    // Highlighting of one file as last shown
+    static class Tokens {
+        final String language;
+        final int[] lineStates;
+        final TokenRuns runs;
+        
+        Tokens(String language, int[] lineStates, TokenRuns runs) {
+            this.language = language;
+            this.lineStates = lineStates;
+            this.runs = runs;
+        }
+    }
+    
+    private static Path sessionFile() {
+        return AdvancedTextEditor.dataDirectory().resolve("session");
+    }
+    
+    private static Path tokenDirectory() {
+        return AdvancedTextEditor.dataDirectory().resolve("tokens");
+    }
+    
+    private static Path tokenFileFor(File file) {
+        String path = file.getAbsolutePath();
+        return tokenDirectory().resolve(Integer.toHexString(path.hashCode()) + ".tokens");
+    }
+    
+    public static void save(List<Entry> entries, int selected) throws IOException {
+        Files.createDirectories(sessionFile().getParent());
+        AtomicFileWriter.write(sessionFile(), stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(SESSION_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(selected);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.file.getAbsolutePath());
+                out.writeBoolean(entry.large);
+                out.writeLong(entry.caret);
+                out.writeInt(entry.scrollX);
+                out.writeInt(entry.scrollY);
+            }
+            out.flush();
+        });
+        
+        // Caches for files that left the session are not worth keeping
+        Set<Path> kept = new HashSet<>();
+        for (Entry entry : entries) {
+            kept.add(tokenFileFor(entry.file));
+        }
+        File[] caches = tokenDirectory().toFile().listFiles((directory, name) -> name.endsWith(".tokens"));
+        if (caches != null) {
+            for (File cache : caches) {
+                if (!kept.contains(cache.toPath())) {
+                    Files.deleteIfExists(cache.toPath());
+                }
+            }
+        }
+    }
+    
+    // Fills in the entries in tab order and returns the selected one, or -1 when there is no usable session
+    public static int load(List<Entry> entries) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sessionFile())))) {
+            if (in.readInt() != SESSION_MAGIC || in.readInt() != VERSION) {
+                return -1;
+            }
+            int selected = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File file = new File(in.readUTF());
+                entries.add(new Entry(file, in.readBoolean(), in.readLong(), in.readInt(), in.readInt()));
+            }
+            return selected;
+        } catch (IOException e) {
+            // No session yet, or one from a run that could not finish writing it
+            entries.clear();
+            return -1;
+        }
+    }
+    
+    // True when the cache already holds this version of the file, so saving it again can be skipped
+    public static boolean hasTokens(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tokenFileFor(file)), 4096))) {
+            return readKey(in, file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    public static void saveTokens(File file, Tokens tokens) throws IOException {
+        Files.createDirectories(tokenDirectory());
+        AtomicFileWriter.write(tokenFileFor(file), stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(TOKENS_MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(file.getAbsolutePath());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeUTF(tokens.language);
+            
+            // Most lines start in the default state, and runs are stored as gaps from the previous run
+            out.writeInt(tokens.lineStates.length);
+            for (int state : tokens.lineStates) {
+                writeVarint(out, state);
+            }
+            TokenRuns runs = tokens.runs;
+            out.writeInt(runs.size());
+            int previousEnd = 0;
+            for (int i = 0; i < runs.size(); i++) {
+                writeVarint(out, runs.start(i) - previousEnd);
+                writeVarint(out, runs.length(i));
+                out.write(runs.type(i));
+                previousEnd = runs.start(i) + runs.length(i);
+            }
+            out.flush();
+        });
+    }
+    
+    // Null unless the cache was written for the file exactly as it is now
+    public static Tokens loadTokens(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tokenFileFor(file)), 64 * 1024))) {
+            if (!readKey(in, file)) {
+                return null;
+            }
+            String language = in.readUTF();
+            int[] lineStates = new int[in.readInt()];
+            for (int i = 0; i < lineStates.length; i++) {
+                lineStates[i] = readVarint(in);
+            }
+            TokenRuns runs = new TokenRuns();
+            int count = in.readInt();
+            int previousEnd = 0;
+            for (int i = 0; i < count; i++) {
+                int start = previousEnd + readVarint(in);
+                int length = readVarint(in);
+                runs.add(start, length, in.readUnsignedByte());
+                previousEnd = start + length;
+            }
+            return new Tokens(language, lineStates, runs);
+        } catch (IOException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+    
+    private static boolean readKey(DataInputStream in, File file) throws IOException {
+        return in.readInt() == TOKENS_MAGIC && in.readInt() == VERSION
+            && in.readUTF().equals(file.getAbsolutePath())
+            && in.readLong() == file.length() && in.readLong() == file.lastModified();
+    }
+    
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+}
+
+// Charset of a file as detected from its first bytes, and whether it started with a byte order mark
+class TextEncoding {
+    static final int SNIFF_BYTES = 8192;
+    
+    final java.nio.charset.Charset charset;
+    final boolean bom;
+    final int bomLength;
+    
+    TextEncoding(java.nio.charset.Charset charset, boolean bom, int bomLength) {
+        this.charset = charset;
+        this.bom = bom;
+        this.bomLength = bomLength;
+    }
+    
+    static TextEncoding defaultEncoding() {
+        return new TextEncoding(java.nio.charset.Charset.defaultCharset(), false, 0);
+    }
+    
+    // A BOM wins; otherwise text that decodes as UTF-8 is UTF-8, and anything else falls back to a single-byte charset
+    static TextEncoding detect(byte[] head, int length) {
+        if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            return new TextEncoding(java.nio.charset.StandardCharsets.UTF_8, true, 3);
+        }
+        if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            return new TextEncoding(java.nio.charset.StandardCharsets.UTF_16BE, true, 2);
+        }
+        if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            return new TextEncoding(java.nio.charset.StandardCharsets.UTF_16LE, true, 2);
+        }
+        
+        java.nio.charset.CharsetDecoder decoder = java.nio.charset.StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(java.nio.charset.CodingErrorAction.REPORT)
+            .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPORT);
+        java.nio.CharBuffer out = java.nio.CharBuffer.allocate(length);
+        // A sequence cut off by the end of the sample is not an error
+        boolean valid = !decoder.decode(java.nio.ByteBuffer.wrap(head, 0, length), out, false).isError();
+        if (valid) {
+            return new TextEncoding(java.nio.charset.StandardCharsets.UTF_8, false, 0);
+        }
+        // Bytes the platform charset cannot take are kept as Latin-1 so a save round-trips them
+        java.nio.charset.Charset platform = java.nio.charset.Charset.defaultCharset();
+        boolean lossy = platform.equals(java.nio.charset.StandardCharsets.UTF_8)
+            || platform.equals(java.nio.charset.StandardCharsets.US_ASCII);
+        return new TextEncoding(lossy ? java.nio.charset.StandardCharsets.ISO_8859_1 : platform, false, 0);
+    }
+    
+    static TextEncoding detect(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] head = new byte[SNIFF_BYTES];
+            int length = in.readNBytes(head, 0, head.length);
+            return detect(head, length);
+        }
+    }
+    
+    // Whole-file decode with line breaks normalized to \n, the way a tab holds the text
+    String decode(byte[] bytes) {
+        String text = new String(bytes, bomLength, Math.max(0, bytes.length - bomLength), charset);
+        return text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+    
+    // Line breaks stay single bytes, which the mapped large file view relies on
+    boolean isAsciiCompatible() {
+        return !charset.name().startsWith("UTF-16") && !charset.name().startsWith("UTF-32");
+    }
+    
+    @Override
+    public String toString() {
+        return bom ? charset.name() + " with BOM" : charset.name();
+    }
+}
+
+// Read-only view of a file through memory mappings, with a sparse line index built in the background
+class MappedTextFile {
+    private static final int SEGMENT_SHIFT = 28;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int SPARSE_SHIFT = 10;
+    private static final int SPARSE_MASK = (1 << SPARSE_SHIFT) - 1;
+    private static final int MAX_LINE_BYTES = 16 * 1024;
+    
+    private final File file;
+    private final long size;
+    private final java.nio.MappedByteBuffer[] segments;
+    private final java.nio.charset.Charset charset;
+    
+    // Start offset of every 1024th line; entries are published before the count
+    private volatile long[] sparse = new long[1024];
+    private volatile int sparseCount;
+    private volatile long indexedLines;
+    private volatile boolean indexed;
+    
+    private MappedTextFile(File file, long size, java.nio.MappedByteBuffer[] segments, java.nio.charset.Charset charset,
+                           long textStart) {
+        this.file = file;
+        this.size = size;
+        this.segments = segments;
+        this.charset = charset;
+        sparse[0] = textStart;
+        sparseCount = 1;
+    }
+    
+    // Mapping is constant time, so opening does not depend on the file size. Lines are split on the byte '\n', so the
+    // encoding has to be ASCII-compatible; its BOM, if any, is skipped.
+    public static MappedTextFile open(File file, TextEncoding encoding) throws IOException {
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            java.nio.MappedByteBuffer[] segments = new java.nio.MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            return new MappedTextFile(file, size, segments, encoding.charset, Math.min(encoding.bomLength, size));
+        }
+    }
+    
+    public File getFile() { return file; }
+    public long size() { return size; }
+    public java.nio.charset.Charset getCharset() { return charset; }
+    public boolean isIndexed() { return indexed; }
+    
+    // Lines counted so far, or the total once indexing has finished
+    public long getLineCount() {
+        return indexed ? indexedLines : Math.max(1, indexedLines);
+    }
+    
+    public byte byteAt(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+    
+    // Scans for line breaks, recording a sparse entry every 1024 lines; progress reports the lines seen
+    public void buildIndex(java.util.function.LongConsumer progress) {
+        long lines = 0;
+        long nextReport = 1 << 20;
+        for (int s = 0; s < segments.length && !Thread.currentThread().isInterrupted(); s++) {
+            java.nio.MappedByteBuffer segment = segments[s];
+            long base = (long) s << SEGMENT_SHIFT;
+            int limit = segment.limit();
+            for (int i = 0; i < limit; i++) {
+                if (segment.get(i) == '\n') {
+                    lines++;
+                    if ((lines & SPARSE_MASK) == 0) {
+                        addSparse(base + i + 1);
+                    }
+                }
+            }
+            indexedLines = lines + 1;
+            if (lines >= nextReport) {
+                progress.accept(lines + 1);
+                nextReport = lines + (1 << 20);
+            }
+        }
+        indexed = true;
+        progress.accept(lines + 1);
+    }
+    
+    private void addSparse(long offset) {
+        long[] entries = sparse;
+        int count = sparseCount;
+        if (count == entries.length) {
+            entries = Arrays.copyOf(entries, count * 2);
+            entries[count] = offset;
+            sparse = entries;
+        } else {
+            entries[count] = offset;
+        }
+        sparseCount = count + 1;
+    }
+    
+    // Byte offset where a zero-based line starts, or -1 past the end of the file
+    public long lineStart(long line) {
+        int count = sparseCount;
+        long[] entries = sparse;
+        int entry = (int) Math.min(line >>> SPARSE_SHIFT, count - 1);
+        long position = entries[entry];
+        long skip = line - ((long) entry << SPARSE_SHIFT);
+        while (skip > 0) {
+            if (position >= size) {
+                return -1;
+            }
+            if (byteAt(position++) == '\n') {
+                skip--;
+            }
+        }
+        return position <= size ? position : -1;
+    }
+    
+    // Zero-based line containing a byte offset
+    public long lineOf(long position) {
+        int count = sparseCount;
+        long[] entries = sparse;
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (entries[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        long line = (long) low << SPARSE_SHIFT;
+        for (long p = entries[low]; p < position; p++) {
+            if (byteAt(p) == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+    
+    // Decoded text of a line without its terminator, cut off after MAX_LINE_BYTES
+    public String readLine(long line) {
+        long start = lineStart(line);
+        if (start < 0) {
+            return null;
+        }
+        long end = start;
+        while (end < size && end - start < MAX_LINE_BYTES && byteAt(end) != '\n') {
+            end++;
+        }
+        return decode(start, end);
+    }
+    
+    public String decode(long start, long end) {
+        if (end > start && byteAt(end - 1) == '\r') {
+            end--;
+        }
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(start + i);
+        }
+        return new String(bytes, charset);
+    }
+    
+    // Byte search over the mapping, folding ASCII case when asked; returns -1 when nothing matches
+    public long find(byte[] pattern, boolean ignoreCase, long from, boolean forward) {
+        int length = pattern.length;
+        if (length == 0) {
+            return -1;
+        }
+        long last = size - length;
+        if (forward) {
+            for (long p = Math.max(0, from); p <= last; p++) {
+                if (matchesAt(pattern, ignoreCase, p)) {
+                    return p;
+                }
+                if ((p & 0xFFFFF) == 0 && Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+            }
+        } else {
+            for (long p = Math.min(from, last); p >= 0; p--) {
+                if (matchesAt(pattern, ignoreCase, p)) {
+                    return p;
+                }
+                if ((p & 0xFFFFF) == 0 && Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    private boolean matchesAt(byte[] pattern, boolean ignoreCase, long position) {
+        for (int i = 0; i < pattern.length; i++) {
+            byte b = byteAt(position + i);
+            if (b != pattern[i] && (!ignoreCase || foldAscii(b) != foldAscii(pattern[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int foldAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
+
+// Paints only the lines in the visible window of a mapped file; scrolling is by line, not by pixel
+class LargeFileView extends JPanel {
+    private static final int MAX_LINE_CHARS = 4096;
+    
+    private final MappedTextFile mappedFile;
+    private final JScrollBar verticalBar = new JScrollBar(JScrollBar.VERTICAL);
+    private final JScrollBar horizontalBar = new JScrollBar(JScrollBar.HORIZONTAL);
+    private final LinesCanvas canvas = new LinesCanvas();
+    private final int tabSize;
+    private Color gutterBackground = new Color(240, 240, 240);
+    private Color gutterForeground = Color.GRAY;
+    private Color matchColor = new Color(70, 130, 180);
+    private Runnable positionListener;
+    
+    // Line shown as current and the byte range of the last search hit
+    private long caretLine = 0;
+    private long matchLine = -1;
+    private long matchStart = -1;
+    private long matchEnd = -1;
+    private SwingWorker<Long, Void> searchWorker;
+    
+    public LargeFileView(MappedTextFile mappedFile, Font font, int tabSize) {
+        this.mappedFile = mappedFile;
+        this.tabSize = tabSize;
+        setLayout(new BorderLayout());
+        canvas.setFont(font);
+        canvas.setFocusable(true);
+        add(canvas, BorderLayout.CENTER);
+        add(verticalBar, BorderLayout.EAST);
+        add(horizontalBar, BorderLayout.SOUTH);
+        
+        verticalBar.addAdjustmentListener(e -> canvas.repaint());
+        horizontalBar.addAdjustmentListener(e -> canvas.repaint());
+        horizontalBar.setMaximum(MAX_LINE_CHARS);
+        canvas.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateScrollBars();
+            }
+        });
+        canvas.addMouseWheelListener(e -> verticalBar.setValue(verticalBar.getValue() + e.getWheelRotation() * 3));
+        canvas.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                canvas.requestFocusInWindow();
+                setCaretLine(verticalBar.getValue() + e.getY() / canvas.lineHeight());
+            }
+        });
+        canvas.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                int rows = canvas.visibleRows();
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_UP: moveCaret(caretLine - 1); break;
+                    case KeyEvent.VK_DOWN: moveCaret(caretLine + 1); break;
+                    case KeyEvent.VK_PAGE_UP: moveCaret(caretLine - rows); break;
+                    case KeyEvent.VK_PAGE_DOWN: moveCaret(caretLine + rows); break;
+                    case KeyEvent.VK_HOME:
+                        if (e.isControlDown()) moveCaret(0);
+                        break;
+                    case KeyEvent.VK_END:
+                        if (e.isControlDown()) moveCaret(mappedFile.getLineCount() - 1);
+                        break;
+                    default:
+                        return;
+                }
+                e.consume();
+            }
+        });
+        updateScrollBars();
+    }
+    
+    public MappedTextFile getMappedFile() { return mappedFile; }
+    public long getCaretLine() { return caretLine; }
+    public void setPositionListener(Runnable listener) { this.positionListener = listener; }
+    
+    public void setColors(Color background, Color foreground, Color selection) {
+        canvas.setBackground(background);
+        canvas.setForeground(foreground);
+        gutterBackground = background.brighter();
+        gutterForeground = foreground.darker();
+        matchColor = selection;
+        canvas.repaint();
+    }
+    
+    // Called as the background index grows so the scroll range follows it
+    public void updateScrollBars() {
+        int rows = Math.max(1, canvas.visibleRows());
+        long lines = mappedFile.getLineCount();
+        int maximum = (int) Math.min(Integer.MAX_VALUE - 1, lines + rows - 1);
+        verticalBar.setValues(verticalBar.getValue(), rows, 0, maximum);
+        verticalBar.setBlockIncrement(rows);
+        horizontalBar.setVisibleAmount(Math.max(1, canvas.getWidth() / Math.max(1, canvas.charWidth())));
+        canvas.repaint();
+    }
+    
+    public boolean goToLine(long line) {
+        if (line < 0 || mappedFile.lineStart(line) < 0) {
+            return false;
+        }
+        matchLine = matchStart = matchEnd = -1;
+        setCaretLine(line);
+        scrollToLine(line);
+        return true;
+    }
+    
+    private void moveCaret(long line) {
+        line = Math.max(0, Math.min(line, mappedFile.getLineCount() - 1));
+        setCaretLine(line);
+        scrollToLine(line);
+    }
+    
+    private void setCaretLine(long line) {
+        caretLine = line;
+        canvas.repaint();
+        if (positionListener != null) {
+            positionListener.run();
+        }
+    }
+    
+    private void scrollToLine(long line) {
+        int rows = canvas.visibleRows();
+        if (line < verticalBar.getValue() || line >= verticalBar.getValue() + rows) {
+            verticalBar.setValue((int) Math.max(0, Math.min(Integer.MAX_VALUE - 1, line - rows / 3)));
+        }
+    }
+    
+    // Searches the mapping off the EDT starting after the current match or caret line
+    public void find(String text, boolean caseSensitive, boolean forward, java.util.function.Consumer<String> status) {
+        if (searchWorker != null) {
+            searchWorker.cancel(true);
+        }
+        byte[] pattern = text.getBytes(mappedFile.getCharset());
+        long from;
+        if (matchStart >= 0) {
+            from = forward ? matchStart + 1 : matchStart - 1;
+        } else {
+            long start = mappedFile.lineStart(caretLine);
+            from = forward ? Math.max(0, start) : Math.max(0, start) - 1;
+        }
+        status.accept("Searching...");
+        
+        searchWorker = new SwingWorker<Long, Void>() {
+            @Override
+            protected Long doInBackground() {
+                return mappedFile.find(pattern, !caseSensitive, from, forward);
+            }
+            
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    long found = get();
+                    if (found < 0) {
+                        status.accept("Not found");
+                        return;
+                    }
+                    matchStart = found;
+                    matchEnd = found + pattern.length;
+                    long line = mappedFile.lineOf(found);
+                    matchLine = line;
+                    setCaretLine(line);
+                    scrollToLine(line);
+                    status.accept("Found at line " + (line + 1));
+                } catch (InterruptedException | ExecutionException e) {
+                    status.accept("Search failed: " + e.getMessage());
+                }
+            }
+        };
+        searchWorker.execute();
+    }
+    
+    private String expandTabs(String line) {
+        if (line.indexOf('\t') < 0) {
+            return line;
+        }
+        StringBuilder sb = new StringBuilder(line.length() + 16);
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                do {
+                    sb.append(' ');
+                } while (sb.length() % tabSize != 0);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+    
+    private class LinesCanvas extends JComponent {
+        LinesCanvas() {
+            setOpaque(true);
+        }
+        
+        int lineHeight() {
+            return getFontMetrics(getFont()).getHeight();
+        }
+        
+        int charWidth() {
+            return getFontMetrics(getFont()).charWidth('m');
+        }
+        
+        int visibleRows() {
+            return Math.max(1, getHeight() / Math.max(1, lineHeight()));
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            FontMetrics metrics = g.getFontMetrics(getFont());
+            int lineHeight = metrics.getHeight();
+            int charWidth = metrics.charWidth('m');
+            long lineCount = mappedFile.getLineCount();
+            long first = verticalBar.getValue();
+            int gutterWidth = (Long.toString(lineCount).length() + 2) * charWidth;
+            int column = horizontalBar.getValue();
+            
+            Rectangle clip = g.getClipBounds();
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g.setColor(gutterBackground);
+            g.fillRect(0, clip.y, gutterWidth, clip.height);
+            g.setFont(getFont());
+            
+            // Only the lines inside the clip are decoded from the mapping
+            int firstRow = clip.y / lineHeight;
+            int lastRow = (clip.y + clip.height) / lineHeight;
+            for (int row = firstRow; row <= lastRow; row++) {
+                long line = first + row;
+                if (line >= lineCount) {
+                    break;
+                }
+                String text = mappedFile.readLine(line);
+                if (text == null) {
+                    break;
+                }
+                int y = row * lineHeight;
+                int baseline = y + metrics.getAscent();
+                
+                if (line == caretLine) {
+                    g.setColor(getBackground().brighter());
+                    g.fillRect(gutterWidth, y, getWidth() - gutterWidth, lineHeight);
+                }
+                
+                String display = expandTabs(text);
+                if (line == matchLine) {
+                    long lineStart = mappedFile.lineStart(line);
+                    int startColumn = expandTabs(mappedFile.decode(lineStart, matchStart)).length();
+                    int endColumn = expandTabs(mappedFile.decode(lineStart, matchEnd)).length();
+                    g.setColor(matchColor);
+                    g.fillRect(gutterWidth + (startColumn - column) * charWidth, y,
+                               (endColumn - startColumn) * charWidth, lineHeight);
+                }
+                
+                g.setColor(gutterForeground);
+                String number = Long.toString(line + 1);
+                g.drawString(number, gutterWidth - charWidth - metrics.stringWidth(number), baseline);
+                
+                if (column < display.length()) {
+                    g.setColor(getForeground());
+                    Graphics clipped = g.create(gutterWidth, y, getWidth() - gutterWidth, lineHeight);
+                    int end = Math.min(display.length(), column + getWidth() / Math.max(1, charWidth) + 1);
+                    clipped.drawString(display.substring(column, end), 0, metrics.getAscent());
+                    clipped.dispose();
+                }
+            }
+        }
+    }
+}
+
+// Tab component with close button
+class TabComponent extends JPanel {
+    private final String title;
+    private final Runnable closeAction;
+    
+    public TabComponent(String title, Runnable closeAction) {
+        this.title = title;
+        this.closeAction = closeAction;
+        
+        setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        setOpaque(false);
+        
+        JLabel titleLabel = new JLabel(title);
+        titleLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 5));
+        add(titleLabel);
+        
+        JButton closeButton = new JButton("×");
+        closeButton.setPreferredSize(new Dimension(17, 17));
+        closeButton.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 12));
+        closeButton.setFocusable(false);
+        closeButton.setBorderPainted(false);
+        closeButton.setContentAreaFilled(false);
+        closeButton.addActionListener(e -> closeAction.run());
+        add(closeButton);
+    }
+}
+
+// Literal search with Boyer-Moore-Horspool over blocks copied out of a text snapshot, folding case per character
+class DocumentSearcher {
+    private static final int WINDOW = 64 * 1024;
+    
+    private final char[] pattern;
+    private final boolean caseSensitive;
+    private final int[] forwardShift = new int[256];
+    private final int[] backwardShift = new int[256];
+    
+    public DocumentSearcher(String text, boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+        pattern = new char[text.length()];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = fold(text.charAt(i));
+        }
+        
+        // Tables are indexed by the low byte; a collision only makes a shift shorter, never wrong
+        int m = pattern.length;
+        Arrays.fill(forwardShift, m);
+        Arrays.fill(backwardShift, m);
+        for (int k = 0; k < m - 1; k++) {
+            forwardShift[pattern[k] & 0xFF] = m - 1 - k;
+        }
+        for (int k = m - 1; k > 0; k--) {
+            backwardShift[pattern[k] & 0xFF] = k;
+        }
+    }
+    
+    public int length() {
+        return pattern.length;
+    }
+    
+    private char fold(char c) {
+        if (caseSensitive) {
+            return c;
+        }
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+    
+    // First match starting at or after from, or -1
+    public int indexOf(TextSnapshot text, int from) {
+        return indexOf(text, from, new char[WINDOW + pattern.length]);
+    }
+    
+    private int indexOf(TextSnapshot text, int from, char[] window) {
+        int m = pattern.length;
+        int n = text.length();
+        if (m == 0) {
+            return -1;
+        }
+        for (int pos = Math.max(0, from); pos <= n - m; ) {
+            int end = Math.min(n, pos + WINDOW + m - 1);
+            int count = end - pos;
+            text.getChars(pos, end, window, 0);
+            for (int i = 0; i <= count - m; ) {
+                int j = m - 1;
+                while (j >= 0 && fold(window[i + j]) == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return pos + i;
+                }
+                i += forwardShift[fold(window[i + m - 1]) & 0xFF];
+            }
+            pos += count - m + 1;
+        }
+        return -1;
+    }
+    
+    // Last match starting at or before from, or -1
+    public int lastIndexOf(TextSnapshot text, int from) {
+        int m = pattern.length;
+        int n = text.length();
+        if (m == 0) {
+            return -1;
+        }
+        char[] window = new char[WINDOW + m];
+        for (int high = Math.min(from, n - m); high >= 0; ) {
+            int low = Math.max(0, high - WINDOW + 1);
+            text.getChars(low, high + m, window, 0);
+            for (int i = high - low; i >= 0; ) {
+                int j = 0;
+                while (j < m && fold(window[i + j]) == pattern[j]) {
+                    j++;
+                }
+                if (j == m) {
+                    return low + i;
+                }
+                i -= backwardShift[fold(window[i]) & 0xFF];
+            }
+            high = low - 1;
+        }
+        return -1;
+    }
+    
+    // Start offsets of every non-overlapping match, in order; stops early if the thread is interrupted
+    public int[] findAll(TextSnapshot text) {
+        char[] window = new char[WINDOW + pattern.length];
+        int[] offsets = new int[16];
+        int count = 0;
+        int from = 0;
+        int found;
+        while ((found = indexOf(text, from, window)) >= 0 && !Thread.currentThread().isInterrupted()) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = found;
+            from = found + Math.max(1, pattern.length);
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+}
+
+// Highlights the matches of a match index that fall inside the viewport, re-picking them as it scrolls
+class MatchHighlights {
+    private static final int MAX_VISIBLE_MATCHES = 2000;
+    private static final Highlighter.HighlightPainter PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 200, 0, 110));
+    
+    private final JTextComponent textComponent;
+    private final List<Object> tags = new ArrayList<>();
+    private final javax.swing.event.ChangeListener viewportListener = e -> paintVisible();
+    private int[] starts = new int[0];
+    private int[] ends;
+    private int count;
+    private int length;
+    
+    public MatchHighlights(JTextComponent textComponent) {
+        this.textComponent = textComponent;
+        if (textComponent.getParent() instanceof JViewport) {
+            ((JViewport) textComponent.getParent()).addChangeListener(viewportListener);
+        }
+    }
+    
+    public JTextComponent getTextComponent() { return textComponent; }
+    
+    public void show(int[] offsets, int length) {
+        this.starts = offsets;
+        this.ends = null;
+        this.count = offsets.length;
+        this.length = length;
+        paintVisible();
+    }
+    
+    // Ends may be null for fixed-length matches; only the first count entries are used
+    public void show(int[] starts, int[] ends, int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+        paintVisible();
+    }
+    
+    private int endOf(int index) {
+        return ends != null ? ends[index] : starts[index] + length;
+    }
+    
+    public void dispose() {
+        removeTags();
+        count = 0;
+        if (textComponent.getParent() instanceof JViewport) {
+            ((JViewport) textComponent.getParent()).removeChangeListener(viewportListener);
+        }
+    }
+    
+    private void removeTags() {
+        Highlighter highlighter = textComponent.getHighlighter();
+        for (Object tag : tags) {
+            highlighter.removeHighlight(tag);
+        }
+        tags.clear();
+    }
+    
+    private void paintVisible() {
+        removeTags();
+        if (count == 0 || !(textComponent.getParent() instanceof JViewport)) {
+            return;
+        }
+        Rectangle visible = ((JViewport) textComponent.getParent()).getViewRect();
+        int top = textComponent.viewToModel2D(new Point(0, visible.y));
+        int bottom = textComponent.viewToModel2D(new Point(visible.width, visible.y + visible.height));
+        int docLength = textComponent.getDocument().getLength();
+        
+        // Matches do not overlap, so their ends are sorted too
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endOf(mid) < top) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        Highlighter highlighter = textComponent.getHighlighter();
+        for (int index = low, shown = 0; index < count && starts[index] <= bottom && shown < MAX_VISIBLE_MATCHES; index++, shown++) {
+            int start = starts[index];
+            int end = endOf(index);
+            if (end > docLength) {
+                break;
+            }
+            try {
+                tags.add(highlighter.addHighlight(start, end, PAINTER));
+            } catch (BadLocationException e) {
+                break;
+            }
+        }
+    }
+}
+
+// Thrown from inside a regex match when the search is cancelled or runs past its deadline
+class RegexAbortedException extends RuntimeException {
+    public RegexAbortedException(String message) {
+        super(message);
+    }
+}
+
+// CharSequence view that gives up once a deadline passes, so a runaway pattern cannot spin forever
+class DeadlineCharSequence implements CharSequence {
+    private final CharSequence text;
+    private long deadline = Long.MAX_VALUE;
+    private int reads;
+    
+    public DeadlineCharSequence(CharSequence text) {
+        this.text = text;
+    }
+    
+    public void startMatch(long budgetNanos) {
+        deadline = System.nanoTime() + budgetNanos;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        // Checking the clock on every read would dominate the match itself
+        if ((++reads & 0xFFF) == 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new RegexAbortedException("Search cancelled");
+            }
+            if (System.nanoTime() > deadline) {
+                throw new RegexAbortedException("Pattern took too long to match");
+            }
+        }
+        return text.charAt(index);
+    }
+    
+    @Override
+    public int length() {
+        return text.length();
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+    
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
+
+// Runs a regex over a snapshot on a worker and streams match ranges back to the EDT in batches
+class RegexSearch extends SwingWorker<int[][], int[]> {
+    private static final long MATCH_BUDGET_NANOS = 3_000_000_000L;
+    private static final long PUBLISH_INTERVAL_NANOS = 50_000_000L;
+    
+    private final Pattern pattern;
+    private final TextSnapshot text;
+    private final String replacement;
+    private final List<String> replacements = new ArrayList<>();
+    private final java.util.function.Consumer<RegexSearch> listener;
+    
+    // Matches received so far, only touched on the EDT
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int count;
+    private boolean complete;
+    
+    public RegexSearch(Pattern pattern, TextSnapshot text, String replacement, java.util.function.Consumer<RegexSearch> listener) {
+        this.pattern = pattern;
+        this.text = text;
+        this.replacement = replacement;
+        this.listener = listener;
+    }
+    
+    public Pattern getPattern() { return pattern; }
+    public TextSnapshot getText() { return text; }
+    public String getReplacement() { return replacement; }
+    public int getCount() { return count; }
+    public int[] getStarts() { return starts; }
+    public int[] getEnds() { return ends; }
+    
+    // Set by done(); the future can finish while streamed batches are still queued, so isDone() may come too early
+    public boolean isComplete() { return complete; }
+    
+    // Expanded replacement for each match; only complete once the search is done
+    public List<String> getReplacements() { return replacements; }
+    
+    @Override
+    protected int[][] doInBackground() {
+        DeadlineCharSequence input = new DeadlineCharSequence(text);
+        Matcher matcher = pattern.matcher(input);
+        int[] allStarts = new int[64];
+        int[] allEnds = new int[64];
+        int total = 0;
+        int published = 0;
+        int lastEnd = 0;
+        long lastPublish = System.nanoTime();
+        StringBuilder expanded = new StringBuilder();
+        
+        input.startMatch(MATCH_BUDGET_NANOS);
+        while (matcher.find()) {
+            if (total == allStarts.length) {
+                allStarts = Arrays.copyOf(allStarts, total * 2);
+                allEnds = Arrays.copyOf(allEnds, total * 2);
+            }
+            allStarts[total] = matcher.start();
+            allEnds[total] = matcher.end();
+            total++;
+            
+            if (replacement != null) {
+                // appendReplacement also copies the text since the last match, which is skipped here
+                expanded.setLength(0);
+                matcher.appendReplacement(expanded, replacement);
+                replacements.add(expanded.substring(matcher.start() - lastEnd));
+                lastEnd = matcher.end();
+            }
+            
+            long now = System.nanoTime();
+            if (now - lastPublish > PUBLISH_INTERVAL_NANOS) {
+                publish(Arrays.copyOfRange(allStarts, published, total), Arrays.copyOfRange(allEnds, published, total));
+                published = total;
+                lastPublish = now;
+                setProgress((int) ((long) matcher.end() * 100 / Math.max(1, text.length())));
+            }
+            input.startMatch(MATCH_BUDGET_NANOS);
+        }
+        setProgress(100);
+        return new int[][] {Arrays.copyOf(allStarts, total), Arrays.copyOf(allEnds, total)};
+    }
+    
+    // Batches come in pairs: starts followed by the matching ends
+    @Override
+    protected void process(List<int[]> chunks) {
+        if (complete) {
+            return;
+        }
+        for (int i = 0; i + 1 < chunks.size(); i += 2) {
+            int[] batchStarts = chunks.get(i);
+            int[] batchEnds = chunks.get(i + 1);
+            if (count + batchStarts.length > starts.length) {
+                int capacity = Math.max(starts.length * 2, count + batchStarts.length);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            System.arraycopy(batchStarts, 0, starts, count, batchStarts.length);
+            System.arraycopy(batchEnds, 0, ends, count, batchEnds.length);
+            count += batchStarts.length;
+        }
+        listener.accept(this);
+    }
+    
+    // Late batches can arrive after done(), so the final result replaces whatever was streamed
+    @Override
+    protected void done() {
+        complete = true;
+        if (!isCancelled()) {
+            try {
+                int[][] result = get();
+                starts = result[0];
+                ends = result[1];
+                count = starts.length;
+            } catch (InterruptedException | ExecutionException e) {
+                // Partial results stay; the listener reports the failure
+            }
+        }
+        listener.accept(this);
+    }
+}
+
+// Find and Replace Dialog
+class FindReplaceDialog extends JDialog {
+    private JTextField findField;
+    private JTextField replaceField;
+    private JCheckBox caseSensitiveBox;
+    private JCheckBox regexBox;
+    private JLabel statusLabel;
+    private AdvancedTextEditor parent;
+    
+    // Live match count and highlights, refreshed shortly after the query or the document changes
+    private javax.swing.Timer countTimer;
+    private SwingWorker<int[], Void> countWorker;
+    private MatchHighlights matchHighlights;
+    private Document observedDocument;
+    
+    // Regex work runs on a worker; a find issued before its match arrives waits here
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private RegexSearch regexSearch;
+    private int pendingDirection;
+    private int pendingAnchor;
+    private final DocumentListener refreshListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) { scheduleCount(); }
+        
+        @Override
+        public void removeUpdate(DocumentEvent e) { scheduleCount(); }
+        
+        @Override
+        public void changedUpdate(DocumentEvent e) { }
+    };
+    
+    public FindReplaceDialog(AdvancedTextEditor parent) {
+        super(parent, "Find & Replace", false);
+        this.parent = parent;
+        initializeComponents();
+        setSize(480, 260);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initializeComponents() {
+        findField = new JTextField(20);
+        replaceField = new JTextField(20);
+        caseSensitiveBox = new JCheckBox("Case Sensitive");
+        regexBox = new JCheckBox("Regular Expression");
+        statusLabel = new JLabel(" ");
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setVisible(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setVisible(false);
+        cancelButton.addActionListener(e -> {
+            pendingDirection = 0;
+            cancelSearches();
+            statusLabel.setText("Search cancelled");
+        });
+        
+        JButton findNextButton = new JButton("Find Next");
+        findNextButton.addActionListener(e -> findNext());
+        
+        JButton findPrevButton = new JButton("Find Previous");
+        findPrevButton.addActionListener(e -> findPrevious());
+        
+        JButton replaceButton = new JButton("Replace");
+        replaceButton.addActionListener(e -> replace());
+        
+        JButton replaceAllButton = new JButton("Replace All");
+        replaceAllButton.addActionListener(e -> replaceAll());
+        
+        JButton findAllButton = new JButton("Find All");
+        findAllButton.addActionListener(e -> countMatches());
+        
+        countTimer = new javax.swing.Timer(150, e -> countMatches());
+        countTimer.setRepeats(false);
+        findField.getDocument().addDocumentListener(refreshListener);
+        caseSensitiveBox.addActionListener(e -> scheduleCount());
+        regexBox.addActionListener(e -> scheduleCount());
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                scheduleCount();
+            }
+            
+            @Override
+            public void componentHidden(ComponentEvent e) {
+                pendingDirection = 0;
+                cancelSearches();
+                clearMatches();
+            }
+        });
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(findNextButton);
+        buttonPanel.add(findPrevButton);
+        buttonPanel.add(findAllButton);
+        buttonPanel.add(replaceButton);
+        buttonPanel.add(replaceAllButton);
+        
+        setLayout(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(5, 5, 5, 5);
+        
+        gbc.gridx = 0; gbc.gridy = 0; gbc.anchor = GridBagConstraints.WEST;
+        add(new JLabel("Find:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL;
+        add(findField, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 1; gbc.anchor = GridBagConstraints.WEST; gbc.fill = GridBagConstraints.NONE;
+        add(new JLabel("Replace:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL;
+        add(replaceField, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 2; gbc.fill = GridBagConstraints.NONE;
+        add(caseSensitiveBox, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2;
+        add(regexBox, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 4; gbc.gridwidth = 2;
+        add(buttonPanel, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 5; gbc.gridwidth = 2;
+        add(statusLabel, gbc);
+        
+        JPanel progressPanel = new JPanel(new FlowLayout());
+        progressPanel.add(progressBar);
+        progressPanel.add(cancelButton);
+        gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2;
+        add(progressPanel, gbc);
+    }
+    
+    private void findNext() {
+        String searchText = findField.getText();
+        if (searchText.isEmpty()) return;
+        
+        EditorTab currentTab = parent.getCurrentEditorTab();
+        if (currentTab != null && currentTab.isLargeFile()) {
+            currentTab.getLargeFileView().find(searchText, caseSensitiveBox.isSelected(), true, statusLabel::setText);
+        } else if (currentTab != null && regexBox.isSelected()) {
+            findRegex(currentTab, true);
+        } else if (currentTab != null) {
+            JTextPane textPane = currentTab.getTextPane();
+            TextSnapshot content = currentTab.getTextSnapshot();
+            int startPos = textPane.getCaretPosition();
+            
+            int index = findInText(content, searchText, startPos, true);
+            if (index != -1) {
+                textPane.setCaretPosition(index);
+                textPane.select(index, index + searchText.length());
+                statusLabel.setText("Found at position " + index);
+            } else {
+                statusLabel.setText("Not found");
+            }
+        }
+    }
+    
+    private void findPrevious() {
+        String searchText = findField.getText();
+        if (searchText.isEmpty()) return;
+        
+        EditorTab currentTab = parent.getCurrentEditorTab();
+        if (currentTab != null && currentTab.isLargeFile()) {
+            currentTab.getLargeFileView().find(searchText, caseSensitiveBox.isSelected(), false, statusLabel::setText);
+        } else if (currentTab != null && regexBox.isSelected()) {
+            findRegex(currentTab, false);
+        } else if (currentTab != null) {
+            JTextPane textPane = currentTab.getTextPane();
+            TextSnapshot content = currentTab.getTextSnapshot();
+            int startPos = Math.max(0, textPane.getSelectionStart() - 1);
+            
+            int index = findInText(content, searchText, startPos, false);
+            if (index != -1) {
+                textPane.setCaretPosition(index);
+                textPane.select(index, index + searchText.length());
+                statusLabel.setText("Found at position " + index);
+            } else {
+                statusLabel.setText("Not found");
+            }
+        }
+    }
+    
+    private void replace() {
+        EditorTab currentTab = parent.getCurrentEditorTab();
+        if (currentTab != null) {
+            JTextPane textPane = currentTab.getTextPane();
+            String selectedText = textPane.getSelectedText();
+            String findText = findField.getText();
+            String replaceText = replaceField.getText();
+            
+            if (selectedText != null && regexBox.isSelected()) {
+                try {
+                    Matcher matcher = Pattern.compile(findText, regexFlags()).matcher(selectedText);
+                    if (matcher.matches()) {
+                        textPane.replaceSelection(matcher.replaceFirst(replaceText));
+                        statusLabel.setText("Replaced");
+                    }
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    statusLabel.setText("Invalid regex: " + e.getMessage());
+                    return;
+                }
+            } else if (selectedText != null && selectedText.equals(findText)) {
+                textPane.replaceSelection(replaceText);
+                statusLabel.setText("Replaced");
+            }
+            findNext();
+        }
+    }
+    
+    private void replaceAll() {
+        String findText = findField.getText();
+        String replaceText = replaceField.getText();
+        
+        if (findText.isEmpty()) return;
+        
+        EditorTab currentTab = parent.getCurrentEditorTab();
+        if (currentTab != null && currentTab.isLargeFile()) {
+            statusLabel.setText("Large files are opened read-only");
+        } else if (currentTab != null && regexBox.isSelected()) {
+            // Matching and expansion happen on the worker; the edit is applied when it finishes
+            startRegexSearch(currentTab, replaceText);
+        } else if (currentTab != null) {
+            TextSnapshot content = currentTab.getTextSnapshot();
+            int[] offsets = new DocumentSearcher(findText, caseSensitiveBox.isSelected()).findAll(content);
+            int[] ends = new int[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                ends[i] = offsets[i] + findText.length();
+            }
+            currentTab.replaceRanges(offsets, ends, offsets.length, i -> replaceText);
+            statusLabel.setText("Replaced " + offsets.length + " occurrences");
+        }
+    }
+    
+    private int regexFlags() {
+        return caseSensitiveBox.isSelected() ? 0 : Pattern.CASE_INSENSITIVE;
+    }
+    
+    // Reuses the running or finished search when it covers the same query and text, otherwise starts one
+    private void findRegex(EditorTab tab, boolean forward) {
+        JTextPane textPane = tab.getTextPane();
+        pendingDirection = forward ? 1 : -1;
+        pendingAnchor = forward ? textPane.getCaretPosition() : Math.max(0, textPane.getSelectionStart() - 1);
+        
+        RegexSearch search = regexSearch;
+        boolean reusable = search != null && search.getReplacement() == null && !search.isCancelled()
+            && search.getPattern().pattern().equals(findField.getText())
+            && search.getPattern().flags() == regexFlags()
+            && search.getText().sameText(tab.getTextSnapshot());
+        if (reusable) {
+            resolvePendingFind(textPane);
+        } else if (startRegexSearch(tab, null) == null) {
+            pendingDirection = 0;
+        }
+    }
+    
+    private RegexSearch startRegexSearch(EditorTab tab, String replacement) {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(findField.getText(), regexFlags());
+        } catch (java.util.regex.PatternSyntaxException e) {
+            statusLabel.setText("Invalid regex: " + e.getDescription());
+            return null;
+        }
+        
+        cancelSearches();
+        JTextPane textPane = tab.getTextPane();
+        observe(textPane);
+        RegexSearch search = new RegexSearch(pattern, tab.getTextSnapshot(), replacement,
+                                             updated -> regexUpdated(updated, tab));
+        search.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName()) && search == regexSearch) {
+                progressBar.setValue((Integer) e.getNewValue());
+            }
+        });
+        regexSearch = search;
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        cancelButton.setVisible(true);
+        statusLabel.setText("Searching...");
+        search.execute();
+        return search;
+    }
+    
+    // Called for each streamed batch and once more when the search ends
+    private void regexUpdated(RegexSearch search, EditorTab tab) {
+        JTextPane textPane = tab.getTextPane();
+        if (search != regexSearch) {
+            return;
+        }
+        highlightsFor(textPane).show(search.getStarts(), search.getEnds(), search.getCount());
+        if (!search.isComplete()) {
+            statusLabel.setText(search.getCount() + " matches so far...");
+            resolvePendingFind(textPane);
+            return;
+        }
+        
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+        if (search.isCancelled()) {
+            return;
+        }
+        try {
+            search.get();
+        } catch (InterruptedException | ExecutionException e) {
+            pendingDirection = 0;
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            statusLabel.setText(cause.getMessage() + " (" + search.getCount() + " matches before stopping)");
+            return;
+        }
+        
+        if (search.getReplacement() != null) {
+            regexSearch = null;
+            TextSnapshot current = ((EditorDocument) textPane.getDocument()).snapshot();
+            if (!search.getText().sameText(current)) {
+                statusLabel.setText("Document changed during the search; nothing replaced");
+                return;
+            }
+            List<String> replacements = search.getReplacements();
+            tab.replaceRanges(search.getStarts(), search.getEnds(), search.getCount(), replacements::get);
+            statusLabel.setText("Replaced " + search.getCount() + " occurrences");
+            return;
+        }
+        statusLabel.setText(search.getCount() == 1 ? "1 match" : search.getCount() + " matches");
+        resolvePendingFind(textPane);
+    }
+    
+    // Selects the match a pending Find Next/Previous asked for once the scan has got far enough
+    private void resolvePendingFind(JTextPane textPane) {
+        RegexSearch search = regexSearch;
+        if (pendingDirection == 0 || search == null) {
+            return;
+        }
+        int[] starts = search.getStarts();
+        int count = search.getCount();
+        int index = Arrays.binarySearch(starts, 0, count, pendingAnchor);
+        if (pendingDirection > 0) {
+            index = index >= 0 ? index : -index - 1;
+            if (index >= count && !search.isComplete()) {
+                return;
+            }
+        } else {
+            index = index >= 0 ? index : -index - 2;
+            boolean passedAnchor = count > 0 && starts[count - 1] > pendingAnchor;
+            if (!search.isComplete() && !passedAnchor) {
+                return;
+            }
+        }
+        
+        pendingDirection = 0;
+        if (index >= 0 && index < count) {
+            int start = starts[index];
+            textPane.setCaretPosition(start);
+            textPane.select(start, search.getEnds()[index]);
+            statusLabel.setText("Found at position " + start);
+        } else {
+            statusLabel.setText("Not found");
+        }
+    }
+    
+    private MatchHighlights highlightsFor(JTextPane textPane) {
+        if (matchHighlights == null || matchHighlights.getTextComponent() != textPane) {
+            if (matchHighlights != null) {
+                matchHighlights.dispose();
+            }
+            matchHighlights = new MatchHighlights(textPane);
+        }
+        return matchHighlights;
+    }
+    
+    private void observe(JTextPane textPane) {
+        if (observedDocument != textPane.getDocument()) {
+            clearMatches();
+            observedDocument = textPane.getDocument();
+            observedDocument.addDocumentListener(refreshListener);
+        }
+    }
+    
+    private void cancelSearches() {
+        if (countWorker != null) {
+            countWorker.cancel(true);
+            countWorker = null;
+        }
+        if (regexSearch != null) {
+            regexSearch.cancel(true);
+            regexSearch = null;
+        }
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+    }
+    
+    private int findInText(TextSnapshot content, String searchText, int startPos, boolean forward) {
+        if (startPos < 0) startPos = 0;
+        if (startPos >= content.length()) startPos = content.length() - 1;
+        
+        DocumentSearcher searcher = new DocumentSearcher(searchText, caseSensitiveBox.isSelected());
+        return forward ? searcher.indexOf(content, startPos) : searcher.lastIndexOf(content, startPos);
+    }
+    
+    private void scheduleCount() {
+        if (isVisible()) {
+            countTimer.restart();
+        }
+    }
+    
+    // Indexes every match off the EDT, then highlights the visible ones and shows the total
+    private void countMatches() {
+        String searchText = findField.getText();
+        EditorTab currentTab = parent.getCurrentEditorTab();
+        if (regexSearch != null && regexSearch.getReplacement() != null) {
+            // Never interrupt a Replace All that is still matching
+            return;
+        }
+        cancelSearches();
+        if (searchText.isEmpty() || currentTab == null || currentTab.isLargeFile()) {
+            clearMatches();
+            return;
+        }
+        if (regexBox.isSelected()) {
+            startRegexSearch(currentTab, null);
+            return;
+        }
+        
+        JTextPane textPane = currentTab.getTextPane();
+        observe(textPane);
+        TextSnapshot content = currentTab.getTextSnapshot();
+        DocumentSearcher searcher = new DocumentSearcher(searchText, caseSensitiveBox.isSelected());
+        
+        countWorker = new SwingWorker<int[], Void>() {
+            @Override
+            protected int[] doInBackground() {
+                return searcher.findAll(content);
+            }
+            
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    int[] offsets = get();
+                    highlightsFor(textPane).show(offsets, searcher.length());
+                    statusLabel.setText(offsets.length == 1 ? "1 match" : offsets.length + " matches");
+                } catch (InterruptedException | ExecutionException e) {
+                    statusLabel.setText("Search failed: " + e.getMessage());
+                }
+            }
+        };
+        countWorker.execute();
+    }
+    
+    private void clearMatches() {
+        if (matchHighlights != null) {
+            matchHighlights.dispose();
+            matchHighlights = null;
+        }
+        if (observedDocument != null) {
+            observedDocument.removeDocumentListener(refreshListener);
+            observedDocument = null;
+        }
+    }
+}
+
+// Go to Line Dialog
+class GoToLineDialog extends JDialog {
+    private JTextField lineField;
+    private AdvancedTextEditor parent;
+    
+    public GoToLineDialog(AdvancedTextEditor parent) {
+        super(parent, "Go to Line", true);
+        this.parent = parent;
+        initializeComponents();
+        setSize(250, 120);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initializeComponents() {
+        setLayout(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(5, 5, 5, 5);
+        
+        lineField = new JTextField(10);
+        JButton goButton = new JButton("Go");
+        JButton cancelButton = new JButton("Cancel");
+        
+        goButton.addActionListener(e -> goToLine());
+        cancelButton.addActionListener(e -> setVisible(false));
+        
+        gbc.gridx = 0; gbc.gridy = 0;
+        add(new JLabel("Line number:"), gbc);
+        
+        gbc.gridx = 1;
+        add(lineField, gbc);
+        
+        gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 2;
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(goButton);
+        buttonPanel.add(cancelButton);
+        add(buttonPanel, gbc);
+        
+        // Enter key listener
+        lineField.addActionListener(e -> goToLine());
+    }
+    
+    private void goToLine() {
+        try {
+            long lineNumber = Long.parseLong(lineField.getText());
+            EditorTab currentTab = parent.getCurrentEditorTab();
+            
+            if (currentTab != null && currentTab.isLargeFile()) {
+                if (currentTab.getLargeFileView().goToLine(lineNumber - 1)) {
+                    setVisible(false);
+                    lineField.setText("");
+                } else {
+                    JOptionPane.showMessageDialog(this, 
+                        "Line number must be between 1 and " + currentTab.getLargeFileView().getMappedFile().getLineCount(),
+                        "Invalid Line Number", JOptionPane.ERROR_MESSAGE);
+                }
+            } else if (currentTab != null) {
+                JTextPane textPane = currentTab.getTextPane();
+                Element root = textPane.getDocument().getDefaultRootElement();
+                int totalLines = root.getElementCount();
+                
+                if (lineNumber > 0 && lineNumber <= totalLines) {
+                    Element line = root.getElement((int) lineNumber - 1);
+                    int offset = line.getStartOffset();
+                    textPane.setCaretPosition(offset);
+                    setVisible(false);
+                    lineField.setText("");
+                } else {
+                    JOptionPane.showMessageDialog(this, 
+                        "Line number must be between 1 and " + totalLines,
+                        "Invalid Line Number", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter a valid number",
+                "Invalid Input", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
+
+// Diagnostics Dialog
+class DiagnosticsDialog extends JDialog {
+    private AdvancedTextEditor parent;
+    private JTextArea reportArea;
+    private javax.swing.Timer refreshTimer;
+    
+    public DiagnosticsDialog(AdvancedTextEditor parent) {
+        super(parent, "Diagnostics", false);
+        this.parent = parent;
+        initializeComponents();
+        setSize(820, 500);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initializeComponents() {
+        setLayout(new BorderLayout());
+        
+        reportArea = new JTextArea();
+        reportArea.setEditable(false);
+        reportArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            EditorDiagnostics.reset();
+            refresh();
+        });
+        
+        JButton exportButton = new JButton("Export JFR...");
+        exportButton.addActionListener(e -> exportJfr());
+        
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> setVisible(false));
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(resetButton);
+        buttonPanel.add(exportButton);
+        buttonPanel.add(closeButton);
+        
+        // Figures keep coming in while the dialog is open
+        refreshTimer = new javax.swing.Timer(1000, e -> refresh());
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                refresh();
+                refreshTimer.start();
+            }
+            
+            @Override
+            public void componentHidden(ComponentEvent e) {
+                refreshTimer.stop();
+            }
+        });
+        
+        add(new JScrollPane(reportArea), BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    private void refresh() {
+        Point scroll = ((JViewport) reportArea.getParent()).getViewPosition();
+        reportArea.setText(EditorDiagnostics.report());
+        ((JViewport) reportArea.getParent()).setViewPosition(scroll);
+    }
+    
+    private void exportJfr() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("editor-diagnostics.jfr"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            EditorDiagnostics.exportJfr(chooser.getSelectedFile().toPath());
+        } catch (IOException | RuntimeException e) {
+            JOptionPane.showMessageDialog(this, "Could not write the recording: " + e.getMessage(),
+                "Export JFR", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
+
+// Style Configuration Dialog
+class StyleConfigDialog extends JDialog {
+    private AdvancedTextEditor parent;
+    private JButton backgroundColorButton;
+    private JButton textColorButton;
+    private JButton selectionColorButton;
+    private JButton lineNumberColorButton;
+    private JSpinner fontSizeSpinner;
+    
+    public StyleConfigDialog(AdvancedTextEditor parent) {
+        super(parent, "Style Configuration", false);
+        this.parent = parent;
+        initializeComponents();
+        setSize(400, 300);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initializeComponents() {
+        setLayout(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(5, 5, 5, 5);
+        
+        // Color buttons
+        backgroundColorButton = createColorButton("Background Color", parent.getBackgroundColor());
+        textColorButton = createColorButton("Text Color", parent.getTextColor());
+        selectionColorButton = createColorButton("Selection Color", parent.getSelectionColor());
+        lineNumberColorButton = createColorButton("Line Number Color", parent.getLineNumberColor());
+        
+        // Font size spinner
+        fontSizeSpinner = new JSpinner(new SpinnerNumberModel(parent.getFontSize(), 8, 72, 1));
+        fontSizeSpinner.addChangeListener(e -> parent.setFontSize((Integer) fontSizeSpinner.getValue()));
+        
+        // Layout components
+        gbc.gridx = 0; gbc.gridy = 0; gbc.anchor = GridBagConstraints.WEST;
+        add(new JLabel("Colors:"), gbc);
+        
+        gbc.gridy = 1;
+        add(backgroundColorButton, gbc);
+        gbc.gridy = 2;
+        add(textColorButton, gbc);
+        gbc.gridy = 3;
+        add(selectionColorButton, gbc);
+        gbc.gridy = 4;
+        add(lineNumberColorButton, gbc);
+        
+        gbc.gridy = 5;
+        add(new JLabel("Font Size:"), gbc);
+        gbc.gridx = 1;
+        add(fontSizeSpinner, gbc);
+        
+        // Theme buttons
+        gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2;
+        add(new JLabel("Quick Themes:"), gbc);
+        
+        JPanel themePanel = new JPanel();
+        themePanel.add(createThemeButton("Dark"));
+        themePanel.add(createThemeButton("Light"));
+        themePanel.add(createThemeButton("Monokai"));
+        themePanel.add(createThemeButton("Solarized"));
+        
+        gbc.gridy = 7;
+        add(themePanel, gbc);
+    }
+    
+    private JButton createColorButton(String text, Color initialColor) {
+        JButton button = new JButton(text);
+        button.setBackground(initialColor);
+        button.addActionListener(e -> {
+            Color newColor = JColorChooser.showDialog(this, "Choose " + text, initialColor);
+            if (newColor != null) {
+                button.setBackground(newColor);
+                updateParentColor(text, newColor);
+            }
+        });
+        return button;
+    }
+    
+    private JButton createThemeButton(String theme) {
+        JButton button = new JButton(theme);
+        button.addActionListener(e -> parent.applyTheme(theme.equals("Solarized") ? "Solarized Dark" : theme));
+        return button;
+    }
+    
+    private void updateParentColor(String colorType, Color color) {
+        switch (colorType) {
+            case "Background Color":
+                parent.setBackgroundColor(color);
+                break;
+            case "Text Color":
+                parent.setTextColor(color);
+                break;
+            case "Selection Color":
+                parent.setSelectionColor(color);
+                break;
+            case "Line Number Color":
+                parent.setLineNumberColor(color);
+                break;
+        }
+    }
+}
+
+// One matching line found by Find in Files
+class FileMatch {
+    private final File file;
+    private final long line;
+    private final String label;
+    
+    public FileMatch(File file, long line, String label) {
+        this.file = file;
+        this.line = line;
+        this.label = label;
+    }
+    
+    public File getFile() { return file; }
+    public long getLine() { return line; }
+    
+    @Override
+    public String toString() {
+        return label;
+    }
+}
+
+// Searches every text file under a folder on a fork/join pool, reading each one through a memory mapping
+class FileSearch extends SwingWorker<Void, FileMatch> {
+    public static final int MAX_RESULTS = 10000;
+    private static final long WINDOW = 64L * 1024 * 1024;
+    private static final long MAX_REGEX_BYTES = 64L * 1024 * 1024;
+    private static final long MATCH_BUDGET_NANOS = 3_000_000_000L;
+    private static final int PREVIEW_BEFORE = 60;
+    private static final int PREVIEW_AFTER = 140;
+    private static final java.util.concurrent.ForkJoinPool SEARCH_POOL =
+        new java.util.concurrent.ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    
+    private final Path root;
+    private final String text;
+    private final boolean caseSensitive;
+    private final Pattern regex;
+    private final List<Path> candidates;
+    private final java.util.function.BiConsumer<FileSearch, List<FileMatch>> listener;
+    private final java.util.concurrent.ConcurrentHashMap<java.nio.charset.Charset, BytePattern> patterns =
+        new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.atomic.AtomicInteger matchCount = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.concurrent.atomic.AtomicInteger filesScanned = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.concurrent.atomic.AtomicInteger filesMatched = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.concurrent.atomic.AtomicInteger binarySkipped = new java.util.concurrent.atomic.AtomicInteger();
+    private volatile boolean truncated;
+    
+    // A regex replaces the literal text when given; candidates, when given, replace the folder walk
+    public FileSearch(Path root, String text, boolean caseSensitive, Pattern regex, List<Path> candidates,
+                      java.util.function.BiConsumer<FileSearch, List<FileMatch>> listener) {
+        this.root = root;
+        this.text = text;
+        this.caseSensitive = caseSensitive;
+        this.regex = regex;
+        this.candidates = candidates;
+        this.listener = listener;
+    }
+    
+    public int getMatchCount() { return Math.min(matchCount.get(), MAX_RESULTS); }
+    public int getFilesScanned() { return filesScanned.get(); }
+    public int getFilesMatched() { return filesMatched.get(); }
+    public int getBinarySkipped() { return binarySkipped.get(); }
+    public boolean isTruncated() { return truncated; }
+    public int getCandidateCount() { return candidates == null ? -1 : candidates.size(); }
+    
+    @Override
+    protected Void doInBackground() {
+        SEARCH_POOL.invoke(candidates != null ? new FileListTask(0, candidates.size()) : new DirectoryTask(root));
+        return null;
+    }
+    
+    @Override
+    protected void process(List<FileMatch> chunks) {
+        listener.accept(this, chunks);
+    }
+    
+    @Override
+    protected void done() {
+        listener.accept(this, Collections.emptyList());
+    }
+    
+    private boolean stopped() {
+        return truncated || isCancelled();
+    }
+    
+    // Forks a task per entry so deep and wide trees both spread across the pool
+    private final class DirectoryTask extends java.util.concurrent.RecursiveAction {
+        private final Path directory;
+        
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+        
+        @Override
+        protected void compute() {
+            if (stopped()) {
+                return;
+            }
+            List<java.util.concurrent.RecursiveAction> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    // Hidden entries are left out as in the tree, and linked folders are not followed
+                    if (entry.toFile().isHidden()) {
+                        continue;
+                    }
+                    java.nio.file.attribute.BasicFileAttributes attributes = Files.readAttributes(
+                        entry, java.nio.file.attribute.BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        tasks.add(new DirectoryTask(entry));
+                    } else if (attributes.isRegularFile() || (attributes.isSymbolicLink() && Files.isRegularFile(entry))) {
+                        tasks.add(new FileTask(entry));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // Folders that cannot be listed are skipped
+            }
+            invokeAll(tasks);
+        }
+    }
+    
+    private final class FileTask extends java.util.concurrent.RecursiveAction {
+        private final Path file;
+        
+        FileTask(Path file) {
+            this.file = file;
+        }
+        
+        @Override
+        protected void compute() {
+            if (!stopped()) {
+                scanFile(file);
+            }
+        }
+    }
+    
+    // Splits the shortlist in halves until the pieces are small enough to scan in one task
+    private final class FileListTask extends java.util.concurrent.RecursiveAction {
+        private final int from;
+        private final int to;
+        
+        FileListTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= 8) {
+                for (int i = from; i < to && !stopped(); i++) {
+                    scanFile(candidates.get(i));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FileListTask(from, mid), new FileListTask(mid, to));
+            }
+        }
+    }
+    
+    // Sniffs the head for encoding and NUL bytes, then searches the rest in place; each file publishes its lines together
+    private void scanFile(Path path) {
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return;
+            }
+            java.nio.ByteBuffer head = java.nio.ByteBuffer.allocate((int) Math.min(size, TextEncoding.SNIFF_BYTES));
+            while (head.hasRemaining() && channel.read(head) > 0) {
+                // Fill the sample
+            }
+            TextEncoding encoding = TextEncoding.detect(head.array(), head.position());
+            if (encoding.bomLength == 0 && looksBinary(head.array(), head.position())) {
+                binarySkipped.incrementAndGet();
+                return;
+            }
+            filesScanned.incrementAndGet();
+            
+            List<FileMatch> matches = new ArrayList<>();
+            if (regex != null) {
+                scanRegex(channel, size, path, encoding, matches);
+            } else if (encoding.isAsciiCompatible()) {
+                scanMapped(channel, size, path, encoding, matches);
+            } else {
+                scanDecoded(channel, size, path, encoding, matches);
+            }
+            if (!matches.isEmpty()) {
+                filesMatched.incrementAndGet();
+                publish(matches.toArray(new FileMatch[0]));
+            }
+        } catch (IOException e) {
+            // Files that vanish or cannot be read are left out of the results
+        }
+    }
+    
+    static boolean looksBinary(byte[] sample, int length) {
+        for (int i = 0; i < length; i++) {
+            if (sample[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Horspool over mapped windows; line numbers are counted only up to each match, and a line is reported once
+    private void scanMapped(java.nio.channels.FileChannel channel, long size, Path path, TextEncoding encoding, List<FileMatch> matches) throws IOException {
+        BytePattern pattern = patterns.computeIfAbsent(encoding.charset, charset -> new BytePattern(charset));
+        byte[] needle = pattern.bytes;
+        if (needle == null) {
+            return;
+        }
+        int m = needle.length;
+        int[] shift = pattern.shift;
+        boolean utf8 = encoding.charset.equals(java.nio.charset.StandardCharsets.UTF_8);
+        
+        long line = 1;
+        long lineStart = encoding.bomLength;
+        long counted = encoding.bomLength;
+        long position = encoding.bomLength;
+        // Set when a reported line runs on past the window, so the next one starts after that line
+        boolean skipLine = false;
+        while (position + m <= size && !stopped()) {
+            long base = position;
+            long end = Math.min(size, base + WINDOW);
+            java.nio.MappedByteBuffer buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, base, end - base);
+            int limit = (int) (end - base);
+            int p = 0;
+            if (skipLine) {
+                while (p < limit && buffer.get(p) != '\n') {
+                    p++;
+                }
+                if (p == limit) {
+                    position = end;
+                    counted = end;
+                    continue;
+                }
+                skipLine = false;
+                line++;
+                lineStart = base + p + 1;
+                counted = lineStart;
+                p++;
+            }
+            while (p + m <= limit) {
+                int k = m - 1;
+                byte last = buffer.get(p + k);
+                while (k >= 0 && fold(buffer.get(p + k)) == needle[k]) {
+                    k--;
+                }
+                if (k >= 0) {
+                    p += shift[fold(last) & 0xFF];
+                    continue;
+                }
+                
+                long at = base + p;
+                for (long q = counted; q < at; q++) {
+                    if (buffer.get((int) (q - base)) == '\n') {
+                        line++;
+                        lineStart = q + 1;
+                    }
+                }
+                int lineEnd = p + m;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                
+                int from = (int) (Math.max(Math.max(lineStart, at - PREVIEW_BEFORE), base) - base);
+                while (utf8 && from < p && (buffer.get(from) & 0xC0) == 0x80) {
+                    from++;
+                }
+                int to = Math.min(lineEnd, p + m + PREVIEW_AFTER);
+                byte[] preview = new byte[to - from];
+                for (int i = 0; i < preview.length; i++) {
+                    preview[i] = buffer.get(from + i);
+                }
+                if (!addMatch(matches, path, line, new String(preview, encoding.charset))) {
+                    return;
+                }
+                
+                if (lineEnd < limit) {
+                    line++;
+                    lineStart = base + lineEnd + 1;
+                } else {
+                    skipLine = end < size;
+                }
+                counted = base + Math.min(limit, lineEnd + 1);
+                p = lineEnd + 1;
+            }
+            
+            // The next window starts at the first candidate this one could not finish; lines up to it are counted now
+            position = Math.min(base + p, end);
+            for (long q = counted; q < position; q++) {
+                if (buffer.get((int) (q - base)) == '\n') {
+                    line++;
+                    lineStart = q + 1;
+                }
+            }
+            counted = Math.max(counted, position);
+        }
+    }
+    
+    // Files that are not ASCII compatible, such as UTF-16 with a BOM, are decoded and searched as text
+    private void scanDecoded(java.nio.channels.FileChannel channel, long size, Path path, TextEncoding encoding, List<FileMatch> matches) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            return;
+        }
+        java.nio.MappedByteBuffer bytes = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, encoding.bomLength, size - encoding.bomLength);
+        String content = encoding.charset.decode(bytes).toString();
+        int m = text.length();
+        long line = 1;
+        int lineStart = 0;
+        while (lineStart <= content.length() && !stopped()) {
+            int lineEnd = content.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = content.length();
+            }
+            for (int at = lineStart; at + m <= lineEnd; at++) {
+                if (content.regionMatches(!caseSensitive, at, text, 0, m)) {
+                    String preview = content.substring(Math.max(lineStart, at - PREVIEW_BEFORE), Math.min(lineEnd, at + m + PREVIEW_AFTER));
+                    if (!addMatch(matches, path, line, preview)) {
+                        return;
+                    }
+                    break;
+                }
+            }
+            lineStart = lineEnd + 1;
+            line++;
+        }
+    }
+    
+    // Regex queries decode the file and report the line each match starts on, once per line
+    private void scanRegex(java.nio.channels.FileChannel channel, long size, Path path, TextEncoding encoding, List<FileMatch> matches) throws IOException {
+        if (size > MAX_REGEX_BYTES) {
+            return;
+        }
+        java.nio.MappedByteBuffer bytes = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, encoding.bomLength, size - encoding.bomLength);
+        java.nio.CharBuffer content = encoding.charset.newDecoder()
+            .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE)
+            .decode(bytes);
+        DeadlineCharSequence input = new DeadlineCharSequence(content);
+        Matcher matcher = regex.matcher(input);
+        int length = content.length();
+        long line = 1;
+        int lineStart = 0;
+        int counted = 0;
+        int from = 0;
+        try {
+            input.startMatch(MATCH_BUDGET_NANOS);
+            while (from <= length && !stopped() && matcher.find(from)) {
+                int at = matcher.start();
+                for (; counted < at; counted++) {
+                    if (content.get(counted) == '\n') {
+                        line++;
+                        lineStart = counted + 1;
+                    }
+                }
+                int lineEnd = at;
+                while (lineEnd < length && content.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                String preview = content.subSequence(Math.max(lineStart, at - PREVIEW_BEFORE), Math.min(lineEnd, Math.max(at, matcher.end()) + PREVIEW_AFTER)).toString();
+                if (!addMatch(matches, path, line, preview)) {
+                    return;
+                }
+                from = lineEnd + 1;
+                input.startMatch(MATCH_BUDGET_NANOS);
+            }
+        } catch (RegexAbortedException e) {
+            // A pattern that runs away on one file does not hold up the others
+        }
+    }
+    
+    private boolean addMatch(List<FileMatch> matches, Path path, long line, String preview) {
+        if (matchCount.incrementAndGet() > MAX_RESULTS) {
+            truncated = true;
+            return false;
+        }
+        String label = root.relativize(path) + ":" + line + ": " + preview.replace('\t', ' ').replace("\r", "").trim();
+        matches.add(new FileMatch(path.toFile(), line, label));
+        return true;
+    }
+    
+    private byte fold(byte b) {
+        return !caseSensitive && b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+    
+    // Search text encoded for one charset, with its Horspool shift table; bytes is null when the charset cannot hold the text
+    private final class BytePattern {
+        final byte[] bytes;
+        final int[] shift = new int[256];
+        
+        BytePattern(java.nio.charset.Charset charset) {
+            if (!charset.newEncoder().canEncode(text)) {
+                bytes = null;
+                return;
+            }
+            bytes = text.getBytes(charset);
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = fold(bytes[i]);
+            }
+            int m = bytes.length;
+            Arrays.fill(shift, m);
+            for (int k = 0; k < m - 1; k++) {
+                shift[bytes[k] & 0xFF] = m - 1 - k;
+            }
+        }
+    }
+}
+
+// On-disk trigram index of a folder; postings are read through a mapping and files changed since the build sit in an overlay
+class TrigramIndex {
+    private static final int MAGIC = 0x54524731;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int TABLE_ENTRY_SIZE = 16;
+    private static final long MAX_INDEXED_BYTES = 32L * 1024 * 1024;
+    private static final int SPILL_PAIRS = 4 * 1024 * 1024;
+    private static final byte FLAG_ALWAYS = 1;
+    private static final byte FLAG_BINARY = 2;
+    private static final ExecutorService INDEX_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "trigram-index");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    
+    private final Path root;
+    private final java.nio.MappedByteBuffer data;
+    private final long tableOffset;
+    private final int trigramCount;
+    private final String[] paths;
+    private final long[] sizes;
+    private final long[] modified;
+    private final int[] alwaysIds;
+    private final Map<String, Integer> ids;
+    
+    // Files that changed since the build; base entries they replace are marked stale. Guarded by this
+    private final BitSet stale = new BitSet();
+    private final Map<String, Entry> overlay = new HashMap<>();
+    
+    private TrigramIndex(Path root, java.nio.MappedByteBuffer data, long tableOffset, int trigramCount,
+                         String[] paths, long[] sizes, long[] modified, byte[] flags) {
+        this.root = root;
+        this.data = data;
+        this.tableOffset = tableOffset;
+        this.trigramCount = trigramCount;
+        this.paths = paths;
+        this.sizes = sizes;
+        this.modified = modified;
+        ids = new HashMap<>(paths.length * 2);
+        int always = 0;
+        for (int id = 0; id < paths.length; id++) {
+            ids.put(paths[id], id);
+            if (flags[id] == FLAG_ALWAYS) always++;
+        }
+        alwaysIds = new int[always];
+        for (int id = 0, i = 0; id < paths.length; id++) {
+            if (flags[id] == FLAG_ALWAYS) alwaysIds[i++] = id;
+        }
+    }
+    
+    public Path getRoot() { return root; }
+    public int getFileCount() { return paths.length; }
+    
+    static Path indexFileFor(Path root) {
+        String name = root.getFileName() == null ? "root" : root.getFileName().toString().replaceAll("[^A-Za-z0-9._-]", "_");
+        return AdvancedTextEditor.dataDirectory().resolve("index")
+            .resolve(name + "-" + Integer.toHexString(root.toString().hashCode()) + ".trigrams");
+    }
+    
+    static boolean exists(Path root) {
+        return Files.isRegularFile(indexFileFor(root));
+    }
+    
+    // Maps a saved index; returns null when there is none or it belongs to another folder or version
+    static TrigramIndex open(Path root) throws IOException {
+        Path indexFile = indexFileFor(root);
+        if (!Files.isRegularFile(indexFile)) {
+            return null;
+        }
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            java.nio.MappedByteBuffer data = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, size);
+            if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+                return null;
+            }
+            long tableOffset = data.getLong(8);
+            int trigramCount = data.getInt(16);
+            long filesOffset = data.getLong(20);
+            int fileCount = data.getInt(28);
+            if (tableOffset + (long) trigramCount * TABLE_ENTRY_SIZE > filesOffset || filesOffset > size) {
+                return null;
+            }
+            
+            channel.position(filesOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(java.nio.channels.Channels.newInputStream(channel)));
+            if (!in.readUTF().equals(root.toString())) {
+                return null;
+            }
+            String[] paths = new String[fileCount];
+            long[] sizes = new long[fileCount];
+            long[] modified = new long[fileCount];
+            byte[] flags = new byte[fileCount];
+            for (int id = 0; id < fileCount; id++) {
+                paths[id] = in.readUTF();
+                sizes[id] = in.readLong();
+                modified[id] = in.readLong();
+                flags[id] = in.readByte();
+            }
+            return new TrigramIndex(root, data, tableOffset, trigramCount, paths, sizes, modified, flags);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+    
+    // Pairs of (trigram, file) are sorted in memory-sized runs spilled to disk, then merged into posting lists
+    static TrigramIndex build(Path root, java.util.function.IntConsumer progress, java.util.function.BooleanSupplier cancelled) throws IOException {
+        List<FoundFile> files = walk(root, cancelled);
+        Path indexFile = indexFileFor(root);
+        Path directory = indexFile.getParent();
+        Files.createDirectories(directory);
+        
+        byte[] flags = new byte[files.size()];
+        List<Path> spills = new ArrayList<>();
+        try {
+            long[] pairs = new long[SPILL_PAIRS];
+            long[] sorted = new long[SPILL_PAIRS];
+            int[] buckets = new int[(1 << 21) + 1];
+            int pairCount = 0;
+            TrigramCollector collector = new TrigramCollector();
+            for (int id = 0; id < files.size(); id++) {
+                if (cancelled.getAsBoolean()) {
+                    throw new InterruptedIOException("Indexing cancelled");
+                }
+                FoundFile file = files.get(id);
+                Entry entry;
+                try {
+                    entry = read(file.path, file.size, file.modified, collector);
+                } catch (IOException e) {
+                    // Unreadable now, so always searched rather than never
+                    entry = new Entry(file.size, file.modified, FLAG_ALWAYS, null);
+                }
+                flags[id] = entry.flags;
+                if (entry.trigrams != null) {
+                    for (int trigram : entry.trigrams) {
+                        if (pairCount == pairs.length) {
+                            spills.add(spill(directory, pairs, sorted, buckets, pairCount));
+                            pairCount = 0;
+                        }
+                        pairs[pairCount++] = ((long) trigram << 32) | id;
+                    }
+                }
+                if ((id & 0xFF) == 0) {
+                    progress.accept(id);
+                }
+            }
+            sortPairs(pairs, sorted, buckets, pairCount);
+            
+            Path temp = Files.createTempFile(directory, "trigrams", ".tmp");
+            try {
+                write(temp, root, files, flags, spills, sorted, pairCount);
+                Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } finally {
+            for (Path spill : spills) {
+                Files.deleteIfExists(spill);
+            }
+        }
+        return open(root);
+    }
+    
+    private static Path spill(Path directory, long[] pairs, long[] sorted, int[] buckets, int count) throws IOException {
+        sortPairs(pairs, sorted, buckets, count);
+        Path spill = Files.createTempFile(directory, "trigrams", ".run");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spill), 1 << 16))) {
+            for (int i = 0; i < count; i++) {
+                out.writeLong(sorted[i]);
+            }
+        }
+        return spill;
+    }
+    
+    // Pairs arrive in file order, so a stable counting sort on the trigram alone leaves them fully sorted
+    private static void sortPairs(long[] pairs, long[] sorted, int[] buckets, int count) {
+        Arrays.fill(buckets, 0);
+        for (int i = 0; i < count; i++) {
+            buckets[bucketOf(pairs[i]) + 1]++;
+        }
+        for (int b = 1; b < buckets.length; b++) {
+            buckets[b] += buckets[b - 1];
+        }
+        for (int i = 0; i < count; i++) {
+            sorted[buckets[bucketOf(pairs[i])]++] = pairs[i];
+        }
+    }
+    
+    // Indexed trigrams are three ASCII bytes, which pack into 21 bits in the same order
+    private static int bucketOf(long pair) {
+        int trigram = (int) (pair >>> 32);
+        return ((trigram >>> 16) << 14) | (((trigram >>> 8) & 0x7F) << 7) | (trigram & 0x7F);
+    }
+    
+    // Layout: header, varint-delta posting lists, a sorted table of (trigram, count, offset), then the file list.
+    // The spilled runs are merged with the last run, which is still in memory
+    private static void write(Path target, Path root, List<FoundFile> files, byte[] flags, List<Path> spills,
+                              long[] memory, int memoryCount) throws IOException {
+        int memoryRun = spills.size();
+        int memoryPosition = 0;
+        int runs = memoryRun + 1;
+        DataInputStream[] inputs = new DataInputStream[runs];
+        long[] heads = new long[runs];
+        int[] heap = new int[runs];
+        int heapSize = 0;
+        int[] tableTrigrams = new int[1024];
+        int[] tableCounts = new int[1024];
+        long[] tableOffsets = new long[1024];
+        int entries = 0;
+        long position = HEADER_SIZE;
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target), 1 << 16))) {
+            for (int r = 0; r < memoryRun; r++) {
+                inputs[r] = new DataInputStream(new BufferedInputStream(Files.newInputStream(spills.get(r)), 1 << 16));
+                heads[r] = inputs[r].readLong();
+                heapSize = siftUp(heap, heapSize, r, heads);
+            }
+            if (memoryCount > 0) {
+                heads[memoryRun] = memory[memoryPosition++];
+                heapSize = siftUp(heap, heapSize, memoryRun, heads);
+            }
+            out.write(new byte[HEADER_SIZE]);
+            
+            // Runs hold disjoint, increasing file ids, so merging by value keeps each posting list sorted
+            int currentTrigram = -1;
+            int previousId = -1;
+            while (heapSize > 0) {
+                int r = heap[0];
+                long pair = heads[r];
+                int trigram = (int) (pair >>> 32);
+                int id = (int) pair;
+                if (trigram != currentTrigram) {
+                    if (entries == tableTrigrams.length) {
+                        tableTrigrams = Arrays.copyOf(tableTrigrams, entries * 2);
+                        tableCounts = Arrays.copyOf(tableCounts, entries * 2);
+                        tableOffsets = Arrays.copyOf(tableOffsets, entries * 2);
+                    }
+                    tableTrigrams[entries] = trigram;
+                    tableOffsets[entries] = position;
+                    entries++;
+                    currentTrigram = trigram;
+                    previousId = -1;
+                }
+                tableCounts[entries - 1]++;
+                position += writeVarint(out, id - previousId);
+                previousId = id;
+                
+                if (r == memoryRun) {
+                    if (memoryPosition < memoryCount) {
+                        heads[r] = memory[memoryPosition++];
+                    } else {
+                        heap[0] = heap[--heapSize];
+                    }
+                } else {
+                    try {
+                        heads[r] = inputs[r].readLong();
+                    } catch (EOFException e) {
+                        heap[0] = heap[--heapSize];
+                    }
+                }
+                siftDown(heap, heapSize, heads);
+            }
+            
+            long tableOffset = position;
+            for (int i = 0; i < entries; i++) {
+                out.writeInt(tableTrigrams[i]);
+                out.writeInt(tableCounts[i]);
+                out.writeLong(tableOffsets[i]);
+            }
+            long filesOffset = tableOffset + (long) entries * TABLE_ENTRY_SIZE;
+            out.writeUTF(root.toString());
+            for (int id = 0; id < files.size(); id++) {
+                FoundFile file = files.get(id);
+                out.writeUTF(root.relativize(file.path).toString());
+                out.writeLong(file.size);
+                out.writeLong(file.modified);
+                out.writeByte(flags[id]);
+            }
+            out.flush();
+            
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(target, StandardOpenOption.WRITE)) {
+                java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(tableOffset).putInt(entries).putLong(filesOffset).putInt(files.size());
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+        } finally {
+            for (DataInputStream input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+        }
+    }
+    
+    private static int writeVarint(DataOutputStream out, int value) throws IOException {
+        int written = 1;
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+            written++;
+        }
+        out.write(value);
+        return written;
+    }
+    
+    private static int siftUp(int[] heap, int size, int run, long[] heads) {
+        int i = size;
+        while (i > 0 && heads[heap[(i - 1) / 2]] > heads[run]) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = run;
+        return size + 1;
+    }
+    
+    private static void siftDown(int[] heap, int size, long[] heads) {
+        if (size == 0) {
+            return;
+        }
+        int run = heap[0];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]]) {
+                child++;
+            }
+            if (heads[heap[child]] >= heads[run]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = run;
+    }
+    
+    // Re-reads files whose size or time changed since they were last seen, and drops the ones that are gone
+    public int refresh(java.util.function.BooleanSupplier cancelled) throws IOException {
+        List<FoundFile> files = walk(root, cancelled);
+        if (cancelled.getAsBoolean()) {
+            return 0;
+        }
+        Set<String> seen = new HashSet<>(files.size() * 2);
+        TrigramCollector collector = new TrigramCollector();
+        int changed = 0;
+        for (FoundFile file : files) {
+            String key = root.relativize(file.path).toString();
+            seen.add(key);
+            if (!isCurrent(key, file.size, file.modified)) {
+                try {
+                    put(key, read(file.path, file.size, file.modified, collector));
+                    changed++;
+                } catch (IOException e) {
+                    // Left for the next refresh
+                }
+            }
+        }
+        synchronized (this) {
+            for (int id = 0; id < paths.length; id++) {
+                if (!stale.get(id) && !seen.contains(paths[id])) {
+                    stale.set(id);
+                    changed++;
+                }
+            }
+            int before = overlay.size();
+            overlay.keySet().removeIf(key -> !seen.contains(key));
+            changed += before - overlay.size();
+        }
+        return changed;
+    }
+    
+    // Re-reads one file in the background, as after the editor saves it
+    public void updateLater(Path file) {
+        if (!file.startsWith(root)) {
+            return;
+        }
+        INDEX_EXECUTOR.execute(() -> {
+            String key = root.relativize(file).toString();
+            try {
+                java.nio.file.attribute.BasicFileAttributes attributes =
+                    Files.readAttributes(file, java.nio.file.attribute.BasicFileAttributes.class);
+                put(key, read(file, attributes.size(), attributes.lastModifiedTime().toMillis(), new TrigramCollector()));
+            } catch (IOException e) {
+                synchronized (this) {
+                    Integer id = ids.get(key);
+                    if (id != null) {
+                        stale.set(id);
+                    }
+                    overlay.remove(key);
+                }
+            }
+        });
+    }
+    
+    // A rebuild pays off once the overlay holds a sizeable share of the tree
+    public synchronized boolean needsCompaction() {
+        return overlay.size() + stale.cardinality() > Math.max(512, paths.length / 8);
+    }
+    
+    private synchronized boolean isCurrent(String key, long size, long time) {
+        Entry entry = overlay.get(key);
+        if (entry != null) {
+            return entry.size == size && entry.modified == time;
+        }
+        Integer id = ids.get(key);
+        return id != null && !stale.get(id) && sizes[id] == size && modified[id] == time;
+    }
+    
+    private synchronized void put(String key, Entry entry) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            stale.set(id);
+        }
+        overlay.put(key, entry);
+    }
+    
+    // Files that may contain every given trigram; null when there are none to go by and the whole tree must be scanned
+    public synchronized List<Path> candidates(int[] trigrams) {
+        if (trigrams.length == 0) {
+            return null;
+        }
+        int[] entries = new int[trigrams.length];
+        boolean missing = false;
+        for (int i = 0; i < trigrams.length; i++) {
+            entries[i] = findTrigram(trigrams[i]);
+            missing |= entries[i] < 0;
+        }
+        
+        List<Path> result = new ArrayList<>();
+        if (!missing) {
+            // Intersecting from the rarest trigram keeps the working list short
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = entries[i];
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(postingCount(a), postingCount(b)));
+            int[] matched = postings(order[0]);
+            for (int i = 1; i < order.length && matched.length > 0; i++) {
+                matched = intersect(matched, postings(order[i]));
+            }
+            for (int id : matched) {
+                if (!stale.get(id)) {
+                    result.add(root.resolve(paths[id]));
+                }
+            }
+        }
+        for (int id : alwaysIds) {
+            if (!stale.get(id)) {
+                result.add(root.resolve(paths[id]));
+            }
+        }
+        for (Map.Entry<String, Entry> changed : overlay.entrySet()) {
+            Entry entry = changed.getValue();
+            if (entry.flags == FLAG_ALWAYS || (entry.flags == 0 && containsAll(entry.trigrams, trigrams))) {
+                result.add(root.resolve(changed.getKey()));
+            }
+        }
+        return result;
+    }
+    
+    private int findTrigram(int trigram) {
+        int low = 0;
+        int high = trigramCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = data.getInt((int) (tableOffset + (long) mid * TABLE_ENTRY_SIZE));
+            if (value < trigram) {
+                low = mid + 1;
+            } else if (value > trigram) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    private int postingCount(int entry) {
+        return data.getInt((int) (tableOffset + (long) entry * TABLE_ENTRY_SIZE + 4));
+    }
+    
+    private int[] postings(int entry) {
+        int count = postingCount(entry);
+        int position = (int) data.getLong((int) (tableOffset + (long) entry * TABLE_ENTRY_SIZE + 8));
+        int[] result = new int[count];
+        int id = -1;
+        for (int i = 0; i < count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data.get(position++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            result[i] = id;
+        }
+        return result;
+    }
+    
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
             }
         }
+        return Arrays.copyOf(result, count);
     }
     
-    private void findPrevious() {
-        String searchText = findField.getText();
-        if (searchText.isEmpty()) return;
-        
-        EditorTab currentTab = parent.getCurrentEditorTab();
-        if (currentTab != null) {
-            JTextPane textPane = currentTab.getTextPane();
-            String content = textPane.getText();
-            int startPos = Math.max(0, textPane.getSelectionStart() - 1);
-            
-            int index = findInText(content, searchText, startPos, false);
-            if (index != -1) {
-                textPane.setCaretPosition(index);
-                textPane.select(index, index + searchText.length());
-                statusLabel.setText("Found at position " + index);
-            } else {
-                statusLabel.setText("Not found");
+    private static boolean containsAll(int[] sorted, int[] trigrams) {
+        for (int trigram : trigrams) {
+            if (Arrays.binarySearch(sorted, trigram) < 0) {
+                return false;
             }
         }
+        return true;
     }
     
-    private void replace() {
-        EditorTab currentTab = parent.getCurrentEditorTab();
-        if (currentTab != null) {
-            JTextPane textPane = currentTab.getTextPane();
-            String selectedText = textPane.getSelectedText();
-            String findText = findField.getText();
-            String replaceText = replaceField.getText();
-            
-            if (selectedText != null && selectedText.equals(findText)) {
-                textPane.replaceSelection(replaceText);
-                statusLabel.setText("Replaced");
+    // Only trigrams of ASCII bytes are kept, since those encode the same way in every charset the index reads
+    static int[] trigramsOf(String text) {
+        TrigramCollector collector = new TrigramCollector();
+        collector.add(text);
+        return collector.finish();
+    }
+    
+    // Trigrams of the literal runs every match of a regex must contain; anything the scan is unsure of is left out
+    static int[] trigramsOfRegex(String regex) {
+        TrigramCollector collector = new TrigramCollector();
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            char literal;
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(++i);
+                if (next == 'Q') {
+                    int end = regex.indexOf("\\E", i + 1);
+                    String quoted = end < 0 ? regex.substring(i + 1) : regex.substring(i + 1, end);
+                    i = end < 0 ? regex.length() : end + 1;
+                    if (depth == 0 && i + 1 < regex.length() && "*?{".indexOf(regex.charAt(i + 1)) >= 0) {
+                        quoted = quoted.substring(0, Math.max(0, quoted.length() - 1));
+                    }
+                    if (depth == 0) {
+                        run.append(quoted);
+                    }
+                    continue;
+                }
+                if ("\\.[]{}()*+?^$|/-#&~ '\"".indexOf(next) < 0) {
+                    collector.add(run);
+                    run.setLength(0);
+                    continue;
+                }
+                literal = next;
+            } else if (c == '[') {
+                // Skip the class, which may nest and escape its brackets
+                int nesting = 0;
+                for (; i < regex.length(); i++) {
+                    char d = regex.charAt(i);
+                    if (d == '\\') {
+                        i++;
+                    } else if (d == '[') {
+                        nesting++;
+                    } else if (d == ']' && --nesting == 0) {
+                        break;
+                    }
+                }
+                collector.add(run);
+                run.setLength(0);
+                continue;
+            } else if (c == '(' || c == ')') {
+                depth += c == '(' ? 1 : -1;
+                collector.add(run);
+                run.setLength(0);
+                continue;
+            } else if (c == '|') {
+                if (depth == 0) {
+                    // Either side may match, so no run is required
+                    return new int[0];
+                }
+                continue;
+            } else if (c == '*' || c == '?' || c == '{') {
+                // The quantified character becomes optional
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                collector.add(run);
+                run.setLength(0);
+                if (c == '{') {
+                    int end = regex.indexOf('}', i);
+                    i = end < 0 ? regex.length() : end;
+                }
+                continue;
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+                collector.add(run);
+                run.setLength(0);
+                continue;
+            } else {
+                literal = c;
+            }
+            if (depth == 0) {
+                run.append(literal);
             }
-            findNext();
         }
+        collector.add(run);
+        return collector.finish();
     }
     
-    private void replaceAll() {
-        String findText = findField.getText();
-        String replaceText = replaceField.getText();
-        
-        if (findText.isEmpty()) return;
-        
-        EditorTab currentTab = parent.getCurrentEditorTab();
-        if (currentTab != null) {
-            JTextPane textPane = currentTab.getTextPane();
-            String content = textPane.getText();
+    private static List<FoundFile> walk(Path root, java.util.function.BooleanSupplier cancelled) throws IOException {
+        List<FoundFile> files = new ArrayList<>();
+        // Same rules as the plain search: hidden entries are skipped and linked folders are not followed
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, java.nio.file.attribute.BasicFileAttributes attributes) {
+                if (cancelled.getAsBoolean()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                return dir.equals(root) || !dir.toFile().isHidden() ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
             
-            int count = 0;
-            if (regexBox.isSelected()) {
-                try {
-                    int flags = caseSensitiveBox.isSelected() ? 0 : Pattern.CASE_INSENSITIVE;
-                    Pattern pattern = Pattern.compile(findText, flags);
-                    Matcher matcher = pattern.matcher(content);
-                    
-                    StringBuffer result = new StringBuffer();
-                    while (matcher.find()) {
-                        matcher.appendReplacement(result, replaceText);
-                        count++;
-                    }
-                    matcher.appendTail(result);
-                    content = result.toString();
-                } catch (Exception e) {
-                    statusLabel.setText("Invalid regex: " + e.getMessage());
-                    return;
+            @Override
+            public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attributes) throws IOException {
+                if (file.toFile().isHidden()) {
+                    return FileVisitResult.CONTINUE;
                 }
-            } else {
-                String searchText = caseSensitiveBox.isSelected() ? findText : findText.toLowerCase();
-                String searchContent = caseSensitiveBox.isSelected() ? content : content.toLowerCase();
-                
-                int index = 0;
-                StringBuilder result = new StringBuilder();
-                int lastIndex = 0;
-                
-                while ((index = searchContent.indexOf(searchText, index)) != -1) {
-                    result.append(content.substring(lastIndex, index));
-                    result.append(replaceText);
-                    lastIndex = index + findText.length();
-                    index = lastIndex;
-                    count++;
+                if (attributes.isSymbolicLink() && Files.isRegularFile(file)) {
+                    attributes = Files.readAttributes(file, java.nio.file.attribute.BasicFileAttributes.class);
+                }
+                if (attributes.isRegularFile()) {
+                    files.add(new FoundFile(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
                 }
-                result.append(content.substring(lastIndex));
-                content = result.toString();
+                return FileVisitResult.CONTINUE;
             }
             
-            textPane.setText(content);
-            statusLabel.setText("Replaced " + count + " occurrences");
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+    
+    private static Entry read(Path path, long size, long modified, TrigramCollector collector) throws IOException {
+        if (size > MAX_INDEXED_BYTES) {
+            return new Entry(size, modified, FLAG_ALWAYS, null);
+        }
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path, StandardOpenOption.READ)) {
+            java.nio.ByteBuffer buffer = collector.buffer;
+            buffer.clear();
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // Fill the first block, which doubles as the sniffing sample
+            }
+            int length = buffer.position();
+            TextEncoding encoding = TextEncoding.detect(buffer.array(), Math.min(length, TextEncoding.SNIFF_BYTES));
+            if (encoding.bomLength == 0 && FileSearch.looksBinary(buffer.array(), Math.min(length, TextEncoding.SNIFF_BYTES))) {
+                return new Entry(size, modified, FLAG_BINARY, null);
+            }
+            if (!encoding.isAsciiCompatible()) {
+                return new Entry(size, modified, FLAG_ALWAYS, null);
+            }
+            try {
+                while (length > 0) {
+                    collector.add(buffer.array(), length);
+                    buffer.clear();
+                    length = Math.max(0, channel.read(buffer));
+                }
+            } catch (IOException e) {
+                collector.finish();
+                throw e;
+            }
+            return new Entry(size, modified, (byte) 0, collector.finish());
         }
     }
     
-    private int findInText(String content, String searchText, int startPos, boolean forward) {
-        if (startPos < 0) startPos = 0;
-        if (startPos >= content.length()) startPos = content.length() - 1;
+    private static final class FoundFile {
+        final Path path;
+        final long size;
+        final long modified;
         
-        String searchContent = caseSensitiveBox.isSelected() ? content : content.toLowerCase();
-        String search = caseSensitiveBox.isSelected() ? searchText : searchText.toLowerCase();
-        
-        if (forward) {
-            return searchContent.indexOf(search, startPos);
-        } else {
-            return searchContent.lastIndexOf(search, startPos);
+        FoundFile(Path path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
         }
     }
-}
-
-// Go to Line Dialog
-class GoToLineDialog extends JDialog {
-    private JTextField lineField;
-    private AdvancedTextEditor parent;
     
-    public GoToLineDialog(AdvancedTextEditor parent) {
-        super(parent, "Go to Line", true);
-        this.parent = parent;
-        initializeComponents();
-        setSize(250, 120);
-        setLocationRelativeTo(parent);
+    // A file as last read; trigrams are null unless it was indexed
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final byte flags;
+        final int[] trigrams;
+        
+        Entry(long size, long modified, byte flags, int[] trigrams) {
+            this.size = size;
+            this.modified = modified;
+            this.flags = flags;
+            this.trigrams = trigrams;
+        }
     }
     
-    private void initializeComponents() {
-        setLayout(new GridBagLayout());
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.insets = new Insets(5, 5, 5, 5);
-        
-        lineField = new JTextField(10);
-        JButton goButton = new JButton("Go");
-        JButton cancelButton = new JButton("Cancel");
-        
-        goButton.addActionListener(e -> goToLine());
-        cancelButton.addActionListener(e -> setVisible(false));
-        
-        gbc.gridx = 0; gbc.gridy = 0;
-        add(new JLabel("Line number:"), gbc);
+    // Distinct trigrams of one input, gathered in a 2^24-bit set that is cleared through the list of bits it touched
+    private static final class TrigramCollector {
+        final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(64 * 1024);
+        private final long[] bits = new long[1 << 18];
+        private int[] touched = new int[1024];
+        private int count;
+        private int window;
+        private int valid;
         
-        gbc.gridx = 1;
-        add(lineField, gbc);
+        void add(byte[] bytes, int length) {
+            for (int i = 0; i < length; i++) {
+                accept(bytes[i] & 0xFF);
+            }
+        }
         
-        gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 2;
-        JPanel buttonPanel = new JPanel();
-        buttonPanel.add(goButton);
-        buttonPanel.add(cancelButton);
-        add(buttonPanel, gbc);
+        void add(CharSequence text) {
+            for (int i = 0; i < text.length(); i++) {
+                accept(text.charAt(i));
+            }
+            valid = 0;
+        }
         
-        // Enter key listener
-        lineField.addActionListener(e -> goToLine());
-    }
-    
-    private void goToLine() {
-        try {
-            int lineNumber = Integer.parseInt(lineField.getText());
-            EditorTab currentTab = parent.getCurrentEditorTab();
-            
-            if (currentTab != null) {
-                JTextPane textPane = currentTab.getTextPane();
-                Element root = textPane.getDocument().getDefaultRootElement();
-                int totalLines = root.getElementCount();
-                
-                if (lineNumber > 0 && lineNumber <= totalLines) {
-                    Element line = root.getElement(lineNumber - 1);
-                    int offset = line.getStartOffset();
-                    textPane.setCaretPosition(offset);
-                    setVisible(false);
-                    lineField.setText("");
-                } else {
-                    JOptionPane.showMessageDialog(this, 
-                        "Line number must be between 1 and " + totalLines,
-                        "Invalid Line Number", JOptionPane.ERROR_MESSAGE);
+        // Case is folded to ASCII lower case; line breaks and non-ASCII break the window
+        private void accept(int c) {
+            if (c >= 0x80 || c == '\n' || c == '\r') {
+                valid = 0;
+                return;
+            }
+            window = ((window << 8) | (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c)) & 0xFFFFFF;
+            if (++valid >= 3) {
+                long bit = 1L << window;
+                int word = window >>> 6;
+                if ((bits[word] & bit) == 0) {
+                    bits[word] |= bit;
+                    if (count == touched.length) {
+                        touched = Arrays.copyOf(touched, count * 2);
+                    }
+                    touched[count++] = window;
                 }
             }
-        } catch (NumberFormatException e) {
-            JOptionPane.showMessageDialog(this, "Please enter a valid number",
-                "Invalid Input", JOptionPane.ERROR_MESSAGE);
+        }
+        
+        int[] finish() {
+            int[] result = Arrays.copyOf(touched, count);
+            for (int trigram : result) {
+                bits[trigram >>> 6] = 0;
+            }
+            Arrays.sort(result);
+            count = 0;
+            valid = 0;
+            return result;
         }
     }
 }
 
-// Style Configuration Dialog
-class StyleConfigDialog extends JDialog {
-    private AdvancedTextEditor parent;
-    private JButton backgroundColorButton;
-    private JButton textColorButton;
-    private JButton selectionColorButton;
-    private JButton lineNumberColorButton;
-    private JSpinner fontSizeSpinner;
+// Watches folders for the explorer tree and open tabs; events are gathered on a daemon thread and handed to the EDT in quiet-period batches
+class FileWatcher {
+    private static final long QUIET_MILLIS = 200;
+    private static final long MAX_DELAY_MILLIS = 1000;
     
-    public StyleConfigDialog(AdvancedTextEditor parent) {
-        super(parent, "Style Configuration", false);
-        this.parent = parent;
-        initializeComponents();
-        setSize(400, 300);
-        setLocationRelativeTo(parent);
+    private final java.util.function.Consumer<Set<Path>> listener;
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private final Map<Path, Integer> counts = new HashMap<>();
+    private WatchService service;
+    private boolean unavailable;
+    
+    public FileWatcher(java.util.function.Consumer<Set<Path>> listener) {
+        this.listener = listener;
     }
     
-    private void initializeComponents() {
-        setLayout(new GridBagLayout());
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.insets = new Insets(5, 5, 5, 5);
-        
-        // Color buttons
-        backgroundColorButton = createColorButton("Background Color", parent.getBackgroundColor());
-        textColorButton = createColorButton("Text Color", parent.getTextColor());
-        selectionColorButton = createColorButton("Selection Color", parent.getSelectionColor());
-        lineNumberColorButton = createColorButton("Line Number Color", parent.getLineNumberColor());
-        
-        // Font size spinner
-        fontSizeSpinner = new JSpinner(new SpinnerNumberModel(parent.getFontSize(), 8, 72, 1));
-        fontSizeSpinner.addChangeListener(e -> parent.setFontSize((Integer) fontSizeSpinner.getValue()));
-        
-        // Layout components
-        gbc.gridx = 0; gbc.gridy = 0; gbc.anchor = GridBagConstraints.WEST;
-        add(new JLabel("Colors:"), gbc);
-        
-        gbc.gridy = 1;
-        add(backgroundColorButton, gbc);
-        gbc.gridy = 2;
-        add(textColorButton, gbc);
-        gbc.gridy = 3;
-        add(selectionColorButton, gbc);
-        gbc.gridy = 4;
-        add(lineNumberColorButton, gbc);
-        
-        gbc.gridy = 5;
-        add(new JLabel("Font Size:"), gbc);
-        gbc.gridx = 1;
-        add(fontSizeSpinner, gbc);
-        
-        // Theme buttons
-        gbc.gridx = 0; gbc.gridy = 6; gbc.gridwidth = 2;
-        add(new JLabel("Quick Themes:"), gbc);
-        
-        JPanel themePanel = new JPanel();
-        themePanel.add(createThemeButton("Dark"));
-        themePanel.add(createThemeButton("Light"));
-        themePanel.add(createThemeButton("Monokai"));
-        themePanel.add(createThemeButton("Solarized"));
-        
-        gbc.gridy = 7;
-        add(themePanel, gbc);
+    // Registrations are counted, so the tree and several tabs can share a folder
+    public synchronized void watch(Path directory) {
+        directory = directory.toAbsolutePath().normalize();
+        int count = counts.getOrDefault(directory, 0);
+        counts.put(directory, count + 1);
+        if (count > 0 || !start()) {
+            return;
+        }
+        try {
+            keys.put(directory, directory.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException e) {
+            // Folders that cannot be watched simply do not refresh on their own
+        }
     }
     
-    private JButton createColorButton(String text, Color initialColor) {
-        JButton button = new JButton(text);
-        button.setBackground(initialColor);
-        button.addActionListener(e -> {
-            Color newColor = JColorChooser.showDialog(this, "Choose " + text, initialColor);
-            if (newColor != null) {
-                button.setBackground(newColor);
-                updateParentColor(text, newColor);
-            }
-        });
-        return button;
+    public synchronized void unwatch(Path directory) {
+        directory = directory.toAbsolutePath().normalize();
+        Integer count = counts.get(directory);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            counts.put(directory, count - 1);
+            return;
+        }
+        counts.remove(directory);
+        WatchKey key = keys.remove(directory);
+        if (key != null) {
+            key.cancel();
+        }
     }
     
-    private JButton createThemeButton(String theme) {
-        JButton button = new JButton(theme);
-        button.addActionListener(e -> parent.applyTheme(theme.equals("Solarized") ? "Solarized Dark" : theme));
-        return button;
+    private boolean start() {
+        if (service != null || unavailable) {
+            return service != null;
+        }
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            unavailable = true;
+            return false;
+        }
+        Thread thread = new Thread(this::run, "file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
     }
     
-    private void updateParentColor(String colorType, Color color) {
-        switch (colorType) {
-            case "Background Color":
-                parent.setBackgroundColor(color);
-                break;
-            case "Text Color":
-                parent.setTextColor(color);
-                break;
-            case "Selection Color":
-                parent.setSelectionColor(color);
-                break;
-            case "Line Number Color":
-                parent.setLineNumberColor(color);
-                break;
+    // Changed entries are reported by path; an overflowed folder is reported as the folder itself
+    private void run() {
+        while (true) {
+            Set<Path> batch = new HashSet<>();
+            try {
+                collect(service.take(), batch);
+                long deadline = System.currentTimeMillis() + MAX_DELAY_MILLIS;
+                long now;
+                while ((now = System.currentTimeMillis()) < deadline) {
+                    WatchKey key = service.poll(Math.min(QUIET_MILLIS, deadline - now), java.util.concurrent.TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    collect(key, batch);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (!batch.isEmpty()) {
+                SwingUtilities.invokeLater(() -> listener.accept(batch));
+            }
+        }
+    }
+    
+    private void collect(WatchKey key, Set<Path> batch) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || event.context() == null) {
+                batch.add(directory);
+            } else {
+                batch.add(directory.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            // The folder itself went away
+            batch.add(directory);
+            synchronized (this) {
+                if (keys.get(directory) == key) {
+                    keys.remove(directory);
+                }
+            }
         }
     }
 }
@@ -1687,16 +9747,28 @@ class FileExplorerDialog extends JDialog {
     private AdvancedTextEditor parent;
     private JTree fileTree;
     private File currentDirectory;
+    private JTextField searchField;
+    private JCheckBox matchCaseBox;
+    private JCheckBox regexBox;
+    private JCheckBox indexBox;
+    private JButton searchButton;
+    private JLabel searchStatus;
+    private DefaultListModel<FileMatch> resultModel;
+    private JList<FileMatch> resultList;
+    private FileSearch fileSearch;
+    private TrigramIndex index;
+    private SwingWorker<TrigramIndex, Integer> indexWorker;
     
     public FileExplorerDialog(AdvancedTextEditor parent) {
         super(parent, "File Explorer", false);
         this.parent = parent;
         initializeComponents();
-        setSize(300, 400);
+        setSize(420, 600);
         setLocationRelativeTo(parent);
         
         currentDirectory = new File(System.getProperty("user.home"));
         refreshTree();
+        folderChanged();
     }
     
     private void initializeComponents() {
@@ -1706,6 +9778,35 @@ class FileExplorerDialog extends JDialog {
         selectFolderButton.addActionListener(e -> selectFolder());
         
         fileTree = new JTree();
+        // Folders list themselves as they expand and may give their children back once collapsed
+        fileTree.addTreeWillExpandListener(new javax.swing.event.TreeWillExpandListener() {
+            @Override
+            public void treeWillExpand(javax.swing.event.TreeExpansionEvent e) {
+                Object node = e.getPath().getLastPathComponent();
+                if (fileTree.getModel() instanceof FileTreeModel && node instanceof FileTreeNode) {
+                    ((FileTreeModel) fileTree.getModel()).load((FileTreeNode) node);
+                }
+            }
+            
+            @Override
+            public void treeWillCollapse(javax.swing.event.TreeExpansionEvent e) {
+                // Nothing to do until the collapse has happened
+            }
+        });
+        fileTree.addTreeExpansionListener(new javax.swing.event.TreeExpansionListener() {
+            @Override
+            public void treeExpanded(javax.swing.event.TreeExpansionEvent e) {
+                // Loading already started in treeWillExpand
+            }
+            
+            @Override
+            public void treeCollapsed(javax.swing.event.TreeExpansionEvent e) {
+                Object node = e.getPath().getLastPathComponent();
+                if (fileTree.getModel() instanceof FileTreeModel && node instanceof FileTreeNode) {
+                    ((FileTreeModel) fileTree.getModel()).collapsed((FileTreeNode) node);
+                }
+            }
+        });
         fileTree.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
@@ -1715,8 +9816,75 @@ class FileExplorerDialog extends JDialog {
             }
         });
         
+        // Find in Files searches the selected folder; results open on a single click
+        searchField = new JTextField();
+        searchField.addActionListener(e -> toggleSearch());
+        matchCaseBox = new JCheckBox("Match case");
+        regexBox = new JCheckBox("Regex");
+        indexBox = new JCheckBox("Index folder");
+        indexBox.setToolTipText("Keep a trigram index of this folder on disk to shortlist files");
+        indexBox.addActionListener(e -> {
+            if (indexBox.isSelected()) {
+                updateIndex();
+            } else {
+                closeIndex();
+            }
+        });
+        searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> toggleSearch());
+        searchStatus = new JLabel(" ");
+        
+        resultModel = new DefaultListModel<>();
+        resultList = new JList<>(resultModel);
+        resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                openSelectedMatch();
+            }
+        });
+        resultList.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    openSelectedMatch();
+                }
+            }
+        });
+        
+        JPanel searchRow = new JPanel(new BorderLayout(5, 0));
+        searchRow.add(searchField, BorderLayout.CENTER);
+        searchRow.add(searchButton, BorderLayout.EAST);
+        JPanel searchOptions = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        searchOptions.add(matchCaseBox);
+        searchOptions.add(regexBox);
+        searchOptions.add(indexBox);
+        searchRow.add(searchOptions, BorderLayout.SOUTH);
+        
+        JPanel searchPanel = new JPanel(new BorderLayout(0, 5));
+        searchPanel.setBorder(new EmptyBorder(5, 5, 5, 5));
+        searchPanel.add(searchRow, BorderLayout.NORTH);
+        searchPanel.add(new JScrollPane(resultList), BorderLayout.CENTER);
+        searchPanel.add(searchStatus, BorderLayout.SOUTH);
+        
+        JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(fileTree), searchPanel);
+        split.setResizeWeight(0.5);
+        
         add(selectFolderButton, BorderLayout.NORTH);
-        add(new JScrollPane(fileTree), BorderLayout.CENTER);
+        add(split, BorderLayout.CENTER);
+        
+        // Coming back to the explorer picks up files changed elsewhere in the meantime
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowActivated(WindowEvent e) {
+                updateIndex();
+            }
+        });
+    }
+    
+    public void focusSearch() {
+        searchField.requestFocusInWindow();
+        searchField.selectAll();
     }
     
     private void selectFolder() {
@@ -1726,12 +9894,174 @@ class FileExplorerDialog extends JDialog {
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             currentDirectory = chooser.getSelectedFile();
             refreshTree();
+            stopSearch();
+            resultModel.clear();
+            searchStatus.setText(" ");
+            folderChanged();
+        }
+    }
+    
+    // A folder indexed before is indexed again without asking
+    private void folderChanged() {
+        closeIndex();
+        indexBox.setSelected(TrigramIndex.exists(indexRoot()));
+        updateIndex();
+    }
+    
+    private Path indexRoot() {
+        return currentDirectory.toPath().toAbsolutePath().normalize();
+    }
+    
+    // Opens or builds the folder's index, or catches the loaded one up with changes on disk; a large overlay triggers a rebuild
+    private void updateIndex() {
+        if (!indexBox.isSelected() || indexWorker != null || currentDirectory == null || !currentDirectory.isDirectory()) {
+            return;
+        }
+        Path root = indexRoot();
+        TrigramIndex current = index;
+        indexWorker = new SwingWorker<TrigramIndex, Integer>() {
+            @Override
+            protected TrigramIndex doInBackground() throws IOException {
+                TrigramIndex loaded = current != null ? current : TrigramIndex.open(root);
+                if (loaded != null) {
+                    loaded.refresh(this::isCancelled);
+                    if (!loaded.needsCompaction()) {
+                        return loaded;
+                    }
+                }
+                return TrigramIndex.build(root, files -> publish(files), this::isCancelled);
+            }
+            
+            @Override
+            protected void process(List<Integer> chunks) {
+                if (this == indexWorker && (fileSearch == null || fileSearch.isDone())) {
+                    searchStatus.setText("Indexing... " + chunks.get(chunks.size() - 1) + " files");
+                }
+            }
+            
+            @Override
+            protected void done() {
+                if (this != indexWorker) {
+                    return;
+                }
+                indexWorker = null;
+                try {
+                    boolean fresh = index == null;
+                    index = get();
+                    if (fresh && (fileSearch == null || fileSearch.isDone())) {
+                        searchStatus.setText("Index ready: " + index.getFileCount() + " files");
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    searchStatus.setText("Indexing failed: " + e.getCause().getMessage());
+                }
+            }
+        };
+        indexWorker.execute();
+    }
+    
+    private void closeIndex() {
+        if (indexWorker != null) {
+            indexWorker.cancel(true);
+            indexWorker = null;
+        }
+        index = null;
+    }
+    
+    public void fileSaved(File file) {
+        if (index != null) {
+            index.updateLater(file.toPath().toAbsolutePath().normalize());
+        }
+    }
+    
+    // Batched watcher events: the tree relists the touched folders and the index rescans the touched files
+    public void filesChanged(Set<Path> paths) {
+        if (fileTree.getModel() instanceof FileTreeModel) {
+            ((FileTreeModel) fileTree.getModel()).filesChanged(paths);
+        }
+        if (index != null) {
+            Path root = index.getRoot();
+            for (Path path : paths) {
+                if (path.startsWith(root) && !Files.isDirectory(path)) {
+                    index.updateLater(path);
+                }
+            }
+        }
+    }
+    
+    // The search button doubles as Stop while a search is running
+    private void toggleSearch() {
+        if (fileSearch != null && !fileSearch.isDone()) {
+            stopSearch();
+            return;
+        }
+        String text = searchField.getText();
+        if (text.isEmpty() || currentDirectory == null || !currentDirectory.isDirectory()) {
+            return;
+        }
+        Pattern regex = null;
+        if (regexBox.isSelected()) {
+            try {
+                regex = Pattern.compile(text, Pattern.MULTILINE | (matchCaseBox.isSelected() ? 0 : Pattern.CASE_INSENSITIVE));
+            } catch (IllegalArgumentException e) {
+                searchStatus.setText("Invalid regex: " + e.getMessage().split("\n")[0]);
+                return;
+            }
+        }
+        // With an index only the files holding every trigram of the query are read
+        List<Path> candidates = null;
+        if (index != null) {
+            candidates = index.candidates(regex != null ? TrigramIndex.trigramsOfRegex(text) : TrigramIndex.trigramsOf(text));
+        }
+        
+        resultModel.clear();
+        Path root = index != null ? index.getRoot() : currentDirectory.toPath();
+        fileSearch = new FileSearch(root, text, matchCaseBox.isSelected(), regex, candidates, this::searchUpdated);
+        searchButton.setText("Stop");
+        searchStatus.setText("Searching...");
+        fileSearch.execute();
+    }
+    
+    private void stopSearch() {
+        if (fileSearch != null && !fileSearch.isDone()) {
+            searchStatus.setText("Search stopped after " + fileSearch.getMatchCount() + " matches");
+        }
+        if (fileSearch != null) {
+            fileSearch.cancel(true);
+            fileSearch = null;
+        }
+        searchButton.setText("Search");
+    }
+    
+    private void searchUpdated(FileSearch search, List<FileMatch> matches) {
+        if (search != fileSearch) {
+            return;
+        }
+        resultModel.addAll(matches);
+        String summary = search.getMatchCount() + " matches in " + search.getFilesMatched() + " files";
+        if (!search.isDone()) {
+            searchStatus.setText("Searching... " + summary + " (" + search.getFilesScanned() + " scanned)");
+            return;
+        }
+        searchButton.setText("Search");
+        searchStatus.setText(summary + " (" + search.getFilesScanned() + " scanned"
+            + (search.getCandidateCount() >= 0 ? " of " + search.getCandidateCount() + " indexed candidates" : "")
+            + ", " + search.getBinarySkipped() + " binary skipped)"
+            + (search.isTruncated() ? ", stopped at " + FileSearch.MAX_RESULTS : ""));
+    }
+    
+    private void openSelectedMatch() {
+        FileMatch match = resultList.getSelectedValue();
+        if (match != null) {
+            parent.openFileExternal(match.getFile(), match.getLine());
         }
     }
     
     private void refreshTree() {
         if (currentDirectory != null && currentDirectory.exists()) {
-            fileTree.setModel(new FileTreeModel(currentDirectory));
+            if (fileTree.getModel() instanceof FileTreeModel) {
+                ((FileTreeModel) fileTree.getModel()).dispose();
+            }
+            fileTree.setModel(new FileTreeModel(currentDirectory, parent.getFileWatcher()));
         }
     }
     
@@ -1739,56 +10069,277 @@ class FileExplorerDialog extends JDialog {
         Object selectedNode = fileTree.getLastSelectedPathComponent();
         if (selectedNode instanceof FileTreeNode) {
             FileTreeNode node = (FileTreeNode) selectedNode;
-            File file = (File) node.getUserObject();
-            if (file.isFile()) {
+            File file = node.getFile();
+            if (!node.isDirectory() && file.isFile()) {
                 parent.openFileExternal(file);
             }
         }
     }
 }
 
-// Simple File Tree Model
+// File tree model whose folders list their children on a background thread the first time they expand
 class FileTreeModel extends javax.swing.tree.DefaultTreeModel {
-    public FileTreeModel(File root) {
-        super(new FileTreeNode(root));
+    private static final int MAX_LOADED_NODES = 10000;
+    private static final ExecutorService LISTING_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "file-tree");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Folders first, then by name
+    private static final Comparator<FileTreeNode> ORDER = (n1, n2) -> {
+        if (n1.isDirectory() && !n2.isDirectory()) return -1;
+        if (!n1.isDirectory() && n2.isDirectory()) return 1;
+        return n1.getFile().getName().compareToIgnoreCase(n2.getFile().getName());
+    };
+    
+    // Collapsed folders still holding their children, least recently collapsed first
+    private final Set<FileTreeNode> collapsed = new LinkedHashSet<>();
+    // Loaded folders are the ones watched, so the watch count follows the eviction budget
+    private final Map<Path, FileTreeNode> loadedDirectories = new HashMap<>();
+    private final FileWatcher watcher;
+    private int loadedNodes;
+    
+    public FileTreeModel(File root, FileWatcher watcher) {
+        super(new FileTreeNode(root, true));
+        this.watcher = watcher;
+        load((FileTreeNode) getRoot());
+    }
+    
+    // Called before a folder expands; the placeholder shows until the listing arrives
+    public void load(FileTreeNode node) {
+        collapsed.remove(node);
+        if (node.isLoaded() || node.isLoading()) {
+            return;
+        }
+        node.setLoading(true);
+        LISTING_EXECUTOR.execute(() -> {
+            List<FileTreeNode> children = list(node.getFile());
+            SwingUtilities.invokeLater(() -> loaded(node, children));
+        });
+    }
+    
+    private static List<FileTreeNode> list(File directory) {
+        List<FileTreeNode> children = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isHidden()) {
+                    children.add(new FileTreeNode(file, file.isDirectory()));
+                }
+            }
+            children.sort(ORDER);
+        }
+        return children;
+    }
+    
+    private void loaded(FileTreeNode node, List<FileTreeNode> children) {
+        // The folder may have been evicted with an ancestor, or the model replaced, while it was listed
+        if (!node.isLoading() || node.getRoot() != getRoot()) {
+            return;
+        }
+        node.removeAllChildren();
+        for (FileTreeNode child : children) {
+            node.add(child);
+        }
+        node.setLoading(false);
+        node.setLoaded(true);
+        loadedNodes += children.size();
+        Path path = pathOf(node);
+        if (watcher != null && loadedDirectories.put(path, node) == null) {
+            watcher.watch(path);
+        }
+        nodeStructureChanged(node);
+        evict();
+    }
+    
+    private static Path pathOf(FileTreeNode node) {
+        return node.getFile().toPath().toAbsolutePath().normalize();
+    }
+    
+    // Relists each loaded folder touched by a batch of watcher events. A changed folder is relisted along with its
+    // parent, since it may have been deleted or renamed; one that is gone gives up its children and watches at once.
+    public void filesChanged(Set<Path> paths) {
+        Set<FileTreeNode> changed = new LinkedHashSet<>();
+        for (Path path : paths) {
+            FileTreeNode node = loadedDirectories.get(path);
+            if (node != null) {
+                if (Files.isDirectory(path)) {
+                    changed.add(node);
+                } else {
+                    release(node);
+                    node.unload();
+                    nodeStructureChanged(node);
+                }
+            }
+            FileTreeNode parent = path.getParent() != null ? loadedDirectories.get(path.getParent()) : null;
+            if (parent != null) {
+                changed.add(parent);
+            }
+        }
+        for (FileTreeNode node : changed) {
+            LISTING_EXECUTOR.execute(() -> {
+                List<FileTreeNode> children = list(node.getFile());
+                SwingUtilities.invokeLater(() -> merge(node, children));
+            });
+        }
+    }
+    
+    // Applies a fresh listing as removals and insertions, so expansion and selection elsewhere survive
+    private void merge(FileTreeNode node, List<FileTreeNode> children) {
+        if (!node.isLoaded() || node.getRoot() != getRoot()) {
+            return;
+        }
+        Map<String, FileTreeNode> listed = new HashMap<>();
+        for (FileTreeNode child : children) {
+            listed.put(child.getFile().getName(), child);
+        }
+        List<Integer> removedIndices = new ArrayList<>();
+        List<Object> removed = new ArrayList<>();
+        Set<String> kept = new HashSet<>();
+        for (int i = 0; i < node.getChildCount(); i++) {
+            FileTreeNode child = (FileTreeNode) node.getChildAt(i);
+            FileTreeNode match = listed.get(child.getFile().getName());
+            if (match == null || match.isDirectory() != child.isDirectory()) {
+                removedIndices.add(i);
+                removed.add(child);
+            } else {
+                kept.add(child.getFile().getName());
+            }
+        }
+        if (!removed.isEmpty()) {
+            for (int i = removed.size() - 1; i >= 0; i--) {
+                FileTreeNode child = (FileTreeNode) removed.get(i);
+                release(child);
+                node.remove(removedIndices.get(i));
+            }
+            loadedNodes -= removed.size();
+            nodesWereRemoved(node, removedIndices.stream().mapToInt(Integer::intValue).toArray(), removed.toArray());
+        }
+        List<Integer> insertedIndices = new ArrayList<>();
+        int index = 0;
+        for (FileTreeNode child : children) {
+            if (kept.contains(child.getFile().getName())) {
+                index++;
+                continue;
+            }
+            while (index < node.getChildCount() && ORDER.compare((FileTreeNode) node.getChildAt(index), child) < 0) {
+                index++;
+            }
+            node.insert(child, index);
+            insertedIndices.add(index++);
+        }
+        if (!insertedIndices.isEmpty()) {
+            loadedNodes += insertedIndices.size();
+            nodesWereInserted(node, insertedIndices.stream().mapToInt(Integer::intValue).toArray());
+            evict();
+        }
+    }
+    
+    // Forgets the loaded folders under a node that is being unloaded or removed
+    private void release(FileTreeNode node) {
+        Enumeration<javax.swing.tree.TreeNode> subtree = node.depthFirstEnumeration();
+        while (subtree.hasMoreElements()) {
+            javax.swing.tree.TreeNode descendant = subtree.nextElement();
+            if (descendant instanceof FileTreeNode && ((FileTreeNode) descendant).isLoaded()) {
+                FileTreeNode folder = (FileTreeNode) descendant;
+                loadedNodes -= folder.getChildCount();
+                collapsed.remove(folder);
+                Path path = pathOf(folder);
+                if (watcher != null && loadedDirectories.get(path) == folder) {
+                    loadedDirectories.remove(path);
+                    watcher.unwatch(path);
+                }
+            }
+        }
+    }
+    
+    // Drops every watch held by this model once the explorer moves to another folder
+    public void dispose() {
+        if (watcher != null) {
+            for (Path path : loadedDirectories.keySet()) {
+                watcher.unwatch(path);
+            }
+        }
+        loadedDirectories.clear();
+    }
+    
+    public void collapsed(FileTreeNode node) {
+        if (node.isLoaded() && node != getRoot()) {
+            collapsed.add(node);
+            evict();
+        }
+    }
+    
+    // Drops the children of the folders collapsed longest ago until the tree is back under its budget
+    private void evict() {
+        while (loadedNodes > MAX_LOADED_NODES && !collapsed.isEmpty()) {
+            FileTreeNode node = collapsed.iterator().next();
+            release(node);
+            node.unload();
+            nodeStructureChanged(node);
+        }
     }
 }
 
 class FileTreeNode extends javax.swing.tree.DefaultMutableTreeNode {
-    public FileTreeNode(File file) {
-        super(file);
-        if (file.isDirectory()) {
-            File[] children = file.listFiles();
-            if (children != null) {
-                Arrays.sort(children, (f1, f2) -> {
-                    if (f1.isDirectory() && !f2.isDirectory()) return -1;
-                    if (!f1.isDirectory() && f2.isDirectory()) return 1;
-                    return f1.getName().compareToIgnoreCase(f2.getName());
-                });
-                
-                for (File child : children) {
-                    if (!child.isHidden()) {
-                        add(new FileTreeNode(child));
-                    }
-                }
-            }
+    private final boolean directory;
+    private boolean loaded;
+    private boolean loading;
+    
+    public FileTreeNode(File file, boolean directory) {
+        super(file, directory);
+        this.directory = directory;
+        if (directory) {
+            add(new javax.swing.tree.DefaultMutableTreeNode("Loading...", false));
         }
     }
     
+    public File getFile() { return (File) getUserObject(); }
+    public boolean isDirectory() { return directory; }
+    public boolean isLoaded() { return loaded; }
+    public void setLoaded(boolean loaded) { this.loaded = loaded; }
+    public boolean isLoading() { return loading; }
+    public void setLoading(boolean loading) { this.loading = loading; }
+    
+    // Back to a single placeholder, so the folder lists itself again when next expanded
+    public void unload() {
+        removeAllChildren();
+        add(new javax.swing.tree.DefaultMutableTreeNode("Loading...", false));
+        loaded = false;
+        loading = false;
+    }
+    
+    @Override
+    public boolean isLeaf() {
+        return !directory;
+    }
+    
     @Override
     public String toString() {
-        File file = (File) getUserObject();
+        File file = getFile();
         return file.getName().isEmpty() ? file.getPath() : file.getName();
     }
 }
 
 // Terminal Dialog
 class TerminalDialog extends JDialog {
+    private static final int MAX_LINES = 10000;
+    private static final int OUTPUT_BUFFER_CHARS = 256 * 1024;
+    private static final int MAX_CHARS_PER_FRAME = 64 * 1024;
+    
     private AdvancedTextEditor parent;
     private JTextArea outputArea;
     private JTextField inputField;
+    private JButton killButton;
+    private javax.swing.Timer outputTimer;
     private File currentDir;
     
+    // The running command, if any, and the output it has not shown yet
+    private Process process;
+    private OutputBuffer output;
+    private volatile boolean killed;
+    
     public TerminalDialog(AdvancedTextEditor parent) {
         super(parent, "Terminal", false);
         this.parent = parent;
@@ -1797,7 +10348,7 @@ class TerminalDialog extends JDialog {
         setLocationRelativeTo(parent);
         
         currentDir = new File(System.getProperty("user.dir"));
-        outputArea.append("Terminal ready. Current directory: " + currentDir.getAbsolutePath() + "\n");
+        append("Terminal ready. Current directory: " + currentDir.getAbsolutePath() + "\n");
     }
     
     private void initializeComponents() {
@@ -1822,21 +10373,31 @@ class TerminalDialog extends JDialog {
         JButton clearButton = new JButton("Clear");
         clearButton.addActionListener(e -> outputArea.setText(""));
         
+        killButton = new JButton("Kill");
+        killButton.setEnabled(false);
+        killButton.addActionListener(e -> killCommand());
+        
+        JPanel buttonPanel = new JPanel(new GridLayout(1, 2));
+        buttonPanel.add(clearButton);
+        buttonPanel.add(killButton);
+        
+        outputTimer = new javax.swing.Timer(16, e -> drainOutput());
+        
         add(new JScrollPane(outputArea), BorderLayout.CENTER);
         add(inputPanel, BorderLayout.SOUTH);
-        add(clearButton, BorderLayout.NORTH);
+        add(buttonPanel, BorderLayout.NORTH);
     }
     
     private void executeCommand() {
         String command = inputField.getText().trim();
         if (command.isEmpty()) return;
         
-        outputArea.append("$ " + command + "\n");
+        append("$ " + command + "\n");
         inputField.setText("");
         
         try {
             if (command.equals("pwd")) {
-                outputArea.append(currentDir.getAbsolutePath() + "\n");
+                append(currentDir.getAbsolutePath() + "\n");
             } else if (command.equals("ls") || command.equals("dir")) {
                 File[] files = currentDir.listFiles();
                 if (files != null) {
@@ -1847,7 +10408,7 @@ class TerminalDialog extends JDialog {
                     });
                     
                     for (File file : files) {
-                        outputArea.append(file.getName() + (file.isDirectory() ? "/" : "") + "\n");
+                        append(file.getName() + (file.isDirectory() ? "/" : "") + "\n");
                     }
                 }
             } else if (command.startsWith("cd ")) {
@@ -1863,81 +10424,193 @@ class TerminalDialog extends JDialog {
                 
                 if (newDir != null && newDir.exists() && newDir.isDirectory()) {
                     currentDir = newDir.getCanonicalFile();
-                    outputArea.append("Changed directory to: " + currentDir.getAbsolutePath() + "\n");
+                    append("Changed directory to: " + currentDir.getAbsolutePath() + "\n");
                 } else {
-                    outputArea.append("Directory not found: " + path + "\n");
+                    append("Directory not found: " + path + "\n");
                 }
             } else if (command.equals("clear")) {
                 outputArea.setText("");
             } else if (command.startsWith("echo ")) {
-                outputArea.append(command.substring(5) + "\n");
+                append(command.substring(5) + "\n");
             } else {
                 // Try to execute as system command
                 executeSystemCommand(command);
             }
         } catch (Exception e) {
-            outputArea.append("Error: " + e.getMessage() + "\n");
+            append("Error: " + e.getMessage() + "\n");
         }
-        
-        outputArea.setCaretPosition(outputArea.getDocument().getLength());
     }
     
     private void executeSystemCommand(String command) {
-        SwingWorker<Void, String> worker = new SwingWorker<Void, String>() {
-            @Override
-            protected Void doInBackground() throws Exception {
-                ProcessBuilder pb = new ProcessBuilder();
-                
-                // Handle different operating systems
-                String os = System.getProperty("os.name").toLowerCase();
-                if (os.contains("win")) {
-                    pb.command("cmd.exe", "/c", command);
-                } else {
-                    pb.command("sh", "-c", command);
-                }
-                
-                pb.directory(currentDir);
-                Process process = pb.start();
-                
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                     BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                    
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        publish(line);
-                    }
-                    
-                    while ((line = errorReader.readLine()) != null) {
-                        publish("ERROR: " + line);
-                    }
-                }
-                
-                int exitCode = process.waitFor();
-                if (exitCode != 0) {
-                    publish("Command exited with code: " + exitCode);
+        if (process != null) {
+            append("A command is still running; wait for it or press Kill\n");
+            return;
+        }
+        ProcessBuilder pb = new ProcessBuilder();
+        
+        // Handle different operating systems
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.contains("win")) {
+            pb.command("cmd.exe", "/c", command);
+        } else {
+            pb.command("sh", "-c", command);
+        }
+        
+        pb.directory(currentDir);
+        Process started;
+        try {
+            started = pb.start();
+            // Nothing is typed into the command, so it should not sit waiting for input
+            started.getOutputStream().close();
+        } catch (IOException e) {
+            append("Error executing command: " + e.getMessage() + "\n");
+            return;
+        }
+        
+        OutputBuffer buffer = new OutputBuffer(OUTPUT_BUFFER_CHARS);
+        process = started;
+        output = buffer;
+        killed = false;
+        killButton.setEnabled(true);
+        
+        // Both streams are read at once, so neither pipe can fill up while the other is being read
+        Thread stdout = pump(started.getInputStream(), buffer, "", "terminal-stdout");
+        Thread stderr = pump(started.getErrorStream(), buffer, "ERROR: ", "terminal-stderr");
+        Thread waiter = new Thread(() -> {
+            try {
+                stdout.join();
+                stderr.join();
+                int exitCode = started.waitFor();
+                if (killed) {
+                    buffer.write("Command killed\n");
+                } else if (exitCode != 0) {
+                    buffer.write("Command exited with code: " + exitCode + "\n");
                 }
-                
-                return null;
+            } catch (InterruptedException e) {
+                // The dialog is going away
             }
-            
-            @Override
-            protected void process(java.util.List<String> chunks) {
-                for (String chunk : chunks) {
-                    outputArea.append(chunk + "\n");
+            buffer.finish();
+        }, "terminal-wait");
+        waiter.setDaemon(true);
+        waiter.start();
+        outputTimer.start();
+    }
+    
+    private static Thread pump(InputStream stream, OutputBuffer buffer, String prefix, String name) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    buffer.write(prefix + line + "\n");
                 }
+            } catch (IOException | InterruptedException e) {
+                // The process was killed or its output is no longer wanted
             }
-            
-            @Override
-            protected void done() {
-                try {
-                    get();
-                } catch (Exception e) {
-                    outputArea.append("Error executing command: " + e.getMessage() + "\n");
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+    
+    // Runs once a frame while a command is running and moves what it printed since onto the screen
+    private void drainOutput() {
+        OutputBuffer buffer = output;
+        if (buffer == null) {
+            outputTimer.stop();
+            return;
+        }
+        String text = buffer.drain(MAX_CHARS_PER_FRAME);
+        if (!text.isEmpty()) {
+            append(text);
+        }
+        if (buffer.isDrained()) {
+            outputTimer.stop();
+            process = null;
+            output = null;
+            killButton.setEnabled(false);
+        }
+    }
+    
+    // Stops the command together with anything it started
+    private void killCommand() {
+        Process running = process;
+        if (running == null) {
+            return;
+        }
+        killed = true;
+        // The shell goes first so it cannot carry on with the rest of the command line
+        List<ProcessHandle> children = new ArrayList<>();
+        running.toHandle().descendants().forEach(children::add);
+        running.destroyForcibly();
+        children.forEach(ProcessHandle::destroyForcibly);
+    }
+    
+    private void append(String text) {
+        outputArea.append(text);
+        trimScrollback();
+        outputArea.setCaretPosition(outputArea.getDocument().getLength());
+    }
+    
+    // Old lines go in bulk once the slack is used up, so each line costs the same to drop however much scrolls by
+    private void trimScrollback() {
+        Document doc = outputArea.getDocument();
+        Element root = doc.getDefaultRootElement();
+        int excess = root.getElementCount() - MAX_LINES;
+        if (excess <= MAX_LINES / 4) {
+            return;
+        }
+        try {
+            doc.remove(0, root.getElement(excess - 1).getEndOffset());
+        } catch (BadLocationException e) {
+            // The lines being removed are in the document
+        }
+    }
+    
+    // What the running command printed and the screen has not shown yet. Both streams write whole lines into the one
+    // ring, so they stay in the order they arrived; once the screen falls behind, the writers wait for room.
+    private static class OutputBuffer {
+        private final char[] ring;
+        private int start;
+        private int size;
+        private boolean finished;
+        
+        OutputBuffer(int capacity) {
+            ring = new char[capacity];
+        }
+        
+        synchronized void write(String text) throws InterruptedException {
+            int offset = 0;
+            while (offset < text.length()) {
+                // A line that fits is written in one go; only longer ones are split up
+                while (ring.length - size < Math.min(text.length() - offset, ring.length)) {
+                    wait();
                 }
-                outputArea.setCaretPosition(outputArea.getDocument().getLength());
+                int end = (start + size) % ring.length;
+                int count = Math.min(text.length() - offset, Math.min(ring.length - size, ring.length - end));
+                text.getChars(offset, offset + count, ring, end);
+                size += count;
+                offset += count;
             }
-        };
+        }
         
-        worker.execute();
+        synchronized String drain(int max) {
+            int count = Math.min(size, max);
+            StringBuilder text = new StringBuilder(count);
+            int first = Math.min(count, ring.length - start);
+            text.append(ring, start, first);
+            text.append(ring, 0, count - first);
+            start = (start + count) % ring.length;
+            size -= count;
+            notifyAll();
+            return text.toString();
+        }
+        
+        synchronized void finish() {
+            finished = true;
+        }
+        
+        synchronized boolean isDrained() {
+            return finished && size == 0;
+        }
     }
 }